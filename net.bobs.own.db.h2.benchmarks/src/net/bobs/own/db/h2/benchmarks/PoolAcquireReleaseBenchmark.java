@@ -0,0 +1,140 @@
+package net.bobs.own.db.h2.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.bobs.own.db.h2.pool.H2ConnectionPoolFactory;
+import net.bobs.own.db.h2.pool.H2ConnectionPoolFactory.PoolTypes;
+import net.bobs.own.db.h2.pool.IH2ConnectionPool;
+
+/**
+ * Measures the throughput and latency of a getConnection/closeConnection cycle
+ * for the MYOWN and HIKARICP pool types at 1, 4, 16 and 64 threads.  Each 
+ * trial creates its H2 database in a new temporary directory.
+ * 
+ * Run with JSON results so releases can be compared, see README.md.
+ * 
+ * @author Robert Anderson
+ *
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PoolAcquireReleaseBenchmark {
+
+   @State(Scope.Benchmark)
+   public static class PoolState {
+      
+      @Param({"MYOWN", "HIKARICP"})
+      public String poolType;
+      
+      @Param({"8"})
+      public int poolSize;
+      
+      IH2ConnectionPool pool;
+      private File tempDir;
+      
+      @Setup(Level.Trial)
+      public void setUp() throws IOException {
+         
+         tempDir = Files.createTempDirectory("h2dblib-bench").toFile();
+         String dbPath = new File(tempDir, "bench").getAbsolutePath();
+         File propFile = new File(tempDir, "pool.properties");
+         Properties props = new Properties();
+         
+         PoolTypes type = PoolTypes.valueOf(poolType);
+         switch (type) {
+            case MYOWN:
+               props.setProperty("db.poolid", "bench.myown");
+               props.setProperty("db.path", dbPath);
+               props.setProperty("db.user", "sa");
+               props.setProperty("db.maxconnections", String.valueOf(poolSize));
+               break;
+            case HIKARICP:
+               props.setProperty("dataSourceClassName", "org.h2.jdbcx.JdbcDataSource");
+               props.setProperty("dataSource.url", "jdbc:h2:" + dbPath);
+               props.setProperty("dataSource.user", "sa");
+               props.setProperty("maximumPoolSize", String.valueOf(poolSize));
+               props.setProperty("minimumIdle", String.valueOf(poolSize));
+               break;
+            default:
+               throw new IllegalArgumentException("Pool type not benchmarked: " + poolType);
+         }
+         try (OutputStream out = new FileOutputStream(propFile)) {
+            props.store(out, "h2dblib benchmark pool");
+         }
+         
+         pool = H2ConnectionPoolFactory.getInstance().makePool(type, "bench." + poolType, 
+                                                               propFile.getAbsolutePath());
+      }
+      
+      @TearDown(Level.Trial)
+      public void tearDown() {
+         
+         pool.close();
+         File[] files = tempDir.listFiles();
+         if (files != null) {
+            for (File file : files) {
+               file.delete();
+            }
+         }
+         tempDir.delete();
+      }
+   }
+   
+   @Benchmark
+   @Threads(1)
+   public void acquireRelease_01(PoolState state, Blackhole bh) throws SQLException {
+      acquireRelease(state, bh);
+   }
+   
+   @Benchmark
+   @Threads(4)
+   public void acquireRelease_04(PoolState state, Blackhole bh) throws SQLException {
+      acquireRelease(state, bh);
+   }
+   
+   @Benchmark
+   @Threads(16)
+   public void acquireRelease_16(PoolState state, Blackhole bh) throws SQLException {
+      acquireRelease(state, bh);
+   }
+   
+   @Benchmark
+   @Threads(64)
+   public void acquireRelease_64(PoolState state, Blackhole bh) throws SQLException {
+      acquireRelease(state, bh);
+   }
+   
+   private static void acquireRelease(PoolState state, Blackhole bh) throws SQLException {
+      
+      Connection conn = state.pool.getConnection();
+      bh.consume(conn);
+      state.pool.closeConnection(conn);
+   }
+}
@@ -1,37 +1,144 @@
-package net.bobs.own.db.h2.db;
-
-import java.util.ArrayList;
-
-/**
- * List the auto generated keys for an executed SQL statement.
- * 
- * @author Robert Anderson
- *
- */
-public class AutoGeneratedKeysList extends ArrayList<Integer> {
-
-	/**
-	 * 
-	 */
-	private static final long serialVersionUID = -6336322857687748090L;
-	private ArrayList<Integer> keysList = new ArrayList<Integer>();
-	
-	public AutoGeneratedKeysList() {
-		keysList = new ArrayList<Integer>();
-	}
-	
-
-	public void addKey(int key) {
-		keysList.add(new Integer(key));
-	}
-	
-	public int getKey(int index) {
-		int key = keysList.get(index).intValue();
-		return key;
-	}
-	
-	public int size() {
-		return this.keysList.size();
-	}
-	
-}
+package net.bobs.own.db.h2.db;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+/**
+ * List the auto generated keys for an executed SQL statement.  The keys are 
+ * kept in a growable <code>long</code> array so BIGINT identity values are not 
+ * truncated and no object is allocated per key.
+ * 
+ * @author Robert Anderson
+ *
+ */
+public class AutoGeneratedKeysList implements Iterable<Long> {
+
+	private static final int DEFAULT_CAPACITY = 10;
+	private static final long[] EMPTY_KEYS = new long[0];
+	
+	private long[] keys;
+	private int size = 0;
+	
+	public AutoGeneratedKeysList() {
+		this(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * Create a key list able to hold a number of keys before it grows.
+	 * 
+	 * @param initialCapacity - the expected number of keys
+	 */
+	public AutoGeneratedKeysList(int initialCapacity) {
+		if (initialCapacity < 0) {
+			throw new IllegalArgumentException("Illegal capacity: " + initialCapacity);
+		}
+		keys = initialCapacity == 0 ? EMPTY_KEYS : new long[initialCapacity];
+	}
+
+	public void addKey(long key) {
+		ensureCapacity(size + 1);
+		keys[size++] = key;
+	}
+	
+	/**
+	 * Append a range of keys.
+	 * 
+	 * @param newKeys - array containing the keys to add
+	 * @param offset - index of the first key to add
+	 * @param length - number of keys to add
+	 */
+	public void addKeys(long[] newKeys, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > newKeys.length) {
+			throw new IndexOutOfBoundsException("offset= " + offset + " length= " + length);
+		}
+		ensureCapacity(size + length);
+		System.arraycopy(newKeys, offset, keys, size, length);
+		size += length;
+	}
+	
+	public void addKeys(long[] newKeys) {
+		addKeys(newKeys, 0, newKeys.length);
+	}
+	
+	public void addKeys(AutoGeneratedKeysList keysList) {
+		addKeys(keysList.keys, 0, keysList.size);
+	}
+	
+	public long getKey(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("index= " + index + " size= " + size);
+		}
+		return keys[index];
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public void clear() {
+		size = 0;
+	}
+	
+	/**
+	 * @return - a copy of the keys
+	 */
+	public long[] toLongArray() {
+		return Arrays.copyOf(keys, size);
+	}
+	
+	/**
+	 * @return - an iterator over the keys without boxing when <code>nextLong()</code> is used
+	 */
+	@Override
+	public PrimitiveIterator.OfLong iterator() {
+		
+		return new PrimitiveIterator.OfLong() {
+			
+			private int index = 0;
+			
+			@Override
+			public boolean hasNext() {
+				return index < size;
+			}
+			
+			@Override
+			public long nextLong() {
+				if (index >= size) {
+					throw new NoSuchElementException();
+				}
+				return keys[index++];
+			}
+		};
+	}
+	
+	public LongStream longStream() {
+		return Arrays.stream(keys, 0, size);
+	}
+	
+	/**
+	 * @return - the keys as int values
+	 * @throws ArithmeticException - when the stream reaches a key that does not fit an int
+	 */
+	public IntStream intStream() {
+		return longStream().mapToInt(Math::toIntExact);
+	}
+	
+	@Override
+	public String toString() {
+		return Arrays.toString(toLongArray());
+	}
+	
+	private void ensureCapacity(int minCapacity) {
+		if (minCapacity > keys.length) {
+			int newCapacity = Math.max(minCapacity, keys.length + (keys.length >> 1) + 1);
+			keys = Arrays.copyOf(keys, newCapacity);
+		}
+	}
+}
@@ -1,20 +1,27 @@
-package net.bobs.own.db.h2.db;
-
-public class AutoGeneratedKeysResult {
-
-	int returnCode = -1;
-	AutoGeneratedKeysList keysList = null;
-	
-	public AutoGeneratedKeysResult(int returnCode) {
-		this.returnCode = returnCode;	
-		keysList = new AutoGeneratedKeysList();
-	}
-	
-	public int getReturnCode() {
-		return this.returnCode;
-	}
-	
-	public AutoGeneratedKeysList getAutoGeneratedKeys() {
-		return keysList;
-	}
-}
+package net.bobs.own.db.h2.db;
+
+public class AutoGeneratedKeysResult {
+
+	int returnCode = -1;
+	AutoGeneratedKeysList keysList = null;
+	
+	public AutoGeneratedKeysResult(int returnCode) {
+		this.returnCode = returnCode;	
+		keysList = new AutoGeneratedKeysList();
+	}
+	
+	public int getReturnCode() {
+		return this.returnCode;
+	}
+	
+	public AutoGeneratedKeysList getAutoGeneratedKeys() {
+		return keysList;
+	}
+	
+	/*
+	 * Batches add the update count of each executed chunk. 
+	 */
+	void addUpdateCount(int count) {
+		this.returnCode += count;
+	}
+}
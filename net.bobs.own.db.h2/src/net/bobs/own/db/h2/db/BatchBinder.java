@@ -0,0 +1,18 @@
+package net.bobs.own.db.h2.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Binds the parameter values of one row of a batch to a <code>PreparedStatement</code>.
+ * 
+ * @author Robert Anderson
+ *
+ * @param <R> - the type of the batch rows
+ */
+@FunctionalInterface
+public interface BatchBinder<R> {
+
+	public void bind(PreparedStatement prep, R row) throws SQLException;
+	
+}
@@ -0,0 +1,15 @@
+package net.bobs.own.db.h2.db;
+
+/**
+ * Receives the progress of a bulk load after each committed chunk of rows 
+ * and once more when the load is finished.
+ * 
+ * @author Robert Anderson
+ *
+ */
+@FunctionalInterface
+public interface BulkLoadListener {
+
+	public void progress(long rows, long rowsPerSecond);
+	
+}
@@ -0,0 +1,49 @@
+package net.bobs.own.db.h2.db;
+
+/**
+ * The outcome of a bulk load: the rows loaded and the time taken, including 
+ * the time to rebuild the deferred indexes.
+ * 
+ * @author Robert Anderson
+ *
+ */
+public class BulkLoadResult {
+
+	private final long rows;
+	private final long elapsedNanos;
+	private final int indexesRebuilt;
+	
+	public BulkLoadResult(long rows, long elapsedNanos, int indexesRebuilt) {
+		this.rows = rows;
+		this.elapsedNanos = elapsedNanos;
+		this.indexesRebuilt = indexesRebuilt;
+	}
+	
+	public long getRows() {
+		return rows;
+	}
+	
+	public long getElapsedMillis() {
+		return elapsedNanos / 1000000L;
+	}
+	
+	/**
+	 * @return - the number of indexes dropped for the load and created again after it
+	 */
+	public int getIndexesRebuilt() {
+		return indexesRebuilt;
+	}
+	
+	public long getRowsPerSecond() {
+		return rowsPerSecond(rows, elapsedNanos);
+	}
+	
+	/**
+	 * @param rows - rows loaded
+	 * @param elapsedNanos - time taken
+	 * @return - the rows loaded per second
+	 */
+	public static long rowsPerSecond(long rows, long elapsedNanos) {
+		return elapsedNanos <= 0L ? rows : (long) (rows * 1e9 / elapsedNanos);
+	}
+}
@@ -0,0 +1,16 @@
+package net.bobs.own.db.h2.db;
+
+/**
+ * The formats of a query result export.
+ * 
+ * @author Robert Anderson
+ *
+ */
+public enum ExportFormat {
+	
+	/** Comma separated values, a header line with the column labels, RFC 4180 quoting */
+	CSV,
+	/** One JSON object per line keyed by the column labels, numbers and booleans unquoted */
+	NDJSON
+	
+}
@@ -1,220 +1,548 @@
-/* 
- ******************************************************************************
- * H2DbLib provides a simple connection pool for establishing connections to 
- * an embedded H2 database.
- * This file is part of H2DBLib.
- *  
- * Copyright (c) 2016-2017 Robert W. Anderson.
- * All rights reserved. This program and the accompanying materials
- * are made available under the terms of the Eclipse Public License v1.0
- * which accompanies this distribution, and is available at
- * http://www.eclipse.org/legal/epl-v10.html
- *
- * Contributors:
- *    Robert W. Anderson - initial API and implementation and/or initial documentation
- *    
- * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
- * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
- * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
- * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
- * PARTICULAR PURPOSE.   
- ******************************************************************************
- */
-package net.bobs.own.db.h2.db;
-
-import java.math.BigDecimal;
-import java.sql.Clob;
-import java.sql.Connection;
-import java.sql.Date;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Timestamp;
-
-import net.bobs.own.db.h2.exceptions.NoPreferenceException;
-import net.bobs.own.db.h2.pool.IH2ConnectionPool;
-
-/**
- * Base class for H2 Database Services.  The main purpose of this service is to 
- * allow for simpler coding of JDBC code to connect, prepare, bind and execute
- * SQL statements.  The class uses <code>PreparedStatement</code> objects from 
- * the java.sql package but could be extended to support <code>CallableStatement</code>
- * if needed.
- * 
- * <b>Connections are NOT released by this class, it's is client (callers) responsibility to release 
- * connections.</b>
- * 
- * Adopted from code example from Thomas E. Davis article
- * 	URL: * http://www.javaworld.com/article/2076397/java-web-development/clever-facade-makes-jdbc-look-easy.html
- *  August 30, 2016
- *  
- * @author Robert Anderson
- *
- */
-
-	/*	Adopted from code example from Thomas E. Davis article
-	 * 	URL: * http://www.javaworld.com/article/2076397/java-web-development/clever-facade-makes-jdbc-look-easy.html
-	 *  August 30, 2016
-	 */
-public abstract class H2AbstractDatabaseService {
-
-
-	private PreparedStatement prep = null;
-	private ResultSet  rset = null;
-	private IH2ConnectionPool pool = null;
-
-	/**
-	 * Base Constructor for the service.
-	 */
-	public H2AbstractDatabaseService(IH2ConnectionPool pool) {
-	   this.pool = pool;
-		reset();
-	}
-	
-	/**
-	 * Create the <code>PreparedStatement</code> object for  the service.
-	 * 
-	 * 
-	 * @param sqlText - The SQL statement text to be executed.
-	 * @throws SQLException
-	 * @throws NoPreferenceException 
-	 */
-	public void setSQL(String sqlText) throws SQLException, NoPreferenceException {
-//		if (conn == null) {
-//			conn = getConnection();
-//		}
-	   
-		Connection conn = pool.getConnection();
-		prep = conn.prepareStatement(sqlText);
-	}
-	
-	/**
-	 * Set a CLOB value for the SQL statement to be executed.
-	 * 
-	 * @param index - the parameter number index
-	 * @param clob - the value to be used
-	 * @throws SQLException
-	 * @throws NoPreferenceException
-	 */
-	public void setClob(int index,Clob clob) throws SQLException, NoPreferenceException {
-		prep.setClob(index, clob);
-	}
-	
-	/**
-	 * Set a string value for the SQL statement to be executed.
-	 * 
-	 * @param index - the parameter number index
-	 * @param value - the value to be used.
-	 * @throws SQLException
-	 */
-	public void setString(int index,String value) throws SQLException {
-		prep.setString(index, value);
-	}
-	
-	/**
-	 * Set a decimal value for the SQL statement to be executed.
-	 * 
-	 * @param index - the parameter number index
-	 * @param value - the value to be used.
-	 * @throws SQLException
-	 */
-	public void setDecimal(int index,BigDecimal value) throws SQLException {
-		prep.setBigDecimal(index, value);
-	}
-	
-	/**
-	 * Set a double value for the SQL statement to be executed.
-	 * 
-	 * @param index - the parameter number index
-	 * @param value - the value to be used.
-	 * @throws SQLException
-	 */
-	public void setDouble(int index, Double value) throws SQLException {
-		prep.setDouble(index, value);
-	}
-	
-	/**
-	 * Set a Timestamp value for the SQL statement to be executed.
-	 * 
-	 * @param index - the parameter number index
-	 * @param value - the value to be used.
-	 * @throws SQLException
-	 */
-	public void setTimestamp(int index,Timestamp value) throws SQLException {
-		
-		prep.setTimestamp(index,value);
-	}
-	
-	public void setDate(int index, Date value) throws SQLException {
-		prep.setDate(index, value);
-	}
-	
-	public void setInt(int index, int value) throws SQLException {
-		prep.setInt(index, value);
-	}
-	
-   public void setLong(int index, long value) throws SQLException {
-      prep.setLong(index, value);
-   }
-	
-	public void setNull(int index,int type) {
-		try {
-			prep.setNull(index, type);
-		} catch (SQLException e) {
-			e.printStackTrace();
-		}
-	}
-	
-	public ResultSet executeQuery() throws NoPreferenceException, SQLException {
-		rset = prep.executeQuery();
-//		releaseConnection(conn);
-		return rset;
-	}
-	
-	public int executeUpdate(Connection conn) throws NoPreferenceException, SQLException {
-		int returnCode = prep.executeUpdate();
-		prep.close();
-//		releaseConnection(conn);
-		return returnCode;
-	}
-	
-	public AutoGeneratedKeysResult executeUpdate(Connection conn,boolean generatedKey) throws NoPreferenceException, SQLException {
-		
-		int returnCode = prep.executeUpdate(); 
-		AutoGeneratedKeysResult keyResult = new AutoGeneratedKeysResult(returnCode);
-		if (generatedKey) {
-			AutoGeneratedKeysList keysList = keyResult.getAutoGeneratedKeys();
-			ResultSet keys = prep.getGeneratedKeys();			
-			while (keys.next()) {
-				int autoKey = keys.getInt(1);
-				keysList.add(autoKey);
-			}
-			keys.close();
-		}
-		prep.close();
-//		releaseConnection(conn);
-		return keyResult;
-		
-	}
-	
-	public boolean execute() throws SQLException {
-		boolean hasResult = false;
-		hasResult = prep.execute();
-		prep.close();
-		return hasResult;
-	}
-	
-	public void commit(Connection conn) throws SQLException {
-		PreparedStatement test = conn.prepareStatement("COMMIT");
-		test.execute();
-	}
- 	
-	public void reset() {
-
-	}
-	
-//	protected abstract Connection getConnection(String poolId) throws SQLException, NoPreferenceException;
-//	public abstract void releaseConnection(String poolId, Connection conn) throws SQLException, NoPreferenceException;
-//	public abstract IH2ConnectionPool getPool(String poolId);	
-	
-}
+/* 
+ ******************************************************************************
+ * H2DbLib provides a simple connection pool for establishing connections to 
+ * an embedded H2 database.
+ * This file is part of H2DBLib.
+ *  
+ * Copyright (c) 2016-2017 Robert W. Anderson.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Robert W. Anderson - initial API and implementation and/or initial documentation
+ *    
+ * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
+ * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
+ * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
+ * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
+ * PARTICULAR PURPOSE.   
+ ******************************************************************************
+ */
+package net.bobs.own.db.h2.db;
+
+import java.math.BigDecimal;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import net.bobs.own.db.h2.exceptions.H2DBServiceException;
+import net.bobs.own.db.h2.exceptions.NoPreferenceException;
+import net.bobs.own.db.h2.pool.IH2ConnectionPool;
+
+/**
+ * Base class for H2 Database Services.  The main purpose of this service is to 
+ * allow for simpler coding of JDBC code to connect, prepare, bind and execute
+ * SQL statements.  The class uses <code>PreparedStatement</code> objects from 
+ * the java.sql package but could be extended to support <code>CallableStatement</code>
+ * if needed.
+ * 
+ * <b>The statement set by <code>setSQL()</code> holds a pooled connection until 
+ * <code>release()</code> is called or <code>setSQL()</code> is called again, 
+ * it's is client (callers) responsibility to release it.</b>  The service keeps 
+ * the statement and its connection in fields and must not be shared between 
+ * threads, <code>H2SqlExecutor</code> executes statements without keeping state 
+ * and can be shared.
+ * 
+ * Adopted from code example from Thomas E. Davis article
+ * 	URL: * http://www.javaworld.com/article/2076397/java-web-development/clever-facade-makes-jdbc-look-easy.html
+ *  August 30, 2016
+ *  
+ * @author Robert Anderson
+ *
+ */
+
+	/*	Adopted from code example from Thomas E. Davis article
+	 * 	URL: * http://www.javaworld.com/article/2076397/java-web-development/clever-facade-makes-jdbc-look-easy.html
+	 *  August 30, 2016
+	 */
+public abstract class H2AbstractDatabaseService {
+
+	/** Number of rows executed and committed together by <code>addBatch()</code> */
+	public static final int DEFAULT_BATCH_CHUNK_SIZE = 1000;
+	/** Fetch size used by <code>stream()</code> when none is given */
+	public static final int DEFAULT_FETCH_SIZE = 100;
+
+	private PreparedStatement prep = null;
+	private ResultSet  rset = null;
+	private IH2ConnectionPool pool = null;
+	private Connection conn = null;
+	private String sqlText = null;
+	
+	private int batchChunkSize = DEFAULT_BATCH_CHUNK_SIZE;
+	/* The chunk size of the batch in progress, fixed when its first row is added */
+	private int activeChunkSize = DEFAULT_BATCH_CHUNK_SIZE;
+	private boolean batchGeneratedKeys = false;
+	private int batchPending = 0;
+	private boolean batchAutoCommit = true;
+	private AutoGeneratedKeysResult batchResult = null;
+
+	/**
+	 * Base Constructor for the service.
+	 */
+	public H2AbstractDatabaseService(IH2ConnectionPool pool) {
+	   this.pool = pool;
+		reset();
+	}
+	
+	/**
+	 * Create the <code>PreparedStatement</code> object for  the service.  The 
+	 * statement is taken from the statement cache of the pooled connection when
+	 * the same SQL was prepared before.
+	 * 
+	 * 
+	 * @param sqlText - The SQL statement text to be executed.
+	 * @throws SQLException
+	 * @throws NoPreferenceException 
+	 */
+	public void setSQL(String sqlText) throws SQLException, NoPreferenceException {
+		setSQL(sqlText, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+	}
+	
+	/**
+	 * Create the <code>PreparedStatement</code> object for  the service with 
+	 * the given result set type and concurrency.
+	 * 
+	 * @param sqlText - The SQL statement text to be executed.
+	 * @param resultSetType - a <code>ResultSet</code> type constant
+	 * @param resultSetConcurrency - a <code>ResultSet</code> concurrency constant
+	 * @throws SQLException
+	 * @throws NoPreferenceException 
+	 */
+	public void setSQL(String sqlText, int resultSetType, int resultSetConcurrency) 
+			throws SQLException, NoPreferenceException {
+		release();
+		conn = pool.getConnection();
+		prep = pool.prepareStatement(conn, sqlText, resultSetType, resultSetConcurrency);
+		this.sqlText = sqlText;
+		batchPending = 0;
+		batchResult = null;
+	}
+	
+	/**
+	 * Close the statement set by <code>setSQL()</code> and return its connection 
+	 * to the pool.  Does nothing when no statement is set.
+	 * 
+	 * @throws SQLException
+	 */
+	public void release() throws SQLException {
+		
+		Connection released = conn;
+		PreparedStatement closed = prep;
+		conn = null;
+		prep = null;
+		rset = null;
+		if (released == null) {
+			return;
+		}
+		try {
+			if (closed != null) {
+				closed.close();
+			}
+		} finally {
+			pool.closeConnection(released);
+		}
+	}
+	
+	/**
+	 * Set a CLOB value for the SQL statement to be executed.
+	 * 
+	 * @param index - the parameter number index
+	 * @param clob - the value to be used
+	 * @throws SQLException
+	 * @throws NoPreferenceException
+	 */
+	public void setClob(int index,Clob clob) throws SQLException, NoPreferenceException {
+		prep.setClob(index, clob);
+	}
+	
+	/**
+	 * Set a string value for the SQL statement to be executed.
+	 * 
+	 * @param index - the parameter number index
+	 * @param value - the value to be used.
+	 * @throws SQLException
+	 */
+	public void setString(int index,String value) throws SQLException {
+		prep.setString(index, value);
+	}
+	
+	/**
+	 * Set a decimal value for the SQL statement to be executed.
+	 * 
+	 * @param index - the parameter number index
+	 * @param value - the value to be used.
+	 * @throws SQLException
+	 */
+	public void setDecimal(int index,BigDecimal value) throws SQLException {
+		prep.setBigDecimal(index, value);
+	}
+	
+	/**
+	 * Set a double value for the SQL statement to be executed.
+	 * 
+	 * @param index - the parameter number index
+	 * @param value - the value to be used.
+	 * @throws SQLException
+	 */
+	public void setDouble(int index, Double value) throws SQLException {
+		prep.setDouble(index, value);
+	}
+	
+	/**
+	 * Set a Timestamp value for the SQL statement to be executed.
+	 * 
+	 * @param index - the parameter number index
+	 * @param value - the value to be used.
+	 * @throws SQLException
+	 */
+	public void setTimestamp(int index,Timestamp value) throws SQLException {
+		
+		prep.setTimestamp(index,value);
+	}
+	
+	public void setDate(int index, Date value) throws SQLException {
+		prep.setDate(index, value);
+	}
+	
+	public void setInt(int index, int value) throws SQLException {
+		prep.setInt(index, value);
+	}
+	
+   public void setLong(int index, long value) throws SQLException {
+      prep.setLong(index, value);
+   }
+	
+	public void setNull(int index,int type) {
+		try {
+			prep.setNull(index, type);
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	public ResultSet executeQuery() throws NoPreferenceException, SQLException {
+		rset = prep.executeQuery();
+//		releaseConnection(conn);
+		return rset;
+	}
+	
+	/**
+	 * Execute a query and map its rows lazily as a <code>Stream</code>.  
+	 * 
+	 * @see #stream(String, StatementBinder, RowMapper, int)
+	 */
+	public <T> Stream<T> stream(String sqlText, StatementBinder binder, RowMapper<T> mapper) 
+			throws SQLException {
+		return stream(sqlText, binder, mapper, DEFAULT_FETCH_SIZE);
+	}
+	
+	/**
+	 * Execute a query and map its rows lazily as a <code>Stream</code>.  Rows are 
+	 * read from the result set only as the stream is consumed, the service never 
+	 * holds more than the current row.  The query runs on its own pooled connection
+	 * and does not use the statement set by <code>setSQL()</code>.
+	 * 
+	 * <b>The stream must be closed, e.g. with try-with-resources.</b>  Closing 
+	 * the stream closes the result set and statement and returns the connection
+	 * to the pool.  SQL errors while the stream is consumed are thrown as 
+	 * <code>H2DBServiceException</code>.
+	 * 
+	 * @param sqlText - The SQL query text to be executed.
+	 * @param binder - sets the parameter values of the query, may be null
+	 * @param mapper - maps each row to an object
+	 * @param fetchSize - number of rows fetched from the database at a time
+	 * @return - a sequential stream of the mapped rows 
+	 * @throws SQLException - the query could not be executed
+	 */
+	public <T> Stream<T> stream(String sqlText, StatementBinder binder, RowMapper<T> mapper, 
+								int fetchSize) throws SQLException {
+		
+		final Connection streamConn = pool.getConnection();
+		PreparedStatement streamPrep = null;
+		ResultSet streamRset = null;
+		
+		try {
+			streamPrep = pool.prepareStatement(streamConn, sqlText, ResultSet.TYPE_FORWARD_ONLY, 
+												ResultSet.CONCUR_READ_ONLY);
+			streamPrep.setFetchSize(fetchSize);
+			if (binder != null) {
+				binder.bind(streamPrep);
+			}
+			streamRset = streamPrep.executeQuery();
+		} catch (SQLException | RuntimeException ex) {
+			closeStream(streamRset, streamPrep, streamConn);
+			throw ex;
+		}
+		
+		final PreparedStatement closePrep = streamPrep;
+		final ResultSet closeRset = streamRset;
+		return StreamSupport.stream(new ResultSetSpliterator<T>(streamRset, mapper), false)
+							.onClose(() -> closeStream(closeRset, closePrep, streamConn));
+	}
+	
+	public int executeUpdate(Connection conn) throws NoPreferenceException, SQLException {
+		int returnCode = prep.executeUpdate();
+		prep.close();
+		afterWrite(sqlText);
+//		releaseConnection(conn);
+		return returnCode;
+	}
+	
+	public AutoGeneratedKeysResult executeUpdate(Connection conn,boolean generatedKey) throws NoPreferenceException, SQLException {
+		
+		int returnCode = prep.executeUpdate(); 
+		AutoGeneratedKeysResult keyResult = new AutoGeneratedKeysResult(returnCode);
+		if (generatedKey) {
+			AutoGeneratedKeysList keysList = keyResult.getAutoGeneratedKeys();
+			ResultSet keys = prep.getGeneratedKeys();			
+			while (keys.next()) {
+				keysList.addKey(keys.getLong(1));
+			}
+			keys.close();
+		}
+		prep.close();
+		afterWrite(sqlText);
+//		releaseConnection(conn);
+		return keyResult;
+		
+	}
+	
+	/**
+	 * Set the number of rows executed and committed together by the batch methods.
+	 * A batch keeps the chunk size set when its first row was added.
+	 * 
+	 * @param chunkSize - rows per chunk, must be greater than 0
+	 */
+	public void setBatchChunkSize(int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Batch chunk size must be greater than 0");
+		}
+		batchChunkSize = chunkSize;
+	}
+	
+	/**
+	 * Collect the auto generated keys of all rows added with <code>addBatch()</code>.
+	 * This must be set before the first row is added.  Each row is then executed 
+	 * as it is added, still within the transaction of its chunk, because H2 only 
+	 * reports the generated key of the last row of a JDBC batch.
+	 * 
+	 * @param generatedKeys - true to collect the generated keys 
+	 */
+	public void setBatchGeneratedKeys(boolean generatedKeys) {
+		batchGeneratedKeys = generatedKeys;
+	}
+	
+	/**
+	 * Add the current parameter values of the SQL statement as a row of a batch. 
+	 * The rows are executed in chunks, each chunk in a single transaction, 
+	 * when the chunk size is reached the chunk is executed and committed. 
+	 * 
+	 * @throws SQLException - the chunk failed, the chunk's rows are rolled back
+	 */
+	public void addBatch() throws SQLException {
+		
+		if (batchResult == null) {
+			batchResult = new AutoGeneratedKeysResult(0);
+			activeChunkSize = batchChunkSize;
+		}
+		if (batchPending == 0) {
+			batchAutoCommit = conn.getAutoCommit();
+			if (batchAutoCommit) {
+				conn.setAutoCommit(false);
+			}
+		}
+		
+		try {
+			if (batchGeneratedKeys) {
+				batchResult.addUpdateCount(prep.executeUpdate());
+				collectGeneratedKeys(batchResult.getAutoGeneratedKeys());
+			} else {
+				prep.addBatch();
+			}
+		} catch (SQLException sqlex) {
+			abortBatchChunk();
+			throw sqlex;
+		}
+		
+		batchPending++;
+		if (batchPending >= activeChunkSize) {
+			flushBatchChunk();
+		}
+	}
+	
+	/**
+	 * Execute the rows added with <code>addBatch()</code> that were not executed
+	 * yet and close the SQL statement.  The rows were already executed in chunks 
+	 * of the chunk size as they were added, so the chunk size must be the one 
+	 * set with <code>setBatchChunkSize()</code> before the first row was added.
+	 * 
+	 * @param chunkSize - rows per chunk of this batch
+	 * @return - the total update count and, when requested, the generated keys 
+	 * 			 of all rows of the batch
+	 * @throws SQLException - the last chunk failed, the chunk's rows are rolled back.
+	 * 			Chunks executed before remain committed.
+	 * @throws IllegalArgumentException - the chunk size is not greater than 0, or 
+	 * 			differs from the chunk size the rows were added with.  The batch 
+	 * 			is left pending.
+	 */
+	public AutoGeneratedKeysResult executeBatch(int chunkSize) throws SQLException {
+		
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Batch chunk size must be greater than 0");
+		}
+		if (batchResult != null && chunkSize != activeChunkSize) {
+			throw new IllegalArgumentException("Batch chunk size " + chunkSize + 
+					" differs from the chunk size " + activeChunkSize + " the rows were added with, " + 
+					"call setBatchChunkSize() before the first addBatch()");
+		}
+		if (batchPending > 0) {
+			flushBatchChunk();
+		}
+		AutoGeneratedKeysResult result = batchResult;
+		if (result == null) {
+			result = new AutoGeneratedKeysResult(0);
+		}
+		batchResult = null;
+		prep.close();
+		return result;
+	}
+	
+	public boolean execute() throws SQLException {
+		boolean hasResult = false;
+		hasResult = prep.execute();
+		prep.close();
+		afterWrite(sqlText);
+		return hasResult;
+	}
+	
+	/*
+	 * Execute and commit the pending rows of the current chunk.
+	 */
+	private void flushBatchChunk() throws SQLException {
+		
+		try {
+			if (batchGeneratedKeys == false) {
+				for (int count : prep.executeBatch()) {
+					batchResult.addUpdateCount(count == Statement.SUCCESS_NO_INFO ? 1 : count);
+				}
+			}
+			conn.commit();
+		} catch (SQLException sqlex) {
+			abortBatchChunk();
+			throw sqlex;
+		}
+		afterWrite(sqlText);
+		batchPending = 0;
+		if (batchAutoCommit) {
+			conn.setAutoCommit(true);
+		}
+	}
+	
+	/*
+	 * Roll back the rows of the current chunk after an error.
+	 */
+	private void abortBatchChunk() throws SQLException {
+		
+		batchPending = 0;
+		try {
+			prep.clearBatch();
+			conn.rollback();
+		} finally {
+			if (batchAutoCommit) {
+				conn.setAutoCommit(true);
+			}
+		}
+	}
+	
+	private void collectGeneratedKeys(AutoGeneratedKeysList keysList) throws SQLException {
+		
+		ResultSet keys = prep.getGeneratedKeys();
+		try {
+			while (keys.next()) {
+				keysList.addKey(keys.getLong(1));
+			}
+		} finally {
+			keys.close();
+		}
+	}
+	
+	/*
+	 * Release the resources of a stream, every resource is released even when 
+	 * closing another one fails.
+	 */
+	private void closeStream(ResultSet streamRset, PreparedStatement streamPrep, Connection streamConn) {
+		
+		SQLException error = null;
+		try {
+			if (streamRset != null) {
+				streamRset.close();
+			}
+		} catch (SQLException sqlex) {
+			error = sqlex;
+		}
+		try {
+			if (streamPrep != null) {
+				streamPrep.close();
+			}
+		} catch (SQLException sqlex) {
+			error = error == null ? sqlex : error;
+		}
+		try {
+			pool.closeConnection(streamConn);
+		} catch (SQLException sqlex) {
+			error = error == null ? sqlex : error;
+		}
+		if (error != null) {
+			throw new H2DBServiceException(error.getMessage(), error);
+		}
+	}
+	
+	public void commit(Connection conn) throws SQLException {
+		PreparedStatement test = conn.prepareStatement("COMMIT");
+		test.execute();
+		afterCommit();
+	}
+	
+	/**
+	 * Called after the statement set by <code>setSQL()</code> was executed by 
+	 * <code>executeUpdate()</code>, <code>execute()</code> or a batch chunk.  
+	 * The default does nothing.
+	 * 
+	 * @param sqlText - the SQL statement text executed
+	 */
+	protected void afterWrite(String sqlText) {
+		
+	}
+	
+	/**
+	 * Called after <code>commit()</code>.  The default does nothing.
+	 */
+	protected void afterCommit() {
+		
+	}
+ 	
+	/**
+	 * @return - the connection pool used by the service
+	 */
+	protected IH2ConnectionPool getPool() {
+		return pool;
+	}
+	
+	public void reset() {
+
+	}
+	
+//	protected abstract Connection getConnection(String poolId) throws SQLException, NoPreferenceException;
+//	public abstract void releaseConnection(String poolId, Connection conn) throws SQLException, NoPreferenceException;
+//	public abstract IH2ConnectionPool getPool(String poolId);	
+	
+}
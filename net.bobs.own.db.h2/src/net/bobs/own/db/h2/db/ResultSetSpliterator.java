@@ -0,0 +1,45 @@
+package net.bobs.own.db.h2.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+import net.bobs.own.db.h2.exceptions.H2DBServiceException;
+
+/**
+ * A sequential <code>Spliterator</code> mapping the rows of an open 
+ * <code>ResultSet</code> one at a time, so only the current row is held.
+ * The result set is not closed by the spliterator.
+ * 
+ * @author Robert Anderson
+ *
+ * @param <T> - the type of object created for each row
+ */
+class ResultSetSpliterator<T> extends Spliterators.AbstractSpliterator<T> {
+
+	private final ResultSet rset;
+	private final RowMapper<T> mapper;
+	private int rowNum = 0;
+	
+	ResultSetSpliterator(ResultSet rset, RowMapper<T> mapper) {
+		super(Long.MAX_VALUE, Spliterator.ORDERED);
+		this.rset = rset;
+		this.mapper = mapper;
+	}
+	
+	@Override
+	public boolean tryAdvance(Consumer<? super T> action) {
+		
+		try {
+			if (rset.next() == false) {
+				return false;
+			}
+			action.accept(mapper.mapRow(rset, ++rowNum));
+			return true;
+		} catch (SQLException sqlex) {
+			throw new H2DBServiceException(sqlex.getMessage(), sqlex);
+		}
+	}
+}
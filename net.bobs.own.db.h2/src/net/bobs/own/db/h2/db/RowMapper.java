@@ -0,0 +1,19 @@
+package net.bobs.own.db.h2.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps the current row of a <code>ResultSet</code> to an object.  The mapper 
+ * must not advance or close the result set.
+ * 
+ * @author Robert Anderson
+ *
+ * @param <T> - the type of object created for each row
+ */
+@FunctionalInterface
+public interface RowMapper<T> {
+
+	public T mapRow(ResultSet rset, int rowNum) throws SQLException;
+	
+}
@@ -0,0 +1,17 @@
+package net.bobs.own.db.h2.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Binds the parameter values of a <code>PreparedStatement</code> before it is executed.
+ * 
+ * @author Robert Anderson
+ *
+ */
+@FunctionalInterface
+public interface StatementBinder {
+
+	public void bind(PreparedStatement prep) throws SQLException;
+	
+}
@@ -0,0 +1,41 @@
+/* 
+ ******************************************************************************
+ * H2DbLib provides a simple connection pool for establishing connections to 
+ * an embedded H2 database.
+ * This file is part of H2DBLib.
+ *  
+ * Copyright (c) 2016-2017 Robert W. Anderson.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Robert W. Anderson - initial API and implementation and/or initial documentation
+ *    
+ * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
+ * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
+ * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
+ * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
+ * PARTICULAR PURPOSE.   
+ ******************************************************************************
+ */
+package net.bobs.own.db.h2.exceptions;
+
+/**
+ * Unchecked exception for SQL errors raised where a checked exception can't be
+ * thrown, e.g. while a <code>java.util.stream.Stream</code> of rows is consumed.  
+ * The original <code>SQLException</code> is the cause.
+ */
+public class H2DBServiceException extends RuntimeException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 1L;
+
+	public H2DBServiceException(String msg, Throwable cause) {
+		super(msg, cause);
+	}
+
+}
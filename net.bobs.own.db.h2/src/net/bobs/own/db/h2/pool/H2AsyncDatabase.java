@@ -0,0 +1,182 @@
+/* 
+ ******************************************************************************
+ * H2DbLib provides a simple connection pool for establishing connections to 
+ * an embedded H2 database.
+ * This file is part of H2DBLib.
+ *  
+ * Copyright (c) 2016-2017 Robert W. Anderson.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Robert W. Anderson - initial API and implementation and/or initial documentation
+ *    
+ * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
+ * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
+ * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
+ * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
+ * PARTICULAR PURPOSE.   
+ ******************************************************************************
+ */
+package net.bobs.own.db.h2.pool;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import net.bobs.own.db.h2.db.BatchBinder;
+import net.bobs.own.db.h2.db.RowMapper;
+import net.bobs.own.db.h2.db.StatementBinder;
+
+/**
+ * Asynchronous execution of SQL statements on a connection pool.  Each call 
+ * runs on a bounded executor, borrows its own connection and returns it to 
+ * the pool before the returned <code>CompletableFuture</code> completes, 
+ * normally or exceptionally.  Independent queries can therefore run at the 
+ * same time.  The statements are executed by an <code>H2SqlExecutor</code>.
+ * 
+ * The executor never runs more statements at once than the pool has 
+ * connections.  When its queue is full a call returns a future completed 
+ * with a <code>RejectedExecutionException</code>.
+ * 
+ * @author Robert Anderson
+ *
+ */
+public class H2AsyncDatabase implements AutoCloseable {
+
+	/** Queued calls per executor thread when no queue capacity is given */
+	public static final int DEFAULT_QUEUE_PER_THREAD = 64;
+	
+	private static final AtomicInteger executorNumber = new AtomicInteger(0);
+	private Logger logger = LogManager.getLogger(H2AsyncDatabase.class);
+	private final H2SqlExecutor sql;
+	private final ThreadPoolExecutor executor;
+	
+	/**
+	 * Create an asynchronous service using one executor thread per pool connection.
+	 * 
+	 * @param pool - the connection pool to use
+	 */
+	public H2AsyncDatabase(IH2ConnectionPool pool) {
+		this(pool, pool.getMaxConnections(), pool.getMaxConnections() * DEFAULT_QUEUE_PER_THREAD);
+	}
+	
+	/**
+	 * Create an asynchronous service.
+	 * 
+	 * @param pool - the connection pool to use
+	 * @param threads - executor threads, limited to the maximum connections of the pool
+	 * @param queueCapacity - calls that may wait for an executor thread
+	 */
+	public H2AsyncDatabase(IH2ConnectionPool pool, int threads, int queueCapacity) {
+		
+		this.sql = new H2SqlExecutor(pool);
+		int poolThreads = Math.max(1, Math.min(threads, pool.getMaxConnections()));
+		final String namePrefix = "h2-async-" + executorNumber.incrementAndGet() + "-";
+		ThreadFactory threadFactory = new ThreadFactory() {
+			private final AtomicInteger threadNumber = new AtomicInteger(0);
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, namePrefix + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		executor = new ThreadPoolExecutor(poolThreads, poolThreads, 60L, TimeUnit.SECONDS, 
+										  new ArrayBlockingQueue<Runnable>(queueCapacity), threadFactory);
+		executor.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * Execute a query asynchronously and map all rows.
+	 * 
+	 * @param sqlText - The SQL query text to be executed.
+	 * @param binder - sets the parameter values, may be null
+	 * @param mapper - maps each row to an object
+	 * @return - future completed with the mapped rows
+	 */
+	public <T> CompletableFuture<List<T>> queryAsync(String sqlText, StatementBinder binder, 
+													 RowMapper<T> mapper) {
+		return submit(() -> sql.query(sqlText, binder, mapper));
+	}
+	
+	/**
+	 * Execute an INSERT, UPDATE, DELETE or DDL statement asynchronously.
+	 * 
+	 * @param sqlText - The SQL statement text to be executed.
+	 * @param binder - sets the parameter values, may be null
+	 * @return - future completed with the update count
+	 */
+	public CompletableFuture<Integer> updateAsync(String sqlText, StatementBinder binder) {
+		return submit(() -> sql.update(sqlText, binder));
+	}
+	
+	/**
+	 * Execute a statement for a number of rows asynchronously.  The rows are 
+	 * executed as JDBC batches of <code>chunkSize</code> rows, each chunk in a 
+	 * single transaction.  When a chunk fails it is rolled back, chunks executed 
+	 * before remain committed.
+	 * 
+	 * @param sqlText - The SQL statement text to be executed.
+	 * @param rows - the rows, they must not be changed until the future completes
+	 * @param binder - sets the parameter values of one row
+	 * @param chunkSize - rows per transaction
+	 * @return - future completed with the total update count
+	 */
+	public <R> CompletableFuture<Integer> batchAsync(String sqlText, Iterable<R> rows, 
+													 BatchBinder<R> binder, int chunkSize) {
+		
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Batch chunk size must be greater than 0");
+		}
+		return submit(() -> sql.batch(sqlText, rows, binder, chunkSize));
+	}
+	
+	/**
+	 * Stop accepting calls and wait for the calls already submitted to finish.
+	 */
+	@Override
+	public void close() {
+		
+		executor.shutdown();
+		try {
+			if (executor.awaitTermination(60, TimeUnit.SECONDS) == false) {
+				logger.warn("Asynchronous SQL calls still running after 60 seconds");
+			}
+		} catch (InterruptedException iex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/*
+	 * Run a call on the executor, the future completes with the call's own 
+	 * exception so callers see the SQLException itself as the cause.
+	 */
+	private <T> CompletableFuture<T> submit(Callable<T> call) {
+		
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			executor.execute(() -> {
+				try {
+					future.complete(call.call());
+				} catch (Throwable ex) {
+					future.completeExceptionally(ex);
+				}
+			});
+		} catch (RejectedExecutionException rex) {
+			future.completeExceptionally(rex);
+		}
+		return future;
+	}
+}
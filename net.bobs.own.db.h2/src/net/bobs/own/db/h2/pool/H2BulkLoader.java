@@ -0,0 +1,375 @@
+/* 
+ ******************************************************************************
+ * H2DbLib provides a simple connection pool for establishing connections to 
+ * an embedded H2 database.
+ * This file is part of H2DBLib.
+ *  
+ * Copyright (c) 2016-2017 Robert W. Anderson.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Robert W. Anderson - initial API and implementation and/or initial documentation
+ *    
+ * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
+ * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
+ * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
+ * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
+ * PARTICULAR PURPOSE.   
+ ******************************************************************************
+ */
+package net.bobs.own.db.h2.pool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.h2.tools.Csv;
+
+import net.bobs.own.db.h2.db.BulkLoadListener;
+import net.bobs.own.db.h2.db.BulkLoadResult;
+import net.bobs.own.db.h2.exceptions.H2DBServiceException;
+
+/**
+ * Loads rows into one table with the H2 settings for fast ingest.  For the 
+ * duration of the load the database runs with LOG 0 and LOCK_MODE 0, the 
+ * session with UNDO_LOG 0, and the non unique indexes of the table are 
+ * dropped.  Afterwards the indexes are created again, the settings are 
+ * restored and a CHECKPOINT writes the loaded rows to disk.  The settings 
+ * are restored and the indexes created even when the load fails.
+ * 
+ * Rows are inserted as JDBC batches and committed every <code>chunkSize</code> 
+ * rows.  Without an undo log a failed chunk cannot be rolled back, the rows 
+ * committed before stay loaded.  LOG and LOCK_MODE apply to the whole 
+ * database, so a bulk load should not run alongside other writers.
+ * 
+ * @author Robert Anderson
+ *
+ */
+class H2BulkLoader {
+
+	private static final int DEFAULT_LOG = 2;
+	private Logger logger = LogManager.getLogger(H2BulkLoader.class);
+	private final IH2ConnectionPool pool;
+	private final int chunkSize;
+	
+	/**
+	 * @param pool - the pool of the loading connection
+	 * @param chunkSize - rows per committed chunk
+	 */
+	H2BulkLoader(IH2ConnectionPool pool, int chunkSize) {
+		
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Bulk load chunk size must be greater than 0");
+		}
+		this.pool = pool;
+		this.chunkSize = chunkSize;
+	}
+	
+	/**
+	 * Load rows into a table.
+	 * 
+	 * @param tableName - the table, optionally schema qualified
+	 * @param columns - the columns of the row values, null for all columns in table order
+	 * @param rows - the rows, one value per column
+	 * @param listener - receives the progress, may be null
+	 * @return - the rows loaded and the load rate
+	 * @throws SQLException - the load failed, chunks committed before stay loaded
+	 */
+	BulkLoadResult load(String tableName, String[] columns, Iterator<Object[]> rows, 
+						BulkLoadListener listener) throws SQLException {
+		
+		final long start = System.nanoTime();
+		String schema = schemaOf(tableName);
+		String table = H2ResultCache.normalize(tableName);
+		Connection conn = pool.getConnection();
+		boolean autoCommit = conn.getAutoCommit();
+		long loaded = 0L;
+		int lockMode = -1;
+		int log = -1;
+		List<String> indexes = new ArrayList<String>();
+		SQLException failure = null;
+		
+		try (Statement stmt = conn.createStatement()) {
+			lockMode = queryInt(stmt, "SELECT LOCK_MODE()", -1);
+			log = queryInt(stmt, "SELECT VALUE FROM INFORMATION_SCHEMA.SETTINGS WHERE NAME = 'LOG'", DEFAULT_LOG);
+			stmt.execute("SET LOG 0");
+			stmt.execute("SET LOCK_MODE 0");
+			stmt.execute("SET UNDO_LOG 0");
+			dropIndexes(conn, schema, table, indexes);
+			conn.setAutoCommit(false);
+			int count = columns != null ? columns.length : columnCount(conn, schema, table);
+			loaded = insertRows(conn, insertSql(schema, table, columns, count), rows, listener, start);
+		} catch (SQLException sqlex) {
+			failure = sqlex;
+		} catch (H2DBServiceException svex) {
+			failure = svex.getCause() instanceof SQLException ? (SQLException) svex.getCause() 
+															 : new SQLException(svex.getMessage(), svex);
+		} finally {
+			failure = restore(conn, indexes, lockMode, log, autoCommit, failure);
+			pool.closeConnection(conn);
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		
+		BulkLoadResult result = new BulkLoadResult(loaded, System.nanoTime() - start, indexes.size());
+		if (listener != null) {
+			listener.progress(loaded, result.getRowsPerSecond());
+		}
+		logger.debug("Bulk load of " + loaded + " rows into " + table + " in " + result.getElapsedMillis() + 
+					 " ms, " + result.getRowsPerSecond() + " rows/s");
+		return result;
+	}
+	
+	/**
+	 * Load a CSV file into a table.  The first line of the file names the 
+	 * columns, the values are converted to the column types by H2.
+	 * 
+	 * @param tableName - the table, optionally schema qualified
+	 * @param csvPath - the CSV file
+	 * @param charset - the file character set, null for the default
+	 * @param listener - receives the progress, may be null
+	 * @return - the rows loaded and the load rate
+	 * @throws SQLException - the file could not be read or the load failed
+	 */
+	BulkLoadResult loadCsv(String tableName, String csvPath, String charset, 
+						   BulkLoadListener listener) throws SQLException {
+		
+		try (ResultSet csv = new Csv().read(csvPath, null, charset)) {
+			ResultSetMetaData meta = csv.getMetaData();
+			String[] columns = new String[meta.getColumnCount()];
+			for (int ix = 0; ix < columns.length; ix++) {
+				columns[ix] = meta.getColumnLabel(ix + 1);
+			}
+			return load(tableName, columns, new ResultSetRows(csv, columns.length), listener);
+		}
+	}
+	
+	private long insertRows(Connection conn, String insertSql, Iterator<Object[]> rows, 
+							BulkLoadListener listener, long start) throws SQLException {
+		
+		long loaded = 0L;
+		int pending = 0;
+		try (PreparedStatement prep = conn.prepareStatement(insertSql)) {
+			while (rows.hasNext()) {
+				Object[] row = rows.next();
+				for (int ix = 0; ix < row.length; ix++) {
+					prep.setObject(ix + 1, row[ix]);
+				}
+				prep.addBatch();
+				if (++pending == chunkSize) {
+					prep.executeBatch();
+					conn.commit();
+					loaded += pending;
+					pending = 0;
+					if (listener != null) {
+						listener.progress(loaded, BulkLoadResult.rowsPerSecond(loaded, System.nanoTime() - start));
+					}
+				}
+			}
+			if (pending > 0) {
+				prep.executeBatch();
+				conn.commit();
+				loaded += pending;
+			}
+		}
+		return loaded;
+	}
+	
+	/*
+	 * Drop the non unique indexes that do not belong to a constraint, the 
+	 * statements to create the dropped indexes again are added to dropped.
+	 */
+	private void dropIndexes(Connection conn, String schema, String table, List<String> dropped) 
+			throws SQLException {
+		
+		List<String> names = new ArrayList<String>();
+		List<String> creates = new ArrayList<String>();
+		String sql = "SELECT DISTINCT INDEX_NAME, SQL FROM INFORMATION_SCHEMA.INDEXES " +
+					 "WHERE TABLE_SCHEMA = " + (schema == null ? "SCHEMA()" : "?") + " AND TABLE_NAME = ? " + 
+					 "AND PRIMARY_KEY = FALSE AND NON_UNIQUE = TRUE AND IS_GENERATED = FALSE " + 
+					 "AND CONSTRAINT_NAME IS NULL";
+		try (PreparedStatement prep = conn.prepareStatement(sql)) {
+			int parm = 1;
+			if (schema != null) {
+				prep.setString(parm++, schema);
+			}
+			prep.setString(parm, table);
+			try (ResultSet rset = prep.executeQuery()) {
+				while (rset.next()) {
+					names.add(rset.getString(1));
+					creates.add(rset.getString(2));
+				}
+			}
+		}
+		
+		try (Statement stmt = conn.createStatement()) {
+			for (int ix = 0; ix < names.size(); ix++) {
+				stmt.execute("DROP INDEX " + (schema == null ? "" : quote(schema) + ".") + quote(names.get(ix)));
+				dropped.add(creates.get(ix));
+			}
+		}
+	}
+	
+	private int columnCount(Connection conn, String schema, String table) throws SQLException {
+		
+		String sql = "SELECT COUNT(*) FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA = " + 
+					 (schema == null ? "SCHEMA()" : "?") + " AND TABLE_NAME = ?";
+		try (PreparedStatement prep = conn.prepareStatement(sql)) {
+			int parm = 1;
+			if (schema != null) {
+				prep.setString(parm++, schema);
+			}
+			prep.setString(parm, table);
+			try (ResultSet rset = prep.executeQuery()) {
+				rset.next();
+				return rset.getInt(1);
+			}
+		}
+	}
+	
+	/*
+	 * Create the dropped indexes and restore the settings, every step is 
+	 * attempted even when another fails.  Returns the first failure.
+	 */
+	private SQLException restore(Connection conn, List<String> indexes, int lockMode, int log, 
+								 boolean autoCommit, SQLException failure) {
+		
+		List<String> steps = new ArrayList<String>(indexes);
+		steps.add("SET UNDO_LOG 1");
+		if (lockMode >= 0) {
+			steps.add("SET LOCK_MODE " + lockMode);
+		}
+		if (log >= 0) {
+			steps.add("SET LOG " + log);
+		}
+		steps.add("CHECKPOINT");
+		
+		try {
+			conn.setAutoCommit(autoCommit);
+		} catch (SQLException sqlex) {
+			failure = addFailure(failure, sqlex);
+		}
+		for (String step : steps) {
+			try (Statement stmt = conn.createStatement()) {
+				stmt.execute(step);
+			} catch (SQLException sqlex) {
+				logger.error(step + ": " + sqlex.getMessage(), sqlex);
+				failure = addFailure(failure, sqlex);
+			}
+		}
+		return failure;
+	}
+	
+	private SQLException addFailure(SQLException failure, SQLException sqlex) {
+		
+		if (failure == null) {
+			return sqlex;
+		}
+		failure.addSuppressed(sqlex);
+		return failure;
+	}
+	
+	private String insertSql(String schema, String table, String[] columns, int count) throws SQLException {
+		
+		if (count == 0) {
+			throw new SQLException("Table " + table + " not found for the bulk load");
+		}
+		StringBuilder sql = new StringBuilder("INSERT INTO ");
+		if (schema != null) {
+			sql.append(quote(schema)).append('.');
+		}
+		sql.append(quote(table));
+		if (columns != null) {
+			sql.append(" (");
+			for (int ix = 0; ix < columns.length; ix++) {
+				sql.append(ix > 0 ? ", " : "").append(quote(H2ResultCache.normalize(columns[ix])));
+			}
+			sql.append(')');
+		}
+		sql.append(" VALUES (");
+		for (int ix = 0; ix < count; ix++) {
+			sql.append(ix > 0 ? ", ?" : "?");
+		}
+		return sql.append(')').toString();
+	}
+	
+	private int queryInt(Statement stmt, String sql, int defaultValue) throws SQLException {
+		
+		try (ResultSet rset = stmt.executeQuery(sql)) {
+			return rset.next() ? Integer.parseInt(rset.getString(1).trim()) : defaultValue;
+		}
+	}
+	
+	private static String schemaOf(String tableName) {
+		
+		String name = tableName.trim();
+		int dot = name.lastIndexOf('.');
+		if (dot < 0 || (name.endsWith("\"") && name.lastIndexOf('"', name.length() - 2) > dot)) {
+			return null;
+		}
+		return H2ResultCache.normalize(name.substring(0, dot));
+	}
+	
+	private static String quote(String identifier) {
+		return "\"" + identifier.replace("\"", "\"\"") + "\"";
+	}
+	
+	/*
+	 * The rows of a result set as value arrays.
+	 */
+	private static final class ResultSetRows implements Iterator<Object[]> {
+		
+		private final ResultSet rset;
+		private final int columns;
+		private Boolean hasNext = null;
+		
+		ResultSetRows(ResultSet rset, int columns) {
+			this.rset = rset;
+			this.columns = columns;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			
+			if (hasNext == null) {
+				try {
+					hasNext = rset.next();
+				} catch (SQLException sqlex) {
+					throw new H2DBServiceException(sqlex.getMessage(), sqlex);
+				}
+			}
+			return hasNext;
+		}
+		
+		@Override
+		public Object[] next() {
+			
+			if (hasNext() == false) {
+				throw new NoSuchElementException();
+			}
+			hasNext = null;
+			Object[] row = new Object[columns];
+			try {
+				for (int ix = 0; ix < columns; ix++) {
+					row[ix] = rset.getString(ix + 1);
+				}
+			} catch (SQLException sqlex) {
+				throw new H2DBServiceException(sqlex.getMessage(), sqlex);
+			}
+			return row;
+		}
+	}
+}
@@ -0,0 +1,382 @@
+/* 
+ ******************************************************************************
+ * H2DbLib provides a simple connection pool for establishing connections to 
+ * an embedded H2 database.
+ * This file is part of H2DBLib.
+ *  
+ * Copyright (c) 2016-2017 Robert W. Anderson.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Robert W. Anderson - initial API and implementation and/or initial documentation
+ *    
+ * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
+ * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
+ * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
+ * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
+ * PARTICULAR PURPOSE.   
+ ******************************************************************************
+ */
+package net.bobs.own.db.h2.pool;
+
+import java.sql.Connection;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ *	The idea for this class comes from the HikariCP ConcurrentBag
+ *	https://github.com/brettwooldridge/HikariCP/blob/dev/src/main/java/com/zaxxer/hikari/util/ConcurrentBag.java
+ *	It is simplified to the needs of H2MyOwnConnectionPool.
+ */
+
+/**
+ * A lock free collection of pooled connections.  Each connection is held by a 
+ * <code>H2PoolEntry</code> whose state flag is claimed with a compare and set, 
+ * so borrowing and returning a connection never takes a pool wide lock.
+ * 
+ * A borrow first tries the entry most recently returned by the calling thread,
+ * then takes entries from the head of an idle queue.  A returned entry is 
+ * pushed onto the head of the idle queue so warm connections are reused first.
+ * Returning a connection looks up its entry in a hash map, so neither borrow 
+ * nor return scans the pool.
+ * 
+ * When no entry is available a thread may wait in a FIFO queue.  A returned 
+ * entry is handed straight to the longest waiting thread, and new borrowers do 
+ * not take the thread local fast path while other threads are waiting.
+ * 
+ * @author Robert Anderson
+ *
+ */
+class H2ConnectionBag {
+
+	private final ConcurrentHashMap<Connection,H2PoolEntry> entries;
+	private final ConcurrentLinkedDeque<H2PoolEntry> idleEntries;
+	private final ThreadLocal<H2PoolEntry> lastReturned;
+	private final ConcurrentLinkedQueue<Waiter> waiters;
+	private final AtomicInteger waiting;
+	
+	H2ConnectionBag() {
+		entries = new ConcurrentHashMap<Connection,H2PoolEntry>();
+		idleEntries = new ConcurrentLinkedDeque<H2PoolEntry>();
+		lastReturned = new ThreadLocal<H2PoolEntry>();
+		waiters = new ConcurrentLinkedQueue<Waiter>();
+		waiting = new AtomicInteger(0);
+	}
+	
+	/**
+	 * Claim an available entry from the bag and mark it as in use.  This 
+	 * method never waits, and returns null while other threads are waiting 
+	 * so that they are served first.
+	 * 
+	 * @return - the claimed entry, or null if no entry is available.
+	 */
+	H2PoolEntry borrow() {
+		
+		if (waiting.get() > 0) {
+			return null;
+		}
+		
+		/* Fast path, the connection this thread returned last is often still free */
+		H2PoolEntry entry = lastReturned.get();
+		if (entry != null && entry.compareAndSetState(H2PoolEntry.STATE_NOT_IN_USE, 
+													  H2PoolEntry.STATE_IN_USE)) {
+			return entry;
+		}
+		
+		return pollIdle();
+	}
+	
+	/**
+	 * Wait in FIFO order for an entry to be returned to the bag.
+	 * 
+	 * @param timeoutNanos - the maximum time to wait
+	 * @return - the claimed entry, or null if the timeout elapsed
+	 * @throws InterruptedException - the waiting thread was interrupted
+	 */
+	H2PoolEntry borrow(long timeoutNanos) throws InterruptedException {
+		
+		final long deadline = System.nanoTime() + timeoutNanos;
+		Waiter waiter = new Waiter(Thread.currentThread());
+		
+		waiting.incrementAndGet();
+		waiters.offer(waiter);
+		try {
+			/* An entry returned before this thread was queued would not be handed over */
+			H2PoolEntry entry = pollIdle();
+			if (entry != null) {
+				if (waiter.cancel()) {
+					return entry;
+				}
+				/* Another entry was handed over in the meantime, keep it and give this one back */
+				requite(entry);
+				return waiter.getEntry();
+			}
+			
+			while (true) {
+				entry = waiter.getEntry();
+				if (entry != null) {
+					return entry;
+				}
+				if (waiter.isCancelled()) {
+					return null;
+				}
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0L) {
+					return waiter.cancel() ? null : waiter.getEntry();
+				}
+				LockSupport.parkNanos(this, remaining);
+				if (Thread.interrupted()) {
+					if (waiter.cancel()) {
+						throw new InterruptedException();
+					}
+					Thread.currentThread().interrupt();
+					return waiter.getEntry();
+				}
+			}
+		} finally {
+			waiting.decrementAndGet();
+			if (waiter.isCancelled()) {
+				waiters.remove(waiter);
+			}
+		}
+	}
+	
+	/**
+	 * Return a borrowed entry to the bag.  The entry is handed to the longest
+	 * waiting thread, or made available to other threads if nobody waits.
+	 * 
+	 * @param entry - the entry to be returned
+	 * @return - false if the entry was not in use, e.g. it was returned twice
+	 */
+	boolean requite(H2PoolEntry entry) {
+		
+		if (entry.compareAndSetState(H2PoolEntry.STATE_IN_USE, H2PoolEntry.STATE_NOT_IN_USE) == false) {
+			return false;
+		}
+		lastReturned.set(entry);
+		
+		if (waiting.get() > 0 && handOff(entry, false)) {
+			return true;
+		}
+		
+		if (entry.markQueued()) {
+			idleEntries.offerFirst(entry);
+		}
+		/* A thread may have started to wait after the check above, it must not miss this entry */
+		if (waiting.get() > 0) {
+			H2PoolEntry idle = pollIdle();
+			if (idle != null && handOff(idle, true) == false) {
+				if (idle.markQueued()) {
+					idleEntries.offerFirst(idle);
+				}
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Make an entry available without handing it to a waiting thread or 
+	 * queueing it for borrowing, used while the pool is closing.
+	 * 
+	 * @param entry - the entry to be released
+	 * @return - false if the entry was not in use
+	 */
+	boolean release(H2PoolEntry entry) {
+		return entry.compareAndSetState(H2PoolEntry.STATE_IN_USE, H2PoolEntry.STATE_NOT_IN_USE);
+	}
+	
+	/**
+	 * Wake all waiting threads without an entry, their borrow returns null.
+	 */
+	void cancelWaiters() {
+		
+		Waiter waiter;
+		while ((waiter = waiters.poll()) != null) {
+			if (waiter.cancel()) {
+				LockSupport.unpark(waiter.thread);
+			}
+		}
+	}
+	
+	/**
+	 * @return - the number of threads waiting for an entry
+	 */
+	int getWaitingCount() {
+		return waiting.get();
+	}
+	
+	/**
+	 * Add a new entry to the bag.  An entry that is not in use is made 
+	 * available for borrowing.
+	 * 
+	 * @param entry - the entry to be added
+	 */
+	void add(H2PoolEntry entry) {
+		
+		entries.put(entry.getConnection(), entry);
+		if (entry.getState() == H2PoolEntry.STATE_NOT_IN_USE && entry.markQueued()) {
+			idleEntries.offerLast(entry);
+		}
+	}
+	
+	/**
+	 * Remove an entry from the bag.  The entry is marked as removed so that 
+	 * no other thread can claim it once this method returns.
+	 * 
+	 * @param entry - the entry to be removed
+	 * @return - true if the entry was removed by this call
+	 */
+	boolean remove(H2PoolEntry entry) {
+		
+		int state = entry.getState();
+		if (state == H2PoolEntry.STATE_REMOVED || 
+				entry.compareAndSetState(state, H2PoolEntry.STATE_REMOVED) == false) {
+			return false;
+		}
+		entries.remove(entry.getConnection());
+		/* A queued entry is dropped by the next borrow that polls it */
+		return true;
+	}
+	
+	/**
+	 * Remove an entry from the bag only if it is not in use.
+	 * 
+	 * @param entry - the entry to be removed
+	 * @return - true if the entry was available and is now removed
+	 */
+	boolean removeIdle(H2PoolEntry entry) {
+		
+		if (entry.compareAndSetState(H2PoolEntry.STATE_NOT_IN_USE, H2PoolEntry.STATE_REMOVED) == false) {
+			return false;
+		}
+		entries.remove(entry.getConnection());
+		return true;
+	}
+	
+	/**
+	 * Find the entry for a connection handed out by the bag.
+	 * 
+	 * @param conn - the JDBC connection 
+	 * @return - the entry, or null if the connection does not belong to the bag
+	 */
+	H2PoolEntry find(Connection conn) {
+		return entries.get(conn);
+	}
+	
+	/**
+	 * @return - a weakly consistent view of all entries in the bag
+	 */
+	Collection<H2PoolEntry> values() {
+		return entries.values();
+	}
+	
+	/**
+	 * @return - the number of entries in the bag regardless of state
+	 */
+	int size() {
+		return entries.size();
+	}
+	
+	/*
+	 * Claim an entry from the idle queue.  Entries in the queue may be stale, 
+	 * a thread local borrow leaves the entry queued.
+	 */
+	private H2PoolEntry pollIdle() {
+		
+		H2PoolEntry entry;
+		while ((entry = idleEntries.pollFirst()) != null) {
+			entry.clearQueued();
+			if (entry.compareAndSetState(H2PoolEntry.STATE_NOT_IN_USE, H2PoolEntry.STATE_IN_USE)) {
+				return entry;
+			}
+		}
+		return null;
+	}
+	
+	/*
+	 * Hand an entry to the longest waiting thread.  The entry is claimed for 
+	 * the waiter before a waiter is taken from the queue, unless the caller 
+	 * already claimed it, so a waiter is never dequeued without an entry.
+	 * Returns false if no thread took the entry, it is then left not in use.
+	 */
+	private boolean handOff(H2PoolEntry entry, boolean claimed) {
+		
+		if (claimed == false) {
+			if (waiters.peek() == null) {
+				return false;
+			}
+			if (entry.compareAndSetState(H2PoolEntry.STATE_NOT_IN_USE, H2PoolEntry.STATE_IN_USE) == false) {
+				/* Somebody else claimed the entry */
+				return true;
+			}
+		}
+		Waiter waiter;
+		while ((waiter = waiters.poll()) != null) {
+			if (waiter.offer(entry)) {
+				LockSupport.unpark(waiter.thread);
+				return true;
+			}
+			/* The waiter timed out, try the next one */
+		}
+		entry.setState(H2PoolEntry.STATE_NOT_IN_USE);
+		return false;
+	}
+	
+	/**
+	 * Count the entries in a given state.  This walks the bag and is intended 
+	 * for diagnostics only.
+	 * 
+	 * @param state - one of the <code>H2PoolEntry</code> STATE_ constants
+	 * @return - the number of entries in that state
+	 */
+	int getCount(int state) {
+		int count = 0;
+		for (H2PoolEntry entry : entries.values()) {
+			if (entry.getState() == state) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	/*
+	 * A thread waiting for an entry.  The slot is set exactly once, either to 
+	 * the entry handed over or to CANCELLED when the waiter gives up.
+	 */
+	private static final class Waiter {
+		
+		private static final H2PoolEntry CANCELLED = new H2PoolEntry(null);
+		
+		private final Thread thread;
+		private final AtomicReference<H2PoolEntry> slot = new AtomicReference<H2PoolEntry>();
+		
+		Waiter(Thread thread) {
+			this.thread = thread;
+		}
+		
+		boolean offer(H2PoolEntry entry) {
+			return slot.compareAndSet(null, entry);
+		}
+		
+		boolean cancel() {
+			return slot.compareAndSet(null, CANCELLED);
+		}
+		
+		boolean isCancelled() {
+			return slot.get() == CANCELLED;
+		}
+		
+		H2PoolEntry getEntry() {
+			H2PoolEntry entry = slot.get();
+			return entry == CANCELLED ? null : entry;
+		}
+	}
+}
@@ -1,140 +1,295 @@
-package net.bobs.own.db.h2.pool;
-
-import java.io.File;
-import java.io.IOException;
-import java.net.URL;
-import java.util.HashMap;
-import java.util.Map;
-
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
-
-public class H2ConnectionPoolFactory {
-
-	public enum PoolTypes {HIKARICP,MYOWN};
-	private static Logger logger = LogManager.getLogger(H2ConnectionPoolFactory.class);
-	private static H2ConnectionPoolFactory factory = null;
-	private Map<String,IH2ConnectionPool> poolMap = null;
-	
-	/**
-	 * Obtain the instance of the connection pool factory.
-	 * @return
-	 */
-	static public H2ConnectionPoolFactory getInstance() {
-	   if (factory == null) {
-	      factory = new H2ConnectionPoolFactory();
-	   }
-	   return factory;
- 	}
-	
-	
-	/**
-	 * Define a connection pool using a <code>Properties</code> object with configuration information.
-	 * @param type - connection pool type 
-	 * @param poolId - unique identifier for the pool being created
-	 * @param props - property object for configuration
-	 */
-	 public IH2ConnectionPool makePool(PoolTypes type, String resourcePath,
-	                            String userId, String password, String numberConnections,String poolId) {
-	
-		IH2ConnectionPool pool = null;
-		
-		switch (type) {
-			case HIKARICP:
-				pool = new H2HikariConnectionPool(resourcePath);
-//				H2PoolController.addPool(pool, poolId);
-				logger.debug("HikariConnectionPool with poolid= " + poolId + " added to connection pool map");
-				break;
-			case MYOWN:
-			   pool = makeMyOwnConnectionPool(resourcePath);
-//				H2PoolController.addPool(pool, poolId);
-				logger.debug("H2MyOwnConnectionPool with poolid= " + poolId + " added to connection pool map");
-				break;
-		}
-		
-		return pool;
-
-	}
-	
-	public IH2ConnectionPool makePool(PoolTypes type, String poolId, String path)  {
-		
-		IH2ConnectionPool pool = null;
-
-		switch (type) {
-			case HIKARICP:
-				pool = new H2HikariConnectionPool(path);
-//				H2PoolController.addPool(pool, poolId);
-				logger.debug("HikariConnectionPool with poolid= " + poolId + " added to connection pool map");
-				break;
-			case MYOWN:
-   			pool = makeMyOwnConnectionPool(path);
-//			   H2PoolController.addPool(pool, poolId);
-				logger.debug("H2MyOwnConnectionPool with poolid= " + poolId + " added to connection pool map");
-				break;
-		}
-		
-		return pool;
-	}
-	
-	public IH2ConnectionPool findPool(String poolId) {
-	   
-	   IH2ConnectionPool pool = null;
-	   
-	   if (poolMap.containsKey(poolId)) {
-	      pool = poolMap.get(poolId);	      
-	   }
-	   
-	   return pool;
-
-	}
-	
-	private H2ConnectionPoolFactory () {
-	   poolMap = new HashMap<String,IH2ConnectionPool>();
-	}
-	
-	private H2MyOwnConnectionPool makeMyOwnConnectionPool(String path) {
-
-	   URL poolURL = null;
-	   H2MyOwnConnectionPool pool = null;
-	   
-      try {
-         if (containsURL(path) == false) {
-            poolURL = new File(path).toURI().toURL();
-         } else {
-            poolURL = new URL(path);
-         }
-         pool = new H2MyOwnConnectionPool(poolURL);
-      } catch (IOException ex) {
-         logger.debug(ex.getMessage(),ex);
-      }	   
-      
-      return pool;
-      
-	}
-
-	
-	/*
-	 * Test if the string contains URL syntax 
-	 * returns true if URL (file:/, or platform:/ is found, false otherwise
-	 * 
-	 */
-	private boolean containsURL(String text) {
-		boolean isURL = false;
-//		final String URL_REGEX = "^((https?|ftp)://|(www|ftp)\\.)?[a-z0-9-]+(\\.[a-z0-9-]+)+([/?].*)?$";
-
-		if (text.substring(0,10).equalsIgnoreCase("platform:/")) {
-			isURL = true;
-		} else if (text.substring(0,6).equalsIgnoreCase("file:/")) {
-			isURL = true;
-		}
-
-//		Pattern p = Pattern.compile(URL_REGEX);
-//		Matcher m = p.matcher("example.com");//replace with string to compare
-//		if(m.find()) {
-//		    System.out.println("String contains URL");
-//		}
-
-		return isURL;
-		
-	}
-}
+package net.bobs.own.db.h2.pool;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import net.bobs.own.db.h2.resources.Messages;
+
+/**
+ * Creates connection pools and keeps a registry of the open pools by pool id.  
+ * Each pool id has at most one open pool, asking for a pool id again returns 
+ * the pool already created for it.  A pool is built outside the registry, a 
+ * caller asking for a pool id that is being created waits for it while other 
+ * pool ids are not held up.  A pool removes itself from the registry 
+ * when it is closed.
+ * 
+ * The housekeeping of all pools runs on one scheduler owned by the factory, 
+ * so a process with many databases does not start a thread for each pool.
+ * 
+ * A MEMORY pool runs the database in memory and keeps it on disk as snapshots, 
+ * see <code>H2MemoryConnectionPool</code>.
+ */
+public class H2ConnectionPoolFactory {
+
+	public enum PoolTypes {HIKARICP,MYOWN,MEMORY};
+	private static Logger logger = LogManager.getLogger(H2ConnectionPoolFactory.class);
+	private static final int HOUSEKEEPER_THREADS = 2;
+	/* The pool of each pool id, the future completes once the pool is created */
+	private final ConcurrentMap<String,Future<IH2ConnectionPool>> poolMap;
+	private final ScheduledExecutorService housekeeper;
+	
+	/* The factory is created when it is first used, class loading makes this thread safe */
+	private static class Holder {
+		static final H2ConnectionPoolFactory INSTANCE = new H2ConnectionPoolFactory();
+	}
+	
+	/**
+	 * Obtain the instance of the connection pool factory.
+	 * @return
+	 */
+	static public H2ConnectionPoolFactory getInstance() {
+	   return Holder.INSTANCE;
+ 	}
+	
+	
+	/**
+	 * Define a connection pool using a <code>Properties</code> object with configuration information.
+	 * @param type - connection pool type 
+	 * @param poolId - unique identifier for the pool being created
+	 * @param props - property object for configuration
+	 */
+	 public IH2ConnectionPool makePool(PoolTypes type, String resourcePath,
+	                            String userId, String password, String numberConnections,String poolId) {
+	
+		return makePool(type, poolId, resourcePath);
+
+	}
+	
+	/**
+	 * Obtain the connection pool for a pool id, the pool is created from the 
+	 * properties file when the pool id has no open pool.  A pool created with 
+	 * a null pool id takes its id from the properties and is not registered.
+	 * 
+	 * @param type - connection pool type
+	 * @param poolId - unique identifier for the pool
+	 * @param path - the properties file path or URL
+	 * @return - the pool for the pool id, null if the pool could not be created
+	 */
+	public IH2ConnectionPool makePool(final PoolTypes type, final String poolId, final String path)  {
+		
+		if (poolId == null) {
+			return createPool(type, null, path);
+		}
+		
+		/* Opening connections and running scripts must not happen inside the map */
+		FutureTask<IH2ConnectionPool> creation = new FutureTask<IH2ConnectionPool>(() -> 
+													createPool(type, poolId, path));
+		Future<IH2ConnectionPool> future = poolMap.putIfAbsent(poolId, creation);
+		if (future == null) {
+			future = creation;
+			creation.run();
+		}
+		
+		IH2ConnectionPool pool = null;
+		try {
+			pool = awaitPool(future);
+		} finally {
+			if (pool == null) {
+				/* A failed pool is not kept, the next caller tries again */
+				poolMap.remove(poolId, future);
+			}
+		}
+		return pool;
+	}
+	
+	/**
+	 * Find the open pool for a pool id.
+	 * 
+	 * @param poolId - the pool identifier
+	 * @return - the pool, or null if no pool is open for the pool id or the 
+	 * 			 pool is still being created
+	 */
+	public IH2ConnectionPool findPool(String poolId) {
+		
+		Future<IH2ConnectionPool> future = poolId == null ? null : poolMap.get(poolId);
+		if (future == null || future.isDone() == false) {
+			return null;
+		}
+		try {
+			return awaitPool(future);
+		} catch (RuntimeException rex) {
+			return null;
+		}
+	}
+	
+	/*
+	 * Called by a pool when it is closed, a later pool with the same id is left alone.
+	 */
+	void removePool(String poolId, IH2ConnectionPool pool) {
+		
+		Future<IH2ConnectionPool> future = poolId == null ? null : poolMap.get(poolId);
+		if (future != null && future.isDone() && awaitPool(future) == pool && poolMap.remove(poolId, future)) {
+			logger.debug("Connection pool with poolid= " + poolId + " removed from connection pool map");
+		}
+	}
+	
+	/*
+	 * The scheduler shared by the housekeeping of all pools.
+	 */
+	ScheduledExecutorService getHousekeeper() {
+		return housekeeper;
+	}
+	
+	/**
+	 * Create a thread factory for daemon threads named with a prefix and a number.
+	 * 
+	 * @param namePrefix - the thread name prefix
+	 * @return - the thread factory
+	 */
+	static ThreadFactory daemonThreadFactory(final String namePrefix) {
+		
+		return new ThreadFactory() {
+			private final AtomicInteger threadNumber = new AtomicInteger(0);
+			
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, namePrefix + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+	
+	private H2ConnectionPoolFactory () {
+	   poolMap = new ConcurrentHashMap<String,Future<IH2ConnectionPool>>();
+	   ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(HOUSEKEEPER_THREADS, 
+			   																   daemonThreadFactory("h2-housekeeper-"));
+	   /* Closed pools cancel their housekeeping, do not keep the cancelled tasks queued */
+	   scheduler.setRemoveOnCancelPolicy(true);
+	   housekeeper = scheduler;
+	}
+	
+	/*
+	 * Wait for a pool being created by another thread.  The wait is not 
+	 * interrupted, the interrupt is kept for the caller.
+	 */
+	private IH2ConnectionPool awaitPool(Future<IH2ConnectionPool> future) {
+		
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException iex) {
+					interrupted = true;
+				} catch (ExecutionException eex) {
+					Throwable cause = eex.getCause();
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					}
+					if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+					throw new IllegalStateException(cause);
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	private IH2ConnectionPool createPool(PoolTypes type, String poolId, String path) {
+		
+		IH2ConnectionPool pool = null;
+
+		switch (type) {
+			case HIKARICP:
+				pool = new H2HikariConnectionPool(path, poolId, housekeeper);
+				logger.debug("HikariConnectionPool with poolid= " + poolId + " added to connection pool map");
+				break;
+			case MYOWN:
+   			pool = makeMyOwnConnectionPool(path, poolId);
+				logger.debug("H2MyOwnConnectionPool with poolid= " + poolId + " added to connection pool map");
+				break;
+			case MEMORY:
+				pool = makeMemoryConnectionPool(path, poolId);
+				logger.debug("H2MemoryConnectionPool with poolid= " + poolId + " added to connection pool map");
+				break;
+		}
+		
+		return pool;
+	}
+	
+	private H2MyOwnConnectionPool makeMyOwnConnectionPool(String path, String poolId) {
+
+	   H2MyOwnConnectionPool pool = null;
+	   
+      try {
+         URL poolURL = toURL(path);
+         logger.debug(Messages.bind(Messages.H2InitPool_Message,"url",poolURL.toString()));
+         pool = new H2MyOwnConnectionPool(poolURL, poolId, housekeeper);
+      } catch (IOException ex) {
+         logger.debug(ex.getMessage(),ex);
+      } catch (IllegalArgumentException ex) {
+         logger.error(ex.getMessage(),ex);
+      }	   
+      
+      return pool;
+      
+	}
+	
+	private H2MemoryConnectionPool makeMemoryConnectionPool(String path, String poolId) {
+		
+		H2MemoryConnectionPool pool = null;
+		
+		try {
+			URL poolURL = toURL(path);
+			logger.debug(Messages.bind(Messages.H2InitPool_Message,"url",poolURL.toString()));
+			pool = new H2MemoryConnectionPool(poolURL, poolId, housekeeper);
+		} catch (IOException | SQLException | IllegalArgumentException ex) {
+			logger.error(ex.getMessage(),ex);
+		}
+		
+		return pool;
+	}
+	
+	private URL toURL(String path) throws IOException {
+		
+		if (containsURL(path) == false) {
+			return new File(path).toURI().toURL();
+		}
+		return new URL(path);
+	}
+
+	
+	/*
+	 * Test if the string contains URL syntax 
+	 * returns true if URL (file:/, or platform:/ is found, false otherwise
+	 * 
+	 */
+	private boolean containsURL(String text) {
+		boolean isURL = false;
+//		final String URL_REGEX = "^((https?|ftp)://|(www|ftp)\\.)?[a-z0-9-]+(\\.[a-z0-9-]+)+([/?].*)?$";
+
+		if (text.substring(0,10).equalsIgnoreCase("platform:/")) {
+			isURL = true;
+		} else if (text.substring(0,6).equalsIgnoreCase("file:/")) {
+			isURL = true;
+		}
+
+//		Pattern p = Pattern.compile(URL_REGEX);
+//		Matcher m = p.matcher("example.com");//replace with string to compare
+//		if(m.find()) {
+//		    System.out.println("String contains URL");
+//		}
+
+		return isURL;
+		
+	}
+}
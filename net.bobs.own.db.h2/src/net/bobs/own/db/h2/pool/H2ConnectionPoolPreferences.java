@@ -1,139 +1,405 @@
-package net.bobs.own.db.h2.pool;
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.URL;
-import java.util.Properties;
-
-import net.bobs.own.db.h2.exceptions.NoPreferenceException;
-import net.bobs.own.db.h2.resources.Messages;
-
- class H2ConnectionPoolPreferences {
-	
-	 private Properties prefs = null;
-	
-	/**
-	 * Create a new connection pool database preferences definition.  The database preference is 
-	 * used by the db.h2 plug in to define a database path, user id and password
-	 * information.
-	 * 
-	 * @param propStream - IO stream for a properties file
-	 * @throws NoPreferenceException - Specified preference was not defined
-	 * @throws IOException
-	 */
-	public H2ConnectionPoolPreferences(URL url) throws IOException {
-
-		/* Based on the idea of Reading Resources from a plug-in @h2
-		 * http://blog.vogella.com/2010/07/06/reading-resources-from-plugin/
-		 */
-		InputStream inputStream = url.openConnection().getInputStream();
-		Properties prop = new Properties();
-		prop.load(inputStream);
-		prefs = prop;
-
-		
-		 BufferedReader in = new BufferedReader(new InputStreamReader(inputStream));
-		    String inputLine;
-		 
-		    while ((inputLine = in.readLine()) != null) {
-		        System.out.println(inputLine);
-		    }
-		 
-		    in.close();
-		 
-	}
-	
-	/**
-	 * Createa new Database preferences definition.  The database preference is 
-	 * used by the db.h2 plug in to define a database path, user id and password
-	 * information.
-	 * 
-	 * @param dbProp - <code>Properties</code> containing preferences
-	 * @throws NoPreferenceException - Specified preference was not defined
-	 */
-	public H2ConnectionPoolPreferences(Properties dbProp) {
-
-		prefs = dbProp;
-
-	}
-	
-	/**
-	 * Retrieve the database path to be used by the database service.
-	 * 
-	 * @return - the absolute or relative path for the database
-	 */
-	public String getdbPath() throws NoPreferenceException {
-		
-		checkPropertyExist("db.path");
-		return prefs.getProperty("db.path");
-
- 	}
-		
-	/**
-	 * Retrieve the user id to be by the database service
-	 * 
-	 * @return - the user id to be used
-	 */
-	public String getdbUser() throws NoPreferenceException {
-		
-		checkPropertyExist("db.user");
-		return prefs.getProperty("db.user");
-
-	}
-
-	/**
-	 * Retrieve the password for the userid to be used by the database service
-	 * 
-	 * @return - the password to be used, null if no password was specified.
-	 */
-	public String getdbPassword() throws NoPreferenceException {
-		String password = " ";
-		
-		try {
-			checkPropertyExist("db.password");
-			password = prefs.getProperty("db.password");
-		} catch (NoPreferenceException npex) {
-			password = null;
-		}
-		return password;
-	}
-	
-	/**
-	 * Retrieve the maximum number of connections to be allowed for the h2 
-	 * database.  
-	 * 
-	 * @return - the maximum number of connections or -1 if no preference is specified.
-	 * @throws NoPreferenceException
-	 */
-	public int getdbMaxConnections() throws NoPreferenceException {
-
-		int max_connections = -1;
-
-		checkPropertyExist("db.maxconnections");
-		max_connections = Integer.valueOf(prefs.getProperty("db.maxconnections"));
-		return max_connections;
-		
-	}
-	
-	/**
-	 * Retrieve the pool identifier for the h2 database connection pool.
-	 *   
-	 * @return - the pool identifier.
-	 * @throws NoPreferenceException
-	 */
-	public String getdbPoolid() throws NoPreferenceException {
-		
-		checkPropertyExist("db.poolid");
-		return prefs.getProperty("db.poolid");
-
-	}
-	
-	private void checkPropertyExist(String propKey) throws NoPreferenceException {
-		if (prefs.containsKey(propKey) == false) {
-			throw new NoPreferenceException(Messages.bind(Messages.errormsg_noproperty_exist,propKey));
-		}
-	}	
-
-}
+package net.bobs.own.db.h2.pool;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.Properties;
+
+import net.bobs.own.db.h2.exceptions.NoPreferenceException;
+import net.bobs.own.db.h2.resources.Messages;
+
+ class H2ConnectionPoolPreferences {
+	
+	 /** How a pool opens its connections when it is created */
+	 enum StartupMode {EAGER,LAZY};
+	 
+	 private Properties prefs = null;
+	
+	/**
+	 * Create a new connection pool database preferences definition.  The database preference is 
+	 * used by the db.h2 plug in to define a database path, user id and password
+	 * information.
+	 * 
+	 * @param propStream - IO stream for a properties file
+	 * @throws NoPreferenceException - Specified preference was not defined
+	 * @throws IOException
+	 */
+	public H2ConnectionPoolPreferences(URL url) throws IOException {
+
+		/* Based on the idea of Reading Resources from a plug-in @h2
+		 * http://blog.vogella.com/2010/07/06/reading-resources-from-plugin/
+		 */
+		InputStream inputStream = url.openConnection().getInputStream();
+		Properties prop = new Properties();
+		prop.load(inputStream);
+		prefs = prop;
+
+		
+		 BufferedReader in = new BufferedReader(new InputStreamReader(inputStream));
+		    String inputLine;
+		 
+		    while ((inputLine = in.readLine()) != null) {
+		        System.out.println(inputLine);
+		    }
+		 
+		    in.close();
+		 
+	}
+	
+	/**
+	 * Createa new Database preferences definition.  The database preference is 
+	 * used by the db.h2 plug in to define a database path, user id and password
+	 * information.
+	 * 
+	 * @param dbProp - <code>Properties</code> containing preferences
+	 * @throws NoPreferenceException - Specified preference was not defined
+	 */
+	public H2ConnectionPoolPreferences(Properties dbProp) {
+
+		prefs = dbProp;
+
+	}
+	
+	/**
+	 * Retrieve the database path to be used by the database service.
+	 * 
+	 * @return - the absolute or relative path for the database
+	 */
+	public String getdbPath() throws NoPreferenceException {
+		
+		checkPropertyExist("db.path");
+		return prefs.getProperty("db.path");
+
+ 	}
+		
+	/**
+	 * Retrieve the user id to be by the database service
+	 * 
+	 * @return - the user id to be used
+	 */
+	public String getdbUser() throws NoPreferenceException {
+		
+		checkPropertyExist("db.user");
+		return prefs.getProperty("db.user");
+
+	}
+
+	/**
+	 * Retrieve the password for the userid to be used by the database service
+	 * 
+	 * @return - the password to be used, null if no password was specified.
+	 */
+	public String getdbPassword() throws NoPreferenceException {
+		String password = " ";
+		
+		try {
+			checkPropertyExist("db.password");
+			password = prefs.getProperty("db.password");
+		} catch (NoPreferenceException npex) {
+			password = null;
+		}
+		return password;
+	}
+	
+	/**
+	 * Retrieve the maximum number of connections to be allowed for the h2 
+	 * database.  
+	 * 
+	 * @return - the maximum number of connections
+	 * @throws NoPreferenceException - no preference is specified
+	 */
+	public int getdbMaxConnections() throws NoPreferenceException {
+
+		int max_connections = -1;
+
+		checkPropertyExist("db.maxconnections");
+		max_connections = Integer.valueOf(prefs.getProperty("db.maxconnections"));
+		return max_connections;
+		
+	}
+	
+	/**
+	 * Retrieve the maximum time in milliseconds a caller waits for a connection 
+	 * when all connections of the pool are in use.
+	 * 
+	 * @return - the connection timeout, 30000 if no preference is specified.
+	 */
+	public long getdbConnectionTimeoutMs() {
+		return getLongProperty("db.connectionTimeoutMs", 30000L);
+	}
+	
+	/**
+	 * Retrieve the number of prepared statements cached for each connection.
+	 * 
+	 * @return - the statement cache size, 32 if no preference is specified. 
+	 * 			 0 disables the statement cache.
+	 */
+	public int getdbStatementCacheSize() {
+		return (int) getLongProperty("db.statementCacheSize", 32L);
+	}
+	
+	/**
+	 * Retrieve the maximum number of partitions of parallel scans that may use 
+	 * a connection at the same time.
+	 * 
+	 * @param maxConnections - the maximum connections of the pool
+	 * @return - the partition limit, half of the maximum connections if no 
+	 * 			 preference is specified.
+	 */
+	public int getdbMaxScanPartitions(int maxConnections) {
+		return (int) Math.max(1L, getLongProperty("db.maxScanPartitions", maxConnections / 2));
+	}
+	
+	/**
+	 * Retrieve the time in milliseconds an available connection may stay unused 
+	 * before it is closed, as long as more than the minimum idle connections 
+	 * are available.
+	 * 
+	 * @return - the idle timeout, 600000 if no preference is specified. 
+	 * 			 0 keeps idle connections open.
+	 */
+	public long getdbIdleTimeoutMs() {
+		return getLongProperty("db.idleTimeoutMs", 600000L);
+	}
+	
+	/**
+	 * Retrieve the maximum time in milliseconds a connection is kept open.  An 
+	 * available connection older than this is closed and replaced.
+	 * 
+	 * @return - the maximum lifetime, 1800000 if no preference is specified. 
+	 * 			 0 keeps connections open for the life of the pool.
+	 */
+	public long getdbMaxLifetimeMs() {
+		return getLongProperty("db.maxLifetimeMs", 1800000L);
+	}
+	
+	/**
+	 * Retrieve the number of available connections the pool tries to keep open.
+	 * 
+	 * @param maxConnections - the maximum connections of the pool
+	 * @return - the minimum idle connections, the maximum connections if no 
+	 * 			 preference is specified.
+	 */
+	public int getdbMinIdle(int maxConnections) {
+		return (int) Math.max(0L, Math.min(maxConnections, getLongProperty("db.minIdle", maxConnections)));
+	}
+	
+	/**
+	 * Retrieve the time in milliseconds a connection may be unused before it is
+	 * validated with <code>Connection.isValid</code> when it is borrowed.
+	 * 
+	 * @return - the validation threshold, 500 if no preference is specified.
+	 */
+	public long getdbValidationIdleMs() {
+		return getLongProperty("db.validationIdleMs", 500L);
+	}
+	
+	/**
+	 * Retrieve the time in milliseconds between runs of the pool housekeeper, 
+	 * which closes idle and expired connections and refills the pool.
+	 * 
+	 * @return - the housekeeping period, 30000 if no preference is specified.
+	 */
+	public long getdbHousekeepingPeriodMs() {
+		return Math.max(1L, getLongProperty("db.housekeepingPeriodMs", 30000L));
+	}
+	
+	/**
+	 * Retrieve the time in milliseconds a closing pool waits for connections 
+	 * in use to be returned before they are rolled back and closed.
+	 * 
+	 * @return - the drain timeout, 10000 if no preference is specified.
+	 */
+	public long getdbDrainTimeoutMs() {
+		return getLongProperty("db.drainTimeoutMs", 10000L);
+	}
+	
+	/**
+	 * Retrieve how the pool opens its connections when it is created.  An EAGER 
+	 * pool opens its connections in parallel and is returned once the minimum 
+	 * idle connections are open, a LAZY pool opens connections on first use.
+	 * 
+	 * @return - the startup mode, EAGER if no preference is specified.
+	 */
+	public StartupMode getdbStartupMode() {
+		
+		String value = prefs.getProperty("db.startupMode");
+		if (value == null || value.trim().isEmpty()) {
+			return StartupMode.EAGER;
+		}
+		return StartupMode.valueOf(value.trim().toUpperCase());
+	}
+	
+	/**
+	 * Retrieve the number of threads opening connections in parallel when an 
+	 * eager pool is created.
+	 * 
+	 * @return - the warm up threads, 4 if no preference is specified.
+	 */
+	public int getdbWarmupThreads() {
+		return (int) Math.max(1L, getLongProperty("db.warmupThreads", 4L));
+	}
+	
+	/**
+	 * Retrieve whether the pool adapts its size between db.minConnections and 
+	 * db.maxconnections to the observed load.
+	 * 
+	 * @return - true to adapt the pool size, false if no preference is specified.
+	 */
+	public boolean getdbAdaptiveSizing() {
+		
+		String value = prefs.getProperty("db.adaptiveSizing");
+		return value != null && Boolean.parseBoolean(value.trim());
+	}
+	
+	/**
+	 * Retrieve the smallest size of an adaptive pool.
+	 * 
+	 * @param maxConnections - the maximum connections of the pool
+	 * @return - the minimum connections, 1 if no preference is specified.
+	 */
+	public int getdbMinConnections(int maxConnections) {
+		return (int) Math.max(1L, Math.min(maxConnections, getLongProperty("db.minConnections", 1L)));
+	}
+	
+	/**
+	 * Retrieve the time in milliseconds between the size decisions of an 
+	 * adaptive pool.
+	 * 
+	 * @return - the sizing interval, 5000 if no preference is specified.
+	 */
+	public long getdbAdaptiveIntervalMs() {
+		return Math.max(10L, getLongProperty("db.adaptiveIntervalMs", 5000L));
+	}
+	
+	/**
+	 * Retrieve the time in milliseconds a connection may be in use before it 
+	 * is reported as a possible leak.
+	 * 
+	 * @return - the leak detection threshold, 0 if no preference is specified. 
+	 * 			 0 disables leak detection.
+	 */
+	public long getdbLeakDetectionThresholdMs() {
+		return Math.max(0L, getLongProperty("db.leakDetectionThresholdMs", 0L));
+	}
+	
+	/**
+	 * Retrieve the share of borrowed connections for which the stack of the 
+	 * borrowing thread is captured and reported with a leak.
+	 * 
+	 * @return - the sample rate from 0.0 to 1.0, 0.01 if no preference is specified. 
+	 * 			 0 reports leaks without a stack.
+	 */
+	public double getdbLeakStackSampleRate() {
+		
+		String value = prefs.getProperty("db.leakStackSampleRate");
+		if (value == null || value.trim().isEmpty()) {
+			return 0.01;
+		}
+		return Math.max(0.0, Math.min(1.0, Double.parseDouble(value.trim())));
+	}
+	
+	/**
+	 * Retrieve the snapshot file of an in memory pool.
+	 *
+	 * @return - the snapshot file path, null if no preference is specified.
+	 */
+	public String getdbSnapshotPath() {
+
+		String value = prefs.getProperty("db.snapshotPath");
+		if (value == null || value.trim().isEmpty()) {
+			return null;
+		}
+		return value.trim();
+	}
+
+	/**
+	 * Retrieve the time between the snapshots of an in memory pool.
+	 *
+	 * @return - the snapshot interval, 60000 if no preference is specified,
+	 * 			 0 writes a snapshot only when the pool is closed.
+	 */
+	public long getdbSnapshotIntervalMs() {
+		return Math.max(0L, getLongProperty("db.snapshotIntervalMs", 60000L));
+	}
+
+	/**
+	 * Retrieve the H2 compression of the snapshots of an in memory pool.
+	 *
+	 * @return - DEFLATE, LZF, ZIP or GZIP, DEFLATE if no preference is specified.
+	 */
+	public String getdbSnapshotCompression() {
+
+		String value = prefs.getProperty("db.snapshotCompression");
+		if (value == null || value.trim().isEmpty()) {
+			return "DEFLATE";
+		}
+		value = value.trim().toUpperCase();
+		if (value.matches("DEFLATE|LZF|ZIP|GZIP") == false) {
+			throw new IllegalArgumentException("Unknown snapshot compression " + value);
+		}
+		return value;
+	}
+
+	/**
+	 * Retrieve an H2 URL setting of the pool, specified as db.h2.&lt;name&gt;,
+	 * e.g. db.h2.profile or db.h2.cacheSize.  See <code>H2UrlBuilder</code>.
+	 *
+	 * @param name - the setting name without the db.h2. prefix
+	 * @return - the setting value, null if no preference is specified.
+	 */
+	public String getdbH2Option(String name) {
+
+		String value = prefs.getProperty("db.h2." + name);
+		if (value == null || value.trim().isEmpty()) {
+			return null;
+		}
+		return value.trim();
+	}
+
+	/**
+	 * Test if any H2 URL setting is specified as a db.h2.* preference.
+	 *
+	 * @return - true if a db.h2.* preference is specified.
+	 */
+	public boolean hasdbH2Options() {
+
+		for (String key : prefs.stringPropertyNames()) {
+			if (key.startsWith("db.h2.")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Retrieve the pool identifier for the h2 database connection pool.
+	 *   
+	 * @return - the pool identifier.
+	 * @throws NoPreferenceException
+	 */
+	public String getdbPoolid() throws NoPreferenceException {
+		
+		checkPropertyExist("db.poolid");
+		return prefs.getProperty("db.poolid");
+
+	}
+	
+	private long getLongProperty(String propKey, long defaultValue) {
+		
+		String value = prefs.getProperty(propKey);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		return Long.parseLong(value.trim());
+	}
+	
+	private void checkPropertyExist(String propKey) throws NoPreferenceException {
+		if (prefs.containsKey(propKey) == false) {
+			throw new NoPreferenceException(Messages.bind(Messages.errormsg_noproperty_exist,propKey));
+		}
+	}	
+
+}
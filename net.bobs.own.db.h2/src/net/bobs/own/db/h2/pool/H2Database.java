@@ -1,47 +1,452 @@
-/* 
- ******************************************************************************
- * H2DbLib provides a simple connection pool for establishing connections to 
- * an embedded H2 database.
- * This file is part of H2DBLib.
- *  
- * Copyright (c) 2016-2017 Robert W. Anderson.
- * All rights reserved. This program and the accompanying materials
- * are made available under the terms of the Eclipse Public License v1.0
- * which accompanies this distribution, and is available at
- * http://www.eclipse.org/legal/epl-v10.html
- *
- * Contributors:
- *    Robert W. Anderson - initial API and implementation and/or initial documentation
- *    
- * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
- * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
- * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
- * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
- * PARTICULAR PURPOSE.   
- ******************************************************************************
- */
-package net.bobs.own.db.h2.pool;
-
-import net.bobs.own.db.h2.db.H2AbstractDatabaseService;
-
-/**
- * An API for the execution of a an SQL statement in an H2 database.  This class follows a 
- * Singleton pattern usage model, so that only 1 use of the service is active.
- * 
- * 
- * @author Robert Anderson
- *
- */
-public class H2Database extends H2AbstractDatabaseService {
-
-	public H2Database(IH2ConnectionPool pool) {
-	   super(pool);
-	}
-
-
-//	@Override
-//	public IH2ConnectionPool getPool(String poolId) {
-//		return H2PoolController.getPool(poolId);
-//	}
-
-}
+/* 
+ ******************************************************************************
+ * H2DbLib provides a simple connection pool for establishing connections to 
+ * an embedded H2 database.
+ * This file is part of H2DBLib.
+ *  
+ * Copyright (c) 2016-2017 Robert W. Anderson.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Robert W. Anderson - initial API and implementation and/or initial documentation
+ *    
+ * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
+ * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
+ * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
+ * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
+ * PARTICULAR PURPOSE.   
+ ******************************************************************************
+ */
+package net.bobs.own.db.h2.pool;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import net.bobs.own.db.h2.db.BulkLoadListener;
+import net.bobs.own.db.h2.db.BulkLoadResult;
+import net.bobs.own.db.h2.db.ExportFormat;
+import net.bobs.own.db.h2.db.H2AbstractDatabaseService;
+import net.bobs.own.db.h2.db.RowMapper;
+import net.bobs.own.db.h2.db.StatementBinder;
+
+/**
+ * An API for the execution of a an SQL statement in an H2 database.  This class follows a 
+ * Singleton pattern usage model, so that only 1 use of the service is active.
+ * 
+ * 
+ * @author Robert Anderson
+ *
+ */
+public class H2Database extends H2AbstractDatabaseService {
+
+	/** Statements committed together by default */
+	public static final int DEFAULT_GROUP_COMMIT_OPERATIONS = 64;
+	/** Default time a group commit waits for more statements */
+	public static final long DEFAULT_GROUP_COMMIT_DELAY_MS = 2;
+	/** Default statements that may wait for the group commit writer */
+	public static final int DEFAULT_GROUP_COMMIT_QUEUE = 10000;
+	/** Rows committed together by a bulk load */
+	public static final int DEFAULT_BULK_LOAD_CHUNK_SIZE = 10000;
+	/** Rows fetched at a time by an export */
+	public static final int DEFAULT_EXPORT_FETCH_SIZE = 1000;
+	
+	private int groupCommitOperations = DEFAULT_GROUP_COMMIT_OPERATIONS;
+	private long groupCommitDelayMs = DEFAULT_GROUP_COMMIT_DELAY_MS;
+	private volatile H2GroupCommitWriter writer = null;
+	private volatile H2ResultCache resultCache = null;
+	/* Tables written by this service since its last commit */
+	private final Set<String> uncommittedTables = new HashSet<String>();
+	private boolean uncommittedUnknown = false;
+	private final H2ResultExporter exporter = new H2ResultExporter();
+	
+	public H2Database(IH2ConnectionPool pool) {
+	   super(pool);
+	}
+	
+	/**
+	 * Set the group size of <code>submitUpdate</code>, used when the writer is started.
+	 * 
+	 * @param maxOperations - the most statements committed in one transaction
+	 * @param maxDelayMs - the longest time a group waits for more statements
+	 */
+	public synchronized void setGroupCommit(int maxOperations, long maxDelayMs) {
+		
+		if (maxOperations <= 0) {
+			throw new IllegalArgumentException("Group commit operations must be greater than 0");
+		}
+		groupCommitOperations = maxOperations;
+		groupCommitDelayMs = maxDelayMs;
+	}
+	
+	/**
+	 * Queue an INSERT, UPDATE or DELETE statement for the group commit writer.  
+	 * One writer thread with its own pooled connection executes the queued 
+	 * statements of all threads, committing up to <code>maxOperations</code> 
+	 * statements, or those queued within <code>maxDelayMs</code>, in one 
+	 * transaction (see <code>setGroupCommit</code>).  The writer is started 
+	 * by the first call.
+	 * 
+	 * A statement that fails is rolled back to a savepoint taken before it, 
+	 * the other statements of its group are still committed.  Statements of 
+	 * one thread are committed in the order they were submitted.
+	 * 
+	 * @param sqlText - The SQL statement text to be executed.
+	 * @param binder - sets the parameter values, may be null
+	 * @return - future completed with the update count once the statement is committed
+	 */
+	public CompletableFuture<Integer> submitUpdate(String sqlText, StatementBinder binder) {
+		
+		H2GroupCommitWriter current = writer;
+		CompletableFuture<Integer> future = (current != null ? current : groupCommitWriter()).submit(sqlText, binder);
+		if (resultCache == null) {
+			return future;
+		}
+		/* The cached results are removed once the statement is committed */
+		return future.whenComplete((count, ex) -> invalidate(sqlText));
+	}
+	
+	/**
+	 * Cache the results of <code>query()</code>.  Results are kept until a table 
+	 * they read is written through this service or named in 
+	 * <code>invalidateTable()</code>, or until they are the least recently used 
+	 * result of a full cache.  Hits, misses, evictions and invalidations are 
+	 * reported in the metrics of the pool.
+	 * 
+	 * <b>Writes that do not go through this service are not seen</b>, call 
+	 * <code>invalidateTable()</code> for them.  A query on a view is only 
+	 * invalidated by the view name, not by writes to the tables of the view.
+	 * 
+	 * @param maxEntries - the most results kept
+	 * @param maxBytes - the approximate size of the values kept
+	 */
+	public void enableResultCache(int maxEntries, long maxBytes) {
+		
+		H2PoolMetricsMXBean metrics = getPool().getMetrics();
+		resultCache = new H2ResultCache(maxEntries, maxBytes, 
+				metrics instanceof H2PoolMetrics ? (H2PoolMetrics) metrics : null);
+	}
+	
+	/**
+	 * Remove the cached results that read a table.
+	 * 
+	 * @param tableName - the table name, unquoted names are not case sensitive
+	 */
+	public void invalidateTable(String tableName) {
+		
+		H2ResultCache cache = resultCache;
+		if (cache != null) {
+			cache.invalidate(Collections.singleton(H2ResultCache.normalize(tableName)));
+		}
+	}
+	
+	/**
+	 * Remove all cached results.
+	 */
+	public void invalidateResultCache() {
+		
+		H2ResultCache cache = resultCache;
+		if (cache != null) {
+			cache.invalidateAll();
+		}
+	}
+	
+	/**
+	 * Execute a query and map all rows.  When the result cache is enabled the 
+	 * rows are taken from the cache if the same query was executed with the 
+	 * same parameter values before.  Only SELECT queries with the tables named 
+	 * in FROM or JOIN clauses are cached.
+	 * 
+	 * @param sqlText - The SQL query text to be executed.
+	 * @param mapper - maps each row to an object
+	 * @param params - the parameter values, set with <code>setObject</code>
+	 * @return - the mapped rows
+	 * @throws SQLException
+	 */
+	public <T> List<T> query(String sqlText, RowMapper<T> mapper, Object... params) throws SQLException {
+		
+		H2ResultCache cache = resultCache;
+		Set<String> tables = cache == null ? null : H2ResultCache.readTables(sqlText);
+		H2ResultCache.Key key = null;
+		if (tables != null) {
+			key = new H2ResultCache.Key(sqlText, params, tables);
+			ResultSet cached = cache.get(key);
+			if (cached != null) {
+				return mapRows(cached, mapper);
+			}
+		}
+		
+		IH2ConnectionPool pool = getPool();
+		Connection conn = pool.getConnection();
+		try (PreparedStatement prep = pool.prepareStatement(conn, sqlText, ResultSet.TYPE_FORWARD_ONLY, 
+															ResultSet.CONCUR_READ_ONLY)) {
+			if (params != null) {
+				for (int ix = 0; ix < params.length; ix++) {
+					prep.setObject(ix + 1, params[ix]);
+				}
+			}
+			/* Taken before the query, a write while it runs keeps the result out of the cache */
+			long stamp = key == null ? 0L : cache.stamp();
+			try (ResultSet rset = prep.executeQuery()) {
+				return mapRows(key == null ? rset : cache.put(key, rset, stamp), mapper);
+			}
+		} finally {
+			pool.closeConnection(conn);
+		}
+	}
+	
+	/**
+	 * Load rows into a table with the H2 settings for fast ingest: LOG 0, 
+	 * LOCK_MODE 0 and UNDO_LOG 0, with the non unique indexes of the table 
+	 * dropped and created again after the load.  The settings are restored and 
+	 * the loaded rows written to disk with a CHECKPOINT when the load ends, 
+	 * also when it fails.  Rows are committed every 
+	 * <code>DEFAULT_BULK_LOAD_CHUNK_SIZE</code> rows, and chunks committed before 
+	 * a failure stay loaded.
+	 * 
+	 * <b>LOG and LOCK_MODE change for the whole database, run bulk loads when no 
+	 * other thread writes to the database.</b>  The user needs admin rights.
+	 * 
+	 * @param tableName - the table, optionally schema qualified
+	 * @param columns - the columns of the row values, null for all columns in table order
+	 * @param rows - the rows, one value per column, set with <code>setObject</code>
+	 * @param listener - receives the rows loaded and rows per second after each chunk, may be null
+	 * @return - the rows loaded, the time taken and the rows per second
+	 * @throws SQLException - the load failed
+	 */
+	public BulkLoadResult bulkLoad(String tableName, String[] columns, Iterator<Object[]> rows, 
+								   BulkLoadListener listener) throws SQLException {
+		
+		try {
+			return new H2BulkLoader(getPool(), DEFAULT_BULK_LOAD_CHUNK_SIZE).load(tableName, columns, rows, listener);
+		} finally {
+			invalidateTable(tableName);
+		}
+	}
+	
+	/**
+	 * Load the rows of a stream into a table, the stream is closed afterwards.
+	 * 
+	 * @see #bulkLoad(String, String[], Iterator, BulkLoadListener)
+	 */
+	public BulkLoadResult bulkLoad(String tableName, String[] columns, Stream<Object[]> rows, 
+								   BulkLoadListener listener) throws SQLException {
+		
+		try (Stream<Object[]> closing = rows) {
+			return bulkLoad(tableName, columns, closing.iterator(), listener);
+		}
+	}
+	
+	/**
+	 * Load a CSV file into a table.  The first line of the file names the 
+	 * columns, the values are read with the H2 CSV reader used by CSVREAD and 
+	 * converted to the column types by H2.
+	 * 
+	 * @param tableName - the table, optionally schema qualified
+	 * @param csvPath - the CSV file
+	 * @param charset - the character set of the file, null for the default
+	 * @param listener - receives the rows loaded and rows per second after each chunk, may be null
+	 * @return - the rows loaded, the time taken and the rows per second
+	 * @throws SQLException - the file could not be read or the load failed
+	 * @see #bulkLoad(String, String[], Iterator, BulkLoadListener)
+	 */
+	public BulkLoadResult bulkLoadCsv(String tableName, String csvPath, String charset, 
+									  BulkLoadListener listener) throws SQLException {
+		
+		try {
+			return new H2BulkLoader(getPool(), DEFAULT_BULK_LOAD_CHUNK_SIZE).loadCsv(tableName, csvPath, 
+																					 charset, listener);
+		} finally {
+			invalidateTable(tableName);
+		}
+	}
+	
+	/**
+	 * Export the result of a query to a channel as CSV or NDJSON.  Rows are 
+	 * encoded as UTF-8 into a reusable direct buffer that is written to the 
+	 * channel whenever it is full, the export holds no more than one row and 
+	 * the buffer (<code>H2ResultExporter.BUFFER_SIZE</code>) in memory.  The 
+	 * statement reads <code>DEFAULT_EXPORT_FETCH_SIZE</code> rows at a time.  
+	 * The result cache is not used.
+	 * 
+	 * The channel is not closed.  With gzip the compressed stream is finished, 
+	 * further writes to the channel follow the gzip trailer.
+	 * 
+	 * @param sqlText - The SQL query text to be executed.
+	 * @param binder - binds the parameter values, may be null
+	 * @param format - CSV or NDJSON
+	 * @param channel - the channel written to
+	 * @param gzip - true to compress the output with gzip
+	 * @return - the number of rows exported
+	 * @throws SQLException - the query failed
+	 * @throws IOException - the channel could not be written
+	 */
+	public long export(String sqlText, StatementBinder binder, ExportFormat format, 
+					   WritableByteChannel channel, boolean gzip) throws SQLException, IOException {
+		
+		IH2ConnectionPool pool = getPool();
+		Connection conn = pool.getConnection();
+		try (PreparedStatement prep = pool.prepareStatement(conn, sqlText, ResultSet.TYPE_FORWARD_ONLY, 
+															ResultSet.CONCUR_READ_ONLY)) {
+			prep.setFetchSize(DEFAULT_EXPORT_FETCH_SIZE);
+			if (binder != null) {
+				binder.bind(prep);
+			}
+			try (ResultSet rset = prep.executeQuery()) {
+				return exporter.export(rset, format, channel, gzip);
+			}
+		} finally {
+			pool.closeConnection(conn);
+		}
+	}
+	
+	/**
+	 * Export the result of a query to a file as CSV or NDJSON, an existing 
+	 * file is replaced.
+	 * 
+	 * @see #export(String, StatementBinder, ExportFormat, WritableByteChannel, boolean)
+	 */
+	public long export(String sqlText, StatementBinder binder, ExportFormat format, 
+					   Path file, boolean gzip) throws SQLException, IOException {
+		
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, 
+													StandardOpenOption.TRUNCATE_EXISTING)) {
+			return export(sqlText, binder, format, channel, gzip);
+		}
+	}
+	
+	/**
+	 * Removes the cached results of the tables written.
+	 */
+	@Override
+	protected void afterWrite(String sqlText) {
+		
+		if (resultCache != null) {
+			Set<String> tables = invalidate(sqlText);
+			/* Readers may still see the old rows until the write is committed */
+			if (tables == null) {
+				uncommittedUnknown = true;
+			} else {
+				uncommittedTables.addAll(tables);
+			}
+		}
+	}
+	
+	/**
+	 * Removes the cached results of the tables written in the committed transaction.
+	 */
+	@Override
+	protected void afterCommit() {
+		
+		H2ResultCache cache = resultCache;
+		if (cache != null) {
+			if (uncommittedUnknown) {
+				cache.invalidateAll();
+			} else if (uncommittedTables.isEmpty() == false) {
+				cache.invalidate(uncommittedTables);
+			}
+		}
+		uncommittedTables.clear();
+		uncommittedUnknown = false;
+	}
+	
+	/**
+	 * Commit the statements already queued by <code>submitUpdate</code>, then stop 
+	 * the writer and return its connection to the pool.  <b>Call this before 
+	 * the pool is closed.</b>  A later <code>submitUpdate</code> starts a new writer.
+	 */
+	public void closeGroupCommit() {
+		
+		H2GroupCommitWriter current;
+		synchronized (this) {
+			current = writer;
+			writer = null;
+		}
+		if (current != null) {
+			current.close();
+		}
+	}
+	
+	/**
+	 * Scan a table in parallel.  The range of a numeric key column is split into 
+	 * <code>parallelism</code> partitions, each partition is read on its own 
+	 * pooled connection and the mapped rows of all partitions are merged into a 
+	 * parallel <code>Stream</code>.  The pool's partition limiter caps the 
+	 * partitions read at once (db.maxScanPartitions).  
+	 * 
+	 * <b>The stream must be closed</b>, closing it releases partitions that 
+	 * were not read to the end.  Rows are not returned in key order.
+	 * 
+	 * @param tableName - the table to scan
+	 * @param keyColumn - a numeric column used to partition the table
+	 * @param parallelism - the number of partitions
+	 * @param mapper - maps each row to an object, it is called from several threads
+	 * @return - a parallel stream of the mapped rows
+	 * @throws SQLException - the key range could not be read
+	 */
+	public <T> Stream<T> parallelScan(String tableName, String keyColumn, int parallelism, 
+									  RowMapper<T> mapper) throws SQLException {
+		return new H2ParallelScan<T>(getPool(), tableName, keyColumn, mapper).stream(parallelism);
+	}
+
+	
+	/*
+	 * Remove the cached results of the tables a statement writes, all results 
+	 * when the tables are not known.  Returns the tables, null when not known.
+	 */
+	private Set<String> invalidate(String sqlText) {
+		
+		H2ResultCache cache = resultCache;
+		Set<String> tables = H2ResultCache.writeTables(sqlText);
+		if (cache != null) {
+			if (tables == null) {
+				cache.invalidateAll();
+			} else if (tables.isEmpty() == false) {
+				cache.invalidate(tables);
+			}
+		}
+		return tables;
+	}
+	
+	private <T> List<T> mapRows(ResultSet rset, RowMapper<T> mapper) throws SQLException {
+		
+		List<T> rows = new ArrayList<T>();
+		int rowNum = 0;
+		while (rset.next()) {
+			rows.add(mapper.mapRow(rset, ++rowNum));
+		}
+		return rows;
+	}
+	
+	private synchronized H2GroupCommitWriter groupCommitWriter() {
+		
+		if (writer == null) {
+			writer = new H2GroupCommitWriter(getPool(), groupCommitOperations, groupCommitDelayMs, 
+											 DEFAULT_GROUP_COMMIT_QUEUE);
+		}
+		return writer;
+	}
+
+//	@Override
+//	public IH2ConnectionPool getPool(String poolId) {
+//		return H2PoolController.getPool(poolId);
+//	}
+
+}
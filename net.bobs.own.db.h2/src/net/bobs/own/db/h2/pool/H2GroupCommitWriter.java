@@ -0,0 +1,288 @@
+/* 
+ ******************************************************************************
+ * H2DbLib provides a simple connection pool for establishing connections to 
+ * an embedded H2 database.
+ * This file is part of H2DBLib.
+ *  
+ * Copyright (c) 2016-2017 Robert W. Anderson.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Robert W. Anderson - initial API and implementation and/or initial documentation
+ *    
+ * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
+ * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
+ * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
+ * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
+ * PARTICULAR PURPOSE.   
+ ******************************************************************************
+ */
+package net.bobs.own.db.h2.pool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import net.bobs.own.db.h2.db.StatementBinder;
+
+/**
+ * Executes the write statements of many threads on one writer connection.  
+ * Statements are queued, and the writer thread executes up to 
+ * <code>maxOperations</code> queued statements, or the statements queued 
+ * within <code>maxDelayMs</code> of the first one, in a single transaction.  
+ * Each submitter's future completes after the commit of its group.
+ * 
+ * H2 locks whole tables, so concurrent committing writers wait for each 
+ * other's locks and each pays for its own commit.  One writer never waits 
+ * for another writer and commits a group at the cost of one commit.
+ * 
+ * Each statement runs under its own savepoint, a failing statement is rolled 
+ * back to its savepoint and only its future fails, the rest of the group is 
+ * committed.  When the commit fails every future of the group fails.
+ * 
+ * @author Robert Anderson
+ *
+ */
+class H2GroupCommitWriter implements AutoCloseable {
+
+	private static final AtomicInteger writerNumber = new AtomicInteger(0);
+	/* Queued after the last statement when the writer is closed */
+	private static final WriteOperation STOP = new WriteOperation(null, null);
+	private Logger logger = LogManager.getLogger(H2GroupCommitWriter.class);
+	private final IH2ConnectionPool pool;
+	private final int maxOperations;
+	private final long maxDelayNanos;
+	private final BlockingQueue<WriteOperation> queue;
+	private final Thread writer;
+	private volatile boolean closed = false;
+	/* Set by the writer thread before it fails the statements left in the queue */
+	private volatile boolean stopped = false;
+	
+	/**
+	 * Create a writer and start its thread.
+	 * 
+	 * @param pool - the pool of the writer connection
+	 * @param maxOperations - the most statements committed in one transaction
+	 * @param maxDelayMs - the longest time a group waits for more statements
+	 * @param queueCapacity - the statements that may wait for the writer
+	 */
+	H2GroupCommitWriter(IH2ConnectionPool pool, int maxOperations, long maxDelayMs, int queueCapacity) {
+		
+		if (maxOperations <= 0) {
+			throw new IllegalArgumentException("Group commit operations must be greater than 0");
+		}
+		this.pool = pool;
+		this.maxOperations = maxOperations;
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, maxDelayMs));
+		queue = new LinkedBlockingQueue<WriteOperation>(queueCapacity);
+		writer = H2ConnectionPoolFactory.daemonThreadFactory("h2-writer-" + writerNumber.incrementAndGet() + "-")
+										 .newThread(new Runnable() {
+			@Override
+			public void run() {
+				runWriter();
+			}
+		});
+		writer.start();
+	}
+	
+	/**
+	 * Queue a statement for the writer.
+	 * 
+	 * @param sqlText - the SQL statement text
+	 * @param binder - sets the parameter values, may be null
+	 * @return - future completed with the update count once the statement is 
+	 * 			 committed, or with a <code>RejectedExecutionException</code> when 
+	 * 			 the queue is full or the writer is closed
+	 */
+	CompletableFuture<Integer> submit(String sqlText, StatementBinder binder) {
+		
+		WriteOperation operation = new WriteOperation(sqlText, binder);
+		if (closed || queue.offer(operation) == false) {
+			operation.future.completeExceptionally(new RejectedExecutionException(
+					closed ? "The group commit writer is closed" : "The group commit queue is full"));
+		} else if (stopped && queue.remove(operation)) {
+			/* Queued after the writer thread emptied the queue for the last time */
+			operation.future.completeExceptionally(new RejectedExecutionException("The group commit writer is closed"));
+		}
+		return operation.future;
+	}
+	
+	/**
+	 * Stop accepting statements, commit the statements already queued and 
+	 * return the writer connection to the pool.
+	 */
+	@Override
+	public void close() {
+		
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			queue.put(STOP);
+			writer.join();
+		} catch (InterruptedException iex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void runWriter() {
+		
+		Connection conn = null;
+		List<WriteOperation> group = new ArrayList<WriteOperation>(maxOperations);
+		boolean stopping = false;
+		
+		try {
+			while (stopping == false) {
+				stopping = collectGroup(group);
+				if (group.isEmpty()) {
+					continue;
+				}
+				try {
+					if (conn == null) {
+						conn = pool.getConnection();
+						conn.setAutoCommit(false);
+					}
+					executeGroup(conn, group);
+				} catch (SQLException sqlex) {
+					/* The connection is broken, the next group gets a new one */
+					fail(group, sqlex);
+					returnConnection(conn);
+					conn = null;
+				}
+				group.clear();
+			}
+		} catch (InterruptedException iex) {
+			logger.debug("Group commit writer interrupted");
+		} catch (RuntimeException rex) {
+			logger.error(rex.getMessage(),rex);
+			fail(group, rex);
+		} finally {
+			closed = true;
+			stopped = true;
+			returnConnection(conn);
+			/* Statements queued while the writer stopped are never executed */
+			List<WriteOperation> rest = new ArrayList<WriteOperation>();
+			queue.drainTo(rest);
+			rest.remove(STOP);
+			fail(rest, new RejectedExecutionException("The group commit writer is closed"));
+		}
+	}
+	
+	/*
+	 * Wait for a statement, then take the statements queued within the group 
+	 * delay up to the group size.  Returns true when the writer was closed.
+	 */
+	private boolean collectGroup(List<WriteOperation> group) throws InterruptedException {
+		
+		WriteOperation operation = queue.take();
+		final long deadline = System.nanoTime() + maxDelayNanos;
+		while (operation != STOP) {
+			group.add(operation);
+			if (group.size() == maxOperations) {
+				return false;
+			}
+			operation = queue.poll();
+			if (operation == null) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0L || (operation = queue.poll(remaining, TimeUnit.NANOSECONDS)) == null) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	private void executeGroup(Connection conn, List<WriteOperation> group) throws SQLException {
+		
+		int[] counts = new int[group.size()];
+		Exception[] failures = new Exception[group.size()];
+		
+		for (int ix = 0; ix < group.size(); ix++) {
+			WriteOperation operation = group.get(ix);
+			Savepoint savepoint = conn.setSavepoint();
+			try (PreparedStatement prep = pool.prepareStatement(conn, operation.sqlText, 
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+				if (operation.binder != null) {
+					operation.binder.bind(prep);
+				}
+				counts[ix] = prep.executeUpdate();
+			} catch (SQLException | RuntimeException ex) {
+				conn.rollback(savepoint);
+				failures[ix] = ex;
+			}
+		}
+		
+		try {
+			conn.commit();
+		} catch (SQLException sqlex) {
+			rollbackQuietly(conn);
+			throw sqlex;
+		}
+		for (int ix = 0; ix < group.size(); ix++) {
+			if (failures[ix] == null) {
+				group.get(ix).future.complete(counts[ix]);
+			} else {
+				group.get(ix).future.completeExceptionally(failures[ix]);
+			}
+		}
+		if (logger.isDebugEnabled()) {
+			logger.debug("Group of " + group.size() + " statements committed");
+		}
+	}
+	
+	private void fail(List<WriteOperation> operations, Throwable ex) {
+		for (WriteOperation operation : operations) {
+			operation.future.completeExceptionally(ex);
+		}
+	}
+	
+	private void rollbackQuietly(Connection conn) {
+		
+		try {
+			conn.rollback();
+		} catch (SQLException sqle) {
+			logger.debug(sqle.getMessage(),sqle);
+		}
+	}
+	
+	private void returnConnection(Connection conn) {
+		
+		if (conn != null) {
+			try {
+				rollbackQuietly(conn);
+				pool.closeConnection(conn);
+			} catch (SQLException sqle) {
+				logger.debug(sqle.getMessage(),sqle);
+			}
+		}
+	}
+	
+	private static final class WriteOperation {
+		
+		final String sqlText;
+		final StatementBinder binder;
+		final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+		
+		WriteOperation(String sqlText, StatementBinder binder) {
+			this.sqlText = sqlText;
+			this.binder = binder;
+		}
+	}
+}
@@ -1,119 +1,564 @@
-package net.bobs.own.db.h2.pool;
-
-import java.sql.Connection;
-import java.sql.SQLException;
-import java.text.MessageFormat;
-import java.util.Properties;
-
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
-
-import com.zaxxer.hikari.HikariConfig;
-import com.zaxxer.hikari.HikariDataSource;
-import com.zaxxer.hikari.HikariPoolMXBean;
-
-import net.bobs.own.db.h2.resources.Messages;
-
-  class H2HikariConnectionPool implements IH2ConnectionPool {
-		
-	private Logger logger = LogManager.getLogger(H2HikariConnectionPool.class);
-	private HikariDataSource ds;
-
-	/**
-	 * Creates a HikariCP backed connection pool using a properties file. 
-	 * 
-	 * @param prefKey - identifier for the database preferences to use
-	 */
-
-	public H2HikariConnectionPool(String path)  {
-		
-		logger.debug(Messages.bind(Messages.HikariInitPool_Message, "properties file", path));
-		String config_path = path;
-		ds = null;
-		HikariConfig config = null;
-		config = new HikariConfig(config_path);
-		ds = new HikariDataSource(config);
-	}
-	
-	/**
-	 * Creates a HikariCP backed connection pool using a java.util.Properties object
-	 * 
-	 * @param prop - properties of object of HikariCP configuration information
-	 */
-//	public H2HikariConnectionPool(Properties prop) {
-//		
-//		HikariConfig config = new HikariConfig(prop);
-//		ds = new HikariDataSource(config);
-//	}
-	
-	/**
-	 * Creates a connection pool for the specified database path, user id 
-	 * and maximum number of connections.
-	 * 
-	 * @param dbPath - the path identifying the JDBC database in the jdbc url
-	 * @param userid - the user id to specify for each connection
-	 * @param maxConnections - the maximum number of connections in the pool.
-	 */
-	/*
-	 * Create a JDBC connection.
-	 */
-	@Override
-	public Connection getConnection() throws SQLException {
-
-		Connection conn = null;
-		final String DEBUG_STATUS="Get connection total= {0} active= {1} idle= {2}";
-		String dbgOut = " ";
-		
-		try {			
-			conn = ds.getConnection();
-			HikariPoolMXBean bean = ds.getHikariPoolMXBean();
-			dbgOut = MessageFormat.format(DEBUG_STATUS,bean.getTotalConnections(),
-					bean.getActiveConnections(),bean.getIdleConnections());			
-			logger.debug(dbgOut);
-		}
-		catch (SQLException sqlex) {
-         logger.error(sqlex.getMessage(), sqlex);
-		   javax.swing.JOptionPane.showMessageDialog(null, 
-                	" Connection to database failed ! See log for errors.", "Failed Connection!",
-    						javax.swing.JOptionPane.ERROR_MESSAGE);
-                System.exit(0);
-		}
-		
-		return conn;
-
-	}
-			
-	/**
-	 * Returns a <code>Connection</code> back to the pool, and indicates 
-	 * it is available.
-	 * 
-	 * @param conn - the <code>Connection</code> to be returned
-	 */
-	@Override
-	public synchronized void closeConnection(Connection conn) throws SQLException {
-		
-		final String DEBUG_STATUS="Close connection total= {0} active= {1} idle= {2}";
-		String dbgOut = " ";
-		
-		conn.close();
-		HikariPoolMXBean bean = ds.getHikariPoolMXBean();
-		dbgOut = MessageFormat.format(DEBUG_STATUS,bean.getTotalConnections(),
-				bean.getActiveConnections(),bean.getIdleConnections());			
-		logger.debug(dbgOut);
-	}
-	
-	/**
-	 * Closes and removes <b>all available and in use connections</b>.
-	 * In use connections will issue a commit prior to closing the connection.
-	 * This method should be called to prevent resource leaks from 
-	 * connections which are not properly closed.
-	 */
-
-	@Override
-	public void close() {
-
-		ds.close();
-		
-	}
-
-}
+package net.bobs.own.db.h2.pool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.MessageFormat;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+import net.bobs.own.db.h2.exceptions.NoPreferenceException;
+import net.bobs.own.db.h2.resources.Messages;
+
+  class H2HikariConnectionPool implements IH2ConnectionPool, H2PoolMetrics.Gauges {
+		
+	private Logger logger = LogManager.getLogger(H2HikariConnectionPool.class);
+	private static final long DRAIN_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	private HikariDataSource ds;
+	private H2ConnectionPoolPreferences prefs = null;
+	private int statementCacheSize;
+	private Semaphore partitionLimiter = null;
+	private final Map<Connection,H2StatementCache> statementCaches = new ConcurrentHashMap<Connection,H2StatementCache>();
+	private final LongAdder statementCacheHits = new LongAdder();
+	private final LongAdder statementCacheMisses = new LongAdder();
+	private String poolId = null;
+	private long drainTimeoutMs;
+	private volatile boolean closed = false;
+	private H2PoolMetrics metrics = null;
+	private ScheduledFuture<?> leakDetection = null;
+	private long leakThresholdNanos;
+	private double leakStackSampleRate;
+	/* The borrow of each physical connection handed out, only kept with leak detection on */
+	private final Map<Connection,Borrow> borrows = new ConcurrentHashMap<Connection,Borrow>();
+
+	/**
+	 * Creates a HikariCP backed connection pool using a properties file.  Properties 
+	 * starting with "db." configure this library and are not passed to HikariCP.
+	 * 
+	 * @param path - the properties file path
+	 * @param poolId - the pool identifier, when null the db.poolid property or 
+	 * 				   the HikariCP pool name is used
+	 */
+
+	public H2HikariConnectionPool(String path, String poolId)  {
+		this(path, poolId, H2ConnectionPoolFactory.getInstance().getHousekeeper());
+	}
+	
+	/**
+	 * Creates a HikariCP backed connection pool using a properties file.
+	 * 
+	 * With db.leakDetectionThresholdMs set, a connection in use for longer than 
+	 * the threshold is reported once as a possible leak and counted in the pool 
+	 * metrics.  The HikariCP leak detection is not used for this, it captures 
+	 * a stack on every borrow.  The borrow time of every connection is recorded, 
+	 * the stack only for a sampled share (db.leakStackSampleRate) of the borrows.
+	 * 
+	 * @param path - the properties file path
+	 * @param poolId - the pool identifier
+	 * @param housekeeper - the scheduler running the leak detection
+	 */
+	H2HikariConnectionPool(String path, String poolId, ScheduledExecutorService housekeeper)  {
+		
+		logger.debug(Messages.bind(Messages.HikariInitPool_Message, "properties file", path));
+		ds = null;
+		HikariConfig config = null;
+		Properties hikariProps = loadProperties(path);
+		prefs = new H2ConnectionPoolPreferences(extractPoolProperties(hikariProps));
+		statementCacheSize = prefs.getdbStatementCacheSize();
+		drainTimeoutMs = prefs.getdbDrainTimeoutMs();
+		config = new HikariConfig(hikariProps);
+		applyUrlSettings(config);
+		leakThresholdNanos = TimeUnit.MILLISECONDS.toNanos(prefs.getdbLeakDetectionThresholdMs());
+		leakStackSampleRate = leakThresholdNanos > 0L ? prefs.getdbLeakStackSampleRate() : 0.0;
+		this.poolId = resolvePoolId(poolId, config);
+		if (config.getPoolName() == null) {
+			config.setPoolName(this.poolId);
+		}
+		metrics = new H2PoolMetrics(this.poolId, this) {
+			/* HikariCP does not report closed connections, every connection it 
+			 * created and no longer holds has been closed. 
+			 */
+			@Override
+			public long getTotalDestroyed() {
+				return Math.max(0L, getTotalCreated() - getTotalConnections());
+			}
+		};
+		config.setMetricsTrackerFactory(new MetricsTrackerFactory() {
+			@Override
+			public IMetricsTracker create(String poolName, PoolStats poolStats) {
+				return new MetricsTracker();
+			}
+		});
+		long warmUpStart = System.nanoTime();
+		ds = new HikariDataSource(config);
+		metrics.recordWarmUp(System.nanoTime() - warmUpStart);
+		if (config.getInitializationFailTimeout() >= 0) {
+			/* The fail fast check opens a connection before HikariCP installs the tracker */
+			metrics.recordCreated();
+		}
+		metrics.recordPoolSizeLimit(ds.getMaximumPoolSize());
+		metrics.register();
+		partitionLimiter = new Semaphore(prefs.getdbMaxScanPartitions(ds.getMaximumPoolSize()), true);
+		
+		if (leakThresholdNanos > 0L) {
+			/* Check at half the threshold, a leak is reported at most 1.5 thresholds late */
+			long leakPeriodMs = Math.max(100L, TimeUnit.NANOSECONDS.toMillis(leakThresholdNanos) / 2);
+			leakDetection = housekeeper.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					detectLeaks();
+				}
+			}, leakPeriodMs, leakPeriodMs, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Creates a HikariCP backed connection pool using a java.util.Properties object
+	 * 
+	 * @param prop - properties of object of HikariCP configuration information
+	 */
+//	public H2HikariConnectionPool(Properties prop) {
+//		
+//		HikariConfig config = new HikariConfig(prop);
+//		ds = new HikariDataSource(config);
+//	}
+	
+	/**
+	 * Creates a connection pool for the specified database path, user id 
+	 * and maximum number of connections.
+	 * 
+	 * @param dbPath - the path identifying the JDBC database in the jdbc url
+	 * @param userid - the user id to specify for each connection
+	 * @param maxConnections - the maximum number of connections in the pool.
+	 */
+	/*
+	 * Create a JDBC connection.
+	 */
+	@Override
+	public Connection getConnection() throws SQLException {
+
+		Connection conn = null;
+		final String DEBUG_STATUS="Get connection total= {0} active= {1} idle= {2}";
+		
+		if (closed) {
+			throw new SQLException(Messages.bind(Messages.errormsg_pool_closed, poolId));
+		}
+		try {			
+			conn = ds.getConnection();
+			if (leakThresholdNanos > 0L) {
+				borrows.put(conn.unwrap(Connection.class), new Borrow(conn, System.nanoTime(), sampleBorrowStack()));
+			}
+			if (logger.isDebugEnabled()) {
+				logger.debug(MessageFormat.format(DEBUG_STATUS,getTotalConnections(),
+						getActiveConnections(),getIdleConnections()));
+			}
+		}
+		catch (SQLException sqlex) {
+         logger.error(sqlex.getMessage(), sqlex);
+		   javax.swing.JOptionPane.showMessageDialog(null, 
+                	" Connection to database failed ! See log for errors.", "Failed Connection!",
+    						javax.swing.JOptionPane.ERROR_MESSAGE);
+                System.exit(0);
+		}
+		
+		return conn;
+
+	}
+			
+	/**
+	 * Returns a <code>Connection</code> back to the pool, and indicates 
+	 * it is available.
+	 * 
+	 * @param conn - the <code>Connection</code> to be returned
+	 */
+	@Override
+	public void closeConnection(Connection conn) throws SQLException {
+		
+		final String DEBUG_STATUS="Close connection total= {0} active= {1} idle= {2}";
+		
+		if (leakThresholdNanos > 0L && conn.isClosed() == false) {
+			Connection physical = conn.unwrap(Connection.class);
+			Borrow borrow = borrows.get(physical);
+			if (borrow != null && borrow.proxy == conn && borrows.remove(physical, borrow) && borrow.reported) {
+				logger.warn(Messages.bind(Messages.H2LeakReturned_Message, poolId, 
+						TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - borrow.borrowedNanos)));
+			}
+		}
+		conn.close();
+		if (logger.isDebugEnabled()) {
+			logger.debug(MessageFormat.format(DEBUG_STATUS,getTotalConnections(),
+					getActiveConnections(),getIdleConnections()));
+		}
+	}
+	
+	/**
+	 * Prepare a statement using a statement cache kept for the physical connection 
+	 * behind the HikariCP connection proxy.
+	 * 
+	 * @see IH2ConnectionPool#prepareStatement(Connection, String, int, int)
+	 */
+	@Override
+	public PreparedStatement prepareStatement(Connection conn, String sqlText, int resultSetType, 
+											  int resultSetConcurrency) throws SQLException {
+		
+		if (statementCacheSize <= 0) {
+			return conn.prepareStatement(sqlText, resultSetType, resultSetConcurrency);
+		}
+		
+		Connection physical = conn.unwrap(Connection.class);
+		H2StatementCache cache = statementCaches.get(physical);
+		if (cache == null) {
+			/* A new physical connection, HikariCP may have retired others in the meantime */
+			removeClosedStatementCaches();
+			cache = new H2StatementCache(physical, statementCacheSize, statementCacheHits, statementCacheMisses);
+			statementCaches.put(physical, cache);
+		}
+		return cache.prepareStatement(conn, sqlText, resultSetType, resultSetConcurrency);
+	}
+	
+	@Override
+	public int getMaxConnections() {
+		return ds.getMaximumPoolSize();
+	}
+	
+	@Override
+	public Semaphore getPartitionLimiter() {
+		return partitionLimiter;
+	}
+	
+	@Override
+	public long getStatementCacheHits() {
+		return statementCacheHits.sum();
+	}
+	
+	@Override
+	public long getStatementCacheMisses() {
+		return statementCacheMisses.sum();
+	}
+	
+	@Override
+	public String getPoolId() {
+		return poolId;
+	}
+	
+	@Override
+	public H2PoolMetricsMXBean getMetrics() {
+		return metrics;
+	}
+	
+	@Override
+	public int getActiveConnections() {
+		HikariPoolMXBean bean = poolBean();
+		return bean == null ? 0 : bean.getActiveConnections();
+	}
+	
+	@Override
+	public int getIdleConnections() {
+		HikariPoolMXBean bean = poolBean();
+		return bean == null ? 0 : bean.getIdleConnections();
+	}
+	
+	@Override
+	public int getPendingThreads() {
+		HikariPoolMXBean bean = poolBean();
+		return bean == null ? 0 : bean.getThreadsAwaitingConnection();
+	}
+	
+	@Override
+	public int getTotalConnections() {
+		HikariPoolMXBean bean = poolBean();
+		return bean == null ? 0 : bean.getTotalConnections();
+	}
+	
+	/**
+	 * Closes and removes <b>all available and in use connections</b>.
+	 * The pool stops lending connections and waits up to db.drainTimeoutMs 
+	 * for in use connections to be returned, then runs a CHECKPOINT and closes 
+	 * HikariCP.  HikariCP closes connections still in use, H2 rolls back their
+	 * uncommitted work.
+	 * This method should be called to prevent resource leaks from 
+	 * connections which are not properly closed.
+	 */
+
+	@Override
+	public void close() {
+
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (leakDetection != null) {
+			leakDetection.cancel(false);
+		}
+		
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMs);
+		while (getActiveConnections() > 0 && deadline - System.nanoTime() > 0L) {
+			LockSupport.parkNanos(this, DRAIN_POLL_NANOS);
+			if (Thread.currentThread().isInterrupted()) {
+				break;
+			}
+		}
+		if (getActiveConnections() > 0) {
+			logger.debug(MessageFormat.format("Close pool {0} with {1} connections in use", 
+					poolId, getActiveConnections()));
+		}
+		checkpoint();
+		
+		for (H2StatementCache cache : statementCaches.values()) {
+			cache.close();
+		}
+		statementCaches.clear();
+		borrows.clear();
+		metrics.unregister();
+		H2ConnectionPoolFactory.getInstance().removePool(poolId, this);
+		ds.close();
+		
+	}
+	
+	/*
+	 * Write the database to disk so that the next open needs no recovery.
+	 */
+	private void checkpoint() {
+		
+		try (Connection conn = ds.getConnection(); Statement stmt = conn.createStatement()) {
+			stmt.execute("CHECKPOINT");
+		} catch (SQLException sqle) {
+			logger.debug(sqle.getMessage(), sqle);
+		}
+	}
+	
+	/*
+	 * Report the connections in use for longer than the leak detection 
+	 * threshold, each borrow is reported once.  Borrows of connections closed 
+	 * without closeConnection() are dropped here.
+	 */
+	private void detectLeaks() {
+		
+		try {
+			long now = System.nanoTime();
+			for (Map.Entry<Connection,Borrow> entry : borrows.entrySet()) {
+				Borrow borrow = entry.getValue();
+				if (isClosed(borrow.proxy)) {
+					borrows.remove(entry.getKey(), borrow);
+					continue;
+				}
+				if (borrow.reported == false && now - borrow.borrowedNanos > leakThresholdNanos) {
+					borrow.reported = true;
+					metrics.recordLeakDetected();
+					logger.warn(Messages.bind(Messages.H2LeakDetected_Message, new Object[] {poolId, 
+							TimeUnit.NANOSECONDS.toMillis(now - borrow.borrowedNanos), 
+							TimeUnit.NANOSECONDS.toMillis(leakThresholdNanos)}), borrow.stack);
+				}
+			}
+		} catch (RuntimeException rex) {
+			//An exception would cancel the scheduled leak detection
+			logger.error(rex.getMessage(),rex);
+		}
+	}
+	
+	private boolean isClosed(Connection conn) {
+		
+		try {
+			return conn.isClosed();
+		} catch (SQLException sqle) {
+			return true;
+		}
+	}
+	
+	/*
+	 * Capture the stack of the borrowing thread for the sampled share of borrows.
+	 */
+	private Throwable sampleBorrowStack() {
+		
+		if (leakStackSampleRate <= 0.0) {
+			return null;
+		}
+		if (leakStackSampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= leakStackSampleRate) {
+			return null;
+		}
+		return new Exception("Connection borrowed from pool " + poolId + " by thread " + 
+							 Thread.currentThread().getName());
+	}
+	
+	/*
+	 * The HikariCP pool bean, null until the pool is started and after it is closed.
+	 */
+	private HikariPoolMXBean poolBean() {
+		return (ds == null || ds.isClosed()) ? null : ds.getHikariPoolMXBean();
+	}
+	
+	/*
+	 * The pool id given by the caller, else the db.poolid property, else the 
+	 * HikariCP pool name.
+	 */
+	private String resolvePoolId(String poolId, HikariConfig config) {
+		
+		if (poolId != null) {
+			return poolId;
+		}
+		try {
+			return prefs.getdbPoolid();
+		} catch (NoPreferenceException npex) {
+			logger.debug(npex.getMessage());
+		}
+		if (config.getPoolName() != null) {
+			return config.getPoolName();
+		}
+		return "hikari@" + Integer.toHexString(System.identityHashCode(this));
+	}
+	
+	/*
+	 * Feeds the connections created and the acquire wait times reported by 
+	 * HikariCP into the pool metrics.
+	 */
+	private class MetricsTracker implements IMetricsTracker {
+		
+		@Override
+		public void recordConnectionCreatedMillis(long connectionCreatedMillis) {
+			metrics.recordCreated();
+		}
+		
+		@Override
+		public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+			metrics.recordAcquire(elapsedAcquiredNanos);
+		}
+	}
+	
+	/*
+	 * Drop the statement caches of physical connections closed by HikariCP.
+	 */
+	private void removeClosedStatementCaches() {
+		
+		Iterator<Map.Entry<Connection,H2StatementCache>> it = statementCaches.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Connection,H2StatementCache> cacheEntry = it.next();
+			try {
+				if (cacheEntry.getKey().isClosed()) {
+					cacheEntry.getValue().close();
+					it.remove();
+				}
+			} catch (SQLException sqlex) {
+				logger.debug(sqlex.getMessage(), sqlex);
+			}
+		}
+	}
+	
+	/*
+	 * Load the pool properties the same way HikariConfig does, from a file or 
+	 * from the class path.
+	 */
+	private Properties loadProperties(String path) {
+		
+		Properties props = new Properties();
+		File propFile = new File(path);
+		try (InputStream is = propFile.isFile() ? new FileInputStream(propFile) 
+												: getClass().getResourceAsStream(path)) {
+			if (is == null) {
+				throw new IllegalArgumentException("Cannot find property file: " + path);
+			}
+			props.load(is);
+		} catch (IOException ioex) {
+			throw new RuntimeException("Failed to read property file " + path, ioex);
+		}
+		return props;
+	}
+	
+	/*
+	 * Build the H2 URL with the same builder as the MYOWN pool.  With db.path the 
+	 * URL is built from the pool properties, otherwise the db.h2.* settings are 
+	 * added to the jdbcUrl or dataSource.url of the HikariCP properties.
+	 */
+	private void applyUrlSettings(HikariConfig config) {
+		
+		Properties dsProps = config.getDataSourceProperties();
+		String urlKey = dsProps.containsKey("URL") ? "URL" : "url";
+		boolean useDataSource = config.getDataSourceClassName() != null;
+		H2UrlBuilder url = null;
+		
+		try {
+			url = new H2UrlBuilder(prefs.getdbPath());
+		} catch (NoPreferenceException npex) {
+			if (prefs.hasdbH2Options() == false) {
+				return;
+			}
+			String current = useDataSource ? dsProps.getProperty(urlKey) : config.getJdbcUrl();
+			if (current == null) {
+				logger.debug("No H2 URL found for the db.h2 settings");
+				return;
+			}
+			url = H2UrlBuilder.fromUrl(current);
+		}
+		
+		url.applyPreferences(prefs);
+		if (config.getUsername() == null && useDataSource == false) {
+			try {
+				config.setUsername(prefs.getdbUser());
+				config.setPassword(prefs.getdbPassword());
+			} catch (NoPreferenceException npex) {
+				logger.debug(npex.getMessage());
+			}
+		}
+		if (useDataSource) {
+			dsProps.setProperty(urlKey, url.build());
+		} else {
+			config.setJdbcUrl(url.build());
+		}
+		logger.debug(Messages.bind(Messages.HikariInitPool_Message, "url", url.toString()));
+	}
+	
+	/*
+	 * Move the "db." properties of this library out of the HikariCP properties.
+	 */
+	private Properties extractPoolProperties(Properties hikariProps) {
+		
+		Properties poolProps = new Properties();
+		for (String key : hikariProps.stringPropertyNames()) {
+			if (key.startsWith("db.")) {
+				poolProps.setProperty(key, hikariProps.getProperty(key));
+				hikariProps.remove(key);
+			}
+		}
+		return poolProps;
+	}
+	
+	/*
+	 * A connection handed out, only the leak detection changes reported.
+	 */
+	private static final class Borrow {
+		
+		private final Connection proxy;
+		private final long borrowedNanos;
+		private final Throwable stack;
+		private volatile boolean reported = false;
+		
+		Borrow(Connection proxy, long borrowedNanos, Throwable stack) {
+			this.proxy = proxy;
+			this.borrowedNanos = borrowedNanos;
+			this.stack = stack;
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/* 
+ ******************************************************************************
+ * H2DbLib provides a simple connection pool for establishing connections to 
+ * an embedded H2 database.
+ * This file is part of H2DBLib.
+ *  
+ * Copyright (c) 2016-2017 Robert W. Anderson.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Robert W. Anderson - initial API and implementation and/or initial documentation
+ *    
+ * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
+ * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
+ * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
+ * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
+ * PARTICULAR PURPOSE.   
+ ******************************************************************************
+ */
+package net.bobs.own.db.h2.pool;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram of durations in nanoseconds.  Values are counted in 
+ * logarithmic buckets, every power of two is split into 8 sub buckets, so a 
+ * percentile is reported within about 12% of the recorded value.  
+ * 
+ * Acquire times of a healthy pool mostly land in the same few buckets, so 
+ * every bucket is a LongAdder, threads recording into the same bucket add to 
+ * separate cells instead of contending on one counter.  The count is the sum 
+ * of the buckets and the maximum is only written when a value exceeds it.  
+ * Reads sum the cells, they are meant for monitoring and not for a hot path.
+ * 
+ * The histogram is cumulative, percentiles cover every value recorded since it 
+ * was created or last reset.  Reset it to see the current behaviour of a long 
+ * running pool, old values otherwise hide a recent change.
+ * 
+ * @author Robert Anderson
+ *
+ */
+class H2LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+	
+	private final LongAdder[] counts = new LongAdder[BUCKETS];
+	private final AtomicLong max = new AtomicLong(0);
+	
+	H2LatencyHistogram() {
+		
+		for (int ix = 0; ix < BUCKETS; ix++) {
+			counts[ix] = new LongAdder();
+		}
+	}
+	
+	/**
+	 * Count a duration.
+	 * 
+	 * @param nanos - the duration in nanoseconds, negative values count as 0
+	 */
+	void record(long nanos) {
+		
+		long value = Math.max(0L, nanos);
+		counts[bucketIndex(value)].increment();
+		if (value > max.get()) {
+			updateMax(value);
+		}
+	}
+	
+	/**
+	 * @return - the number of recorded values
+	 */
+	long getCount() {
+		
+		long total = 0;
+		for (int ix = 0; ix < BUCKETS; ix++) {
+			total += counts[ix].sum();
+		}
+		return total;
+	}
+	
+	/**
+	 * @return - the largest recorded value in nanoseconds
+	 */
+	long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * Compute a percentile of the recorded values.
+	 * 
+	 * @param percentile - the percentile, between 0 and 100
+	 * @return - the upper bound of the bucket holding the percentile, in 
+	 * 			 nanoseconds, or 0 if nothing was recorded
+	 */
+	long getPercentile(double percentile) {
+		
+		long total = getCount();
+		if (total == 0) {
+			return 0L;
+		}
+		
+		long rank = Math.max(1L, (long) Math.ceil(total * percentile / 100.0));
+		long seen = 0;
+		for (int ix = 0; ix < BUCKETS; ix++) {
+			seen += counts[ix].sum();
+			if (seen >= rank) {
+				return Math.min(bucketUpperBound(ix), getMax());
+			}
+		}
+		return getMax();
+	}
+	
+	/**
+	 * Forget the recorded values.  Values recorded while the reset runs may be 
+	 * kept or dropped.
+	 */
+	void reset() {
+		
+		for (int ix = 0; ix < BUCKETS; ix++) {
+			counts[ix].reset();
+		}
+		max.set(0L);
+	}
+	
+	private void updateMax(long value) {
+		
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				break;
+			}
+		}
+	}
+	
+	static int bucketIndex(long value) {
+		
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+	
+	static long bucketUpperBound(int index) {
+		
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = index % SUB_BUCKETS;
+		long lower = (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return lower + width - 1 < 0 ? Long.MAX_VALUE : lower + width - 1;
+	}
+}
@@ -0,0 +1,265 @@
+/* 
+ ******************************************************************************
+ * H2DbLib provides a simple connection pool for establishing connections to 
+ * an embedded H2 database.
+ * This file is part of H2DBLib.
+ *  
+ * Copyright (c) 2016-2017 Robert W. Anderson.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Robert W. Anderson - initial API and implementation and/or initial documentation
+ *    
+ * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
+ * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
+ * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
+ * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
+ * PARTICULAR PURPOSE.   
+ ******************************************************************************
+ */
+package net.bobs.own.db.h2.pool;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.MessageFormat;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import net.bobs.own.db.h2.exceptions.NoPreferenceException;
+import net.bobs.own.db.h2.resources.Messages;
+
+/**
+ * A connection pool for an in memory H2 database that is kept on disk as 
+ * compressed SQL snapshots.  Queries and updates never wait for file I/O, 
+ * in exchange the work done since the last snapshot is lost if the process dies.
+ * 
+ * The database is opened as jdbc:h2:mem:&lt;name&gt; with DB_CLOSE_DELAY=-1, 
+ * where the name is the last part of db.path.  When the pool is created the 
+ * database is loaded from the snapshot file db.snapshotPath (default 
+ * &lt;db.path&gt;.snapshot) with RUNSCRIPT, if the file exists.  A snapshot is 
+ * written with SCRIPT ... COMPRESSION every db.snapshotIntervalMs milliseconds 
+ * (default 60000, 0 writes snapshots only at close) and when the pool is closed, 
+ * then the in memory database is shut down.  A snapshot is written to a 
+ * temporary file first and then renamed, so a crash while writing keeps the 
+ * previous snapshot.  db.snapshotCompression selects the H2 compression 
+ * (DEFLATE, LZF, ZIP or GZIP, default DEFLATE).
+ * 
+ * Apart from that the pool works as <code>H2MyOwnConnectionPool</code>.
+ * 
+ * @author Robert Anderson
+ *
+ */
+class H2MemoryConnectionPool extends H2MyOwnConnectionPool {
+
+	private static Logger logger = LogManager.getLogger(H2MemoryConnectionPool.class);
+	private static final String DRIVER_NAME = "org.h2.Driver";
+	private final File snapshotFile;
+	private final String compression;
+	private ScheduledExecutorService snapshotter = null;
+	private boolean shutdown = false;
+	
+	/**
+	 * Creates an in memory connection pool and loads the database from its snapshot.
+	 * 
+	 * @param url - .properties file URL
+	 * @param poolId - the pool identifier, when null the db.poolid property is used
+	 * @param housekeeper - the scheduler running the housekeeping of the pool
+	 * @throws IOException - the preferences could not be read
+	 * @throws SQLException - the snapshot could not be loaded
+	 */
+	H2MemoryConnectionPool(URL url, String poolId, ScheduledExecutorService housekeeper) 
+			throws IOException, SQLException {
+		
+		super(restore(new H2ConnectionPoolPreferences(url)), poolId, housekeeper);
+		
+		H2ConnectionPoolPreferences prefs = getPreferences();
+		snapshotFile = snapshotFile(prefs);
+		compression = prefs.getdbSnapshotCompression();
+		long intervalMs = prefs.getdbSnapshotIntervalMs();
+		if (intervalMs > 0) {
+			/* A snapshot can take long, it gets its own thread instead of the shared housekeeper */
+			ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, 
+					H2ConnectionPoolFactory.daemonThreadFactory("h2-snapshot-" + getPoolId() + "-"));
+			scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						snapshot();
+					} catch (RuntimeException rex) {
+						//An exception would cancel the scheduled snapshots
+						logger.error(rex.getMessage(),rex);
+					}
+				}
+			}, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+			snapshotter = scheduler;
+		}
+	}
+	
+	/**
+	 * The in memory database URL, the database stays open while the pool has no connections.
+	 */
+	@Override
+	H2UrlBuilder connectionUrl() throws NoPreferenceException {
+		return memoryUrl(getPreferences());
+	}
+	
+	/**
+	 * Closes the pool as <code>H2MyOwnConnectionPool.close()</code>, then writes 
+	 * a final snapshot and shuts the in memory database down.
+	 */
+	@Override
+	public void close() {
+		
+		if (snapshotter != null) {
+			snapshotter.shutdownNow();
+		}
+		super.close();
+		
+		synchronized (this) {
+			if (shutdown) {
+				return;
+			}
+			shutdown = true;
+			try (Connection conn = openDirect(getPreferences());
+				 Statement stmt = conn.createStatement()) {
+				writeSnapshot(conn);
+				stmt.execute("SHUTDOWN");
+			} catch (NoPreferenceException | SQLException | IOException ex) {
+				logger.error(ex.getMessage(),ex);
+			}
+		}
+	}
+	
+	/**
+	 * Write a snapshot of the database now.
+	 * 
+	 * @return - true if the snapshot was written
+	 */
+	synchronized boolean snapshot() {
+		
+		if (shutdown) {
+			return false;
+		}
+		Connection conn = null;
+		try {
+			conn = getConnection();
+			writeSnapshot(conn);
+			return true;
+		} catch (SQLException | IOException ex) {
+			logger.error(ex.getMessage(),ex);
+			return false;
+		} finally {
+			closeConnection(conn);
+		}
+	}
+	
+	private void writeSnapshot(Connection conn) throws SQLException, IOException {
+		
+		long start = System.nanoTime();
+		File parent = snapshotFile.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			Files.createDirectories(parent.toPath());
+		}
+		File temp = new File(snapshotFile.getAbsolutePath() + ".tmp");
+		try (Statement stmt = conn.createStatement()) {
+			stmt.execute("SCRIPT TO " + quote(temp.getAbsolutePath()) + " COMPRESSION " + compression);
+		}
+		Files.move(temp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, 
+				   StandardCopyOption.ATOMIC_MOVE);
+		if (logger.isDebugEnabled()) {
+			logger.debug(MessageFormat.format("Snapshot of pool {0} written to {1} in {2} ms", getPoolId(), 
+					snapshotFile, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+		}
+	}
+	
+	/*
+	 * Create the in memory database and load the snapshot, before the pool opens 
+	 * its connections.  DB_CLOSE_DELAY=-1 keeps the loaded database open.
+	 */
+	private static H2ConnectionPoolPreferences restore(H2ConnectionPoolPreferences prefs) 
+			throws SQLException {
+		
+		try (Connection conn = openDirect(prefs)) {
+			File snapshot = snapshotFile(prefs);
+			if (snapshot.isFile()) {
+				long start = System.nanoTime();
+				try (Statement stmt = conn.createStatement()) {
+					stmt.execute("RUNSCRIPT FROM " + quote(snapshot.getAbsolutePath()) + 
+								 " COMPRESSION " + prefs.getdbSnapshotCompression());
+				}
+				logger.debug(MessageFormat.format("Snapshot {0} loaded in {1} ms", snapshot, 
+						TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+			}
+		} catch (NoPreferenceException npex) {
+			logger.error(npex.getMessage(),npex);
+		}
+		return prefs;
+	}
+	
+	private static Connection openDirect(H2ConnectionPoolPreferences prefs) 
+			throws NoPreferenceException, SQLException {
+		
+		try {
+			Class.forName(DRIVER_NAME);
+		} catch (ClassNotFoundException cex) {
+			logger.error(cex.getMessage(),cex);
+			throw new RuntimeException(cex.getMessage(),cex);
+		}
+		return DriverManager.getConnection(memoryUrl(prefs).build());
+	}
+	
+	private static H2UrlBuilder memoryUrl(H2ConnectionPoolPreferences prefs) throws NoPreferenceException {
+		
+		H2UrlBuilder url = new H2UrlBuilder("mem:" + memoryName(prefs.getdbPath())).user(prefs.getdbUser());
+		if (prefs.getdbPassword() != null) {
+			url.password(prefs.getdbPassword());
+		}
+		return url.applyPreferences(prefs).dbCloseDelaySeconds(-1);
+	}
+	
+	private static String memoryName(String path) {
+		
+		if (path.startsWith("mem:")) {
+			return path.substring("mem:".length());
+		}
+		return new File(path).getName();
+	}
+	
+	private static File snapshotFile(H2ConnectionPoolPreferences prefs) {
+		
+		String path = prefs.getdbSnapshotPath();
+		if (path == null) {
+			try {
+				path = prefs.getdbPath() + ".snapshot";
+			} catch (NoPreferenceException npex) {
+				throw new IllegalStateException(npex.getMessage(), npex);
+			}
+			if (path.startsWith("mem:")) {
+				throw new IllegalStateException(Messages.bind(Messages.errormsg_noproperty_exist, "db.snapshotPath"));
+			}
+		}
+		if (path.startsWith("~")) {
+			path = System.getProperty("user.home") + path.substring(1);
+		}
+		return new File(path);
+	}
+	
+	private static String quote(String text) {
+		return "'" + text.replace("'", "''") + "'";
+	}
+}
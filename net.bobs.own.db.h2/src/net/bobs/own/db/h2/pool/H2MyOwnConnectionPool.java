@@ -1,349 +1,975 @@
-/* 
- ******************************************************************************
- * H2DbLib provides a simple connection pool for establishing connections to 
- * an embedded H2 database.
- * This file is part of H2DBLib.
- *  
- * Copyright (c) 2016-2017 Robert W. Anderson.
- * All rights reserved. This program and the accompanying materials
- * are made available under the terms of the Eclipse Public License v1.0
- * which accompanies this distribution, and is available at
- * http://www.eclipse.org/legal/epl-v10.html
- *
- * Contributors:
- *    Robert W. Anderson - initial API and implementation and/or initial documentation
- *    
- * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
- * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
- * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
- * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
- * PARTICULAR PURPOSE.   
- ******************************************************************************
- */
-package net.bobs.own.db.h2.pool;
-
-import java.io.IOException;
-import java.net.URL;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.SQLException;
-import java.text.MessageFormat;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Properties;
-
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
-
-import net.bobs.own.db.h2.exceptions.NoPreferenceException;
-import net.bobs.own.db.h2.resources.Messages;
-
-/*
- *	I used http://javaprogramming.language-tutorial.com/2012/09/a-sample-java-code-for-connection.html
- * 	as the model for this connection pool.  The closeAllConnections method is 
- * 	my own creation.
- * 	
- * 	August 31,2016
- */
-
-/**
- * A non thread safe simple connection pool for JDBC H2 database connections.  The pool creates 
- * and manages a list of n connections for a H2 database. The maximum number of 
- * available connections can be configured, but if no value is provided a default 
- * of 25 connections is used.  One instance of the connection pool is needed for 
- * each H2 database.   Each occurrence of a connection pool maintains a list of 
- * available and in use connections.  These lists are updated appropriately when
- * a JDBC connection is obtained from the pool or released back to the pool.
- * 
- * The class implements the runnable interface which manages the list of 
- * available connections so that it does not exceed the maximum connections 
- * specified at pool creation.  The database name, database path, maximum 
- * connections and other values are configurable using a .properties file.  The
- * <code>H2DbPreferencesUtil</code>  class should be used to provide assistance
- * for configuration of the connection pool.
- * 
- * 
- * 
- * @author Robert Anderson
- *
- */
- 	class H2MyOwnConnectionPool extends Thread implements IH2ConnectionPool {
-		
-		/* Default value, may be overridden by db.max_connections property */
-	  	private List<Connection> available_connections = null;
-	  	private List<Connection> inuse_connections = null;
-		private Thread cleanupThread = null;
-			
-		private Logger logger = LogManager.getLogger(H2MyOwnConnectionPool.class);
-		private final String DRIVER_NAME = "org.h2.Driver";
-		private boolean 	terminate = false;
-		private H2ConnectionPoolPreferences prefs = null;
-		private int max_connections;		
-		
-		/**
-		 * Creates a connection pool using the database preferences identified 
-		 * by a key values in a properties file. 
-		 * 
-		 * 
-		 * @param url - .properties file URL
-		 */
-		public H2MyOwnConnectionPool(URL url) throws IOException {
-
-			logger.debug(Messages.bind(Messages.H2InitPool_Message,"url",url.toString()));
-			prefs = new H2ConnectionPoolPreferences(url);	
-			initConnectionPool();
-			
-		}
-      
-		/**
-		 * Obtains an available connection from the pool and marks it as in use. 
-		 * 
-		 * @return - a JDBC <code>Connection</code> 
-		 */
-		@Override 
-		public synchronized Connection getConnection() throws SQLException {
-			
-			Connection conn = null;
-			final String DEBUG_STATUS = "Get connection available= {0} inuse= {1})";
-			String  dbgOut = " ";
-					
-			if (available_connections.size () == 0) {
-				try {
-				conn = createConnections();
-				} catch (NoPreferenceException npex) {
-					//Only log the error since the preference specifications is the responsibility of the developer
-					logger.debug(npex.getMessage(), npex);
-				}
-				available_connections.add(conn);
-				dbgOut = MessageFormat.format(DEBUG_STATUS, available_connections.size(),
-							inuse_connections.size());
-				logger.debug(dbgOut);
-			} else {
-				conn = available_connections.remove(available_connections.size()-1);
-				inuse_connections.add(conn);
-				dbgOut = MessageFormat.format(DEBUG_STATUS, available_connections.size(),
-						inuse_connections.size());
-				logger.debug(dbgOut);
-			}
-			return conn;
-		}
-				
-		/**
-		 * Returns a <code>Connection</code> back to the pool, and indicates 
-		 * it is available.
-		 * 
-		 * @param conn - the <code>Connection</code> to be returned
-		 */
-		@Override
-		public synchronized void closeConnection(Connection conn) {
-			/* It's a bit of a kludge, BUT make sure the connection being 
-			 * released is in the inuse_connections before removing it AND
-			 * make sure it's NOT in the available_connections before adding it.
-			 * 
-			 * If I DON'T do this then the current logic ends up adding 
-			 * duplicate connections to the available connections list.
-			 */
-			
-			final String DEBUG_OUT = "Close connection available= {0} inuse= {1}";
-			String dbgOut = " ";
-			
-			if (conn != null) {
-				if (inuse_connections.contains(conn)) {
-					inuse_connections.remove(conn);
-				}
-				if (available_connections.contains(conn) == false) {
-					logger.debug("release connections addded connection");
-//					dbgOut = MessageFormat.format(DEBUG_OUT, available_connections.size(),
-//							inuse_connections.size());
-//					available_connections.add(conn);
-				}
-			dbgOut = MessageFormat.format(DEBUG_OUT, available_connections.size(),
-											inuse_connections.size());	
-			logger.debug(dbgOut);
-			}
-		}
-		
-		/**
-		 * Closes and removes <b>all available and in use connections</b>.
-		 * In use connections will issue a commit prior to closing the connection.
-		 * This method should be called to prevent resource leaks from 
-		 * connections which are not properly closed.
-		 */
-		/*
-		 *	I AM SURE closing in use connections is a bad idea. BUT since I don't
-		 * 	currently have a need to wait for in flight transactions to finish,
-		 * 	I am not going to try and figure out how to wait until all the 
-		 * 	in use connections are available...
-		 */
-		@Override
-		public void close() {
-			
-			for (int count = 0; count < available_connections.size();count++) {
-				Connection conn = available_connections.get(count);
-				try {
-					if (conn.isClosed()) {
-						available_connections.remove(count);
-					} else {
-						conn.close();
-						available_connections.remove(count);
-					}
-				} catch (SQLException sqex) {
-					logger.debug(sqex.getMessage(),sqex);
-				}
-			}
-			
-			for (int count = 0; count < inuse_connections.size();count++) {
-				Connection conn = inuse_connections.get(count);
-				try {
-					if (conn.isClosed()) {
-						inuse_connections.remove(count);
-					} else {
-						conn.commit();
-						conn.close();
-						inuse_connections.remove(count);
-					}
-				} catch (SQLException sqex) {
-					logger.debug(sqex.getMessage(),sqex);
-				}
-			}
-			
-			String poolId = " ";
-			try {
-			poolId = prefs.getdbPoolid();
-//			H2PoolController.closePool(poolId);
-			} catch (NoPreferenceException npex) {
-				//Do nothing...
-			}
-			logger.debug(MessageFormat.format("Close pool {0} available= {1} inuse={2}", poolId,
-					available_connections.size(),inuse_connections.size()));
-			cleanupThread.interrupt();	
-			terminate = true;
-			interrupt();
-			
-		}
-		
-		/**
-		 * Returns the number of available connections in the pool currently.
-		 * 
-		 * @return - the number of available connections
-		 */
-		private int availableCount() 
-	    { 
-	        return available_connections.size(); 
-	    } 
-	     
-		
-		/**
-		 * Responsible for creation of a separate thread to close and remove 
-		 * JDBC connections. When the count of available connections is greater
-		 * than the maximum number of connections the excess connections are
-		 * closed and removed from the list of available connections.
-		 */
-	    public void run() 
-	    { 
-	        try 
-	        { 
-	            while(terminate == false) 
-	            { 
-	                synchronized(this) 
-	                { 
-	                	
-	                    while(available_connections.size() > max_connections) 
-	                    { 
-	                        // Clean up extra available connections. 
-	                        Connection conn = (Connection)available_connections.remove(available_connections.size()-1); 
-	                        available_connections.remove(conn); 
-	                         
-	                        // Close the connection to the database. 
-	                        if (conn.isClosed()) {
-	                        	available_connections.remove(conn);
-	                        	conn = getConnection();
-	                        	available_connections.add(conn);
-	                        } else {
-	                        	conn.close(); 
-	                        }
-	                    } 
-	                     
-	                    // Clean up is done 
-	                } 
-	                 
-	                logger.debug("CLEANUP : Available Connections : " + availableCount()); 
-	                 
-	                // Now sleep for 1 minute 
-	                logger.debug("Sleep for one minute");
-	                Thread.sleep(60000 * 1); 
-	            }     
-	        } 
-	        catch(SQLException sqle) 
-	        { 
-	            logger.error(sqle.getMessage(),sqle);
-	        } 
-	        catch(Exception e) 
-	        { 
-	            logger.error(e.getMessage(),e);
-	        } 
-	    } 
-	    
-		private Connection createConnections() throws NoPreferenceException, SQLException {
-
-			Connection conn = null;
-			String url = null;
-			Object[] parms = new Object[] {prefs.getdbPath(),prefs.getdbUser(),prefs.getdbPassword()};
-			
-			try {
-				Class.forName(DRIVER_NAME);
-				if (prefs.getdbPassword() != null) {
-					//TODO: Develop a way to specify ";IFEXISTS=TRUE" when needed or leave it off when not needed
-					//Possibly use a H2ConnectStringBuilder class to build/specify different options?
-					//Use Interface IConnectStringHook to be called when specified by user....
-					url = Messages.bind(Messages.h2database_jdbc_url, parms);
-				} else {
-					url = Messages.bind(Messages.h2database_jdbc_url_nopass,parms[0],parms[1]);
-				}
-					conn = DriverManager.getConnection(url);
-					logger.debug("Connection with url " + url + " created.");
-		        } catch (ClassNotFoundException cex) {
-					logger.error(cex.getMessage(),cex);
-					throw new RuntimeException(cex.getMessage(),cex);
-		        }
-				return conn;
-
-		}
-		
-		private void initConnectionPool() {
-
-			try {
-				max_connections = prefs.getdbMaxConnections();
-				if (max_connections == -1) {
-					//No preference value specified, set a default value.
-					max_connections = 10;
-				};
-				logger.debug(MessageFormat.format("database path= {0}", 
-						prefs.getdbPath()));
-				logger.debug(MessageFormat.format("database userid= {0}", 
-						prefs.getdbUser()));
-				logger.debug(MessageFormat.format("user id password= {0}", 
-						"xxxxxx"));
-				logger.debug(MessageFormat.format("maxiumum connections= {0}", 
-						max_connections));
-			} catch (NoPreferenceException npex) {
-				logger.error(npex.getMessage(),npex);
-			}
-			
-			available_connections = Collections.synchronizedList(new ArrayList<Connection>());
-			inuse_connections = Collections.synchronizedList(new ArrayList<Connection>());
-			
-			for (int ix = 0; ix < max_connections; ix++) {
-				try {
-					available_connections.add(getConnection());
-				} catch (SQLException sqlex) {
-					logger.debug(sqlex.getMessage(),sqlex);
-				}
-			}
-			
-			/* Create and start the cleanup thread */
-			cleanupThread = new Thread(this);
-			cleanupThread.start();
-		}
-}
+/* 
+ ******************************************************************************
+ * H2DbLib provides a simple connection pool for establishing connections to 
+ * an embedded H2 database.
+ * This file is part of H2DBLib.
+ *  
+ * Copyright (c) 2016-2017 Robert W. Anderson.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Robert W. Anderson - initial API and implementation and/or initial documentation
+ *    
+ * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
+ * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
+ * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
+ * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
+ * PARTICULAR PURPOSE.   
+ ******************************************************************************
+ */
+package net.bobs.own.db.h2.pool;
+
+import java.io.IOException;
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.text.MessageFormat;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import net.bobs.own.db.h2.exceptions.NoPreferenceException;
+import net.bobs.own.db.h2.pool.H2ConnectionPoolPreferences.StartupMode;
+import net.bobs.own.db.h2.resources.Messages;
+
+/*
+ *	I used http://javaprogramming.language-tutorial.com/2012/09/a-sample-java-code-for-connection.html
+ * 	as the model for this connection pool.  The closeAllConnections method is 
+ * 	my own creation.
+ * 	
+ * 	August 31,2016
+ */
+
+/**
+ * A simple thread safe connection pool for JDBC H2 database connections.  The pool creates 
+ * and manages n connections for a H2 database. The maximum number of 
+ * available connections can be configured, but if no value is provided a default 
+ * of 10 connections is used.  One instance of the connection pool is needed for 
+ * each H2 database.   The connections are kept in a lock free 
+ * <code>H2ConnectionBag</code> which marks each connection as available or in use 
+ * when a JDBC connection is obtained from the pool or released back to the pool.
+ * Callers get a <code>H2PooledConnection</code> whose close() returns the 
+ * connection to the pool, the same as <code>closeConnection()</code>.
+ * Closing the pool stops lending connections and waits up to db.drainTimeoutMs 
+ * milliseconds for connections in use to be returned.  Connections still in use 
+ * after that are rolled back and closed, and a CHECKPOINT is run before the last 
+ * connection is closed so the next open of the database does not need recovery.
+ * The pool never opens more than the maximum connections, when all connections 
+ * are in use callers wait in a FIFO queue for up to db.connectionTimeoutMs 
+ * milliseconds and a released connection is handed to the longest waiting caller.
+ * 
+ * The pool housekeeping runs every db.housekeepingPeriodMs milliseconds on a 
+ * scheduler shared by all pools.  It 
+ * closes available connections older than db.maxLifetimeMs, closes connections 
+ * unused for db.idleTimeoutMs while more than db.minIdle connections are 
+ * available, and opens connections until db.minIdle are available again.  A 
+ * connection unused for more than db.validationIdleMs is checked with 
+ * <code>Connection.isValid</code> before it is handed out, and replaced when 
+ * the check fails.
+ * 
+ * With db.leakDetectionThresholdMs set, a connection in use for longer than the 
+ * threshold is reported once as a possible leak.  The borrow time of every 
+ * connection is recorded, the stack of the borrowing thread only for a sampled 
+ * share (db.leakStackSampleRate) of the borrows, so the borrow path stays cheap.
+ * 
+ * With db.adaptiveSizing=true the pool starts at db.minConnections and changes 
+ * the number of connections it may open every db.adaptiveIntervalMs milliseconds, 
+ * between db.minConnections and db.maxconnections.  It grows while callers wait 
+ * for busy connections, shrinks when connections are unused, and backs off from 
+ * a size that made connections held longer without raising the throughput, 
+ * see <code>H2PoolSizer</code>.  The decisions are reported in the pool metrics.
+ * 
+ * With db.startupMode=EAGER (the default) the pool opens its connections in 
+ * parallel on up to db.warmupThreads threads and the constructor returns once 
+ * db.minIdle connections are open.  With db.startupMode=LAZY no connection is 
+ * opened until the pool is first used.  The database name, database path, maximum 
+ * connections and other values are configurable using a .properties file.  The
+ * <code>H2DbPreferencesUtil</code>  class should be used to provide assistance
+ * for configuration of the connection pool.
+ * 
+ * 
+ * 
+ * @author Robert Anderson
+ *
+ */
+ 	class H2MyOwnConnectionPool implements IH2ConnectionPool, H2PoolMetrics.Gauges {
+		
+		/* The pooled connections, created when the pool is initialized */
+	  	private H2ConnectionBag connections = null;
+	  	private final AtomicInteger totalConnections = new AtomicInteger(0);
+		private ScheduledExecutorService housekeeper = null;
+		private ScheduledFuture<?> housekeeping = null;
+		private ScheduledFuture<?> leakDetection = null;
+		private ScheduledFuture<?> sizing = null;
+		private ExecutorService warmupExecutor = null;
+		/* A lazy pool is filled by the housekeeper only once it has been used */
+		private volatile boolean started = false;
+		private volatile boolean closed = false;
+			
+		private Logger logger = LogManager.getLogger(H2MyOwnConnectionPool.class);
+		private final String DRIVER_NAME = "org.h2.Driver";
+		private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+		private static final long DRAIN_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+		private static final int DEFAULT_MAX_CONNECTIONS = 10;
+		private H2ConnectionPoolPreferences prefs = null;
+		private int max_connections;		
+		/* The connections the pool may open now, below max_connections when the pool adapts its size */
+		private volatile int sizeLimit;
+		private H2PoolSizer sizer = null;
+		private final LongAdder waitedAcquires = new LongAdder();
+		private final LongAdder returnedConnections = new LongAdder();
+		private final LongAdder heldNanos = new LongAdder();
+		private long lastSizingNanos;
+		private long lastAcquireCount;
+		private int minIdle;
+		private long connectionTimeoutMs;
+		private long drainTimeoutMs;
+		private long idleTimeoutNanos;
+		private long maxLifetimeNanos;
+		private long validationIdleNanos;
+		private long leakThresholdNanos;
+		private double leakStackSampleRate;
+		private int statementCacheSize;
+		private final LongAdder statementCacheHits = new LongAdder();
+		private final LongAdder statementCacheMisses = new LongAdder();
+		private String poolId = null;
+		private Semaphore partitionLimiter = null;
+		private H2PoolMetrics metrics = null;
+		
+		/**
+		 * Creates a connection pool using the database preferences identified 
+		 * by a key values in a properties file. 
+		 * 
+		 * 
+		 * @param url - .properties file URL
+		 * @param poolId - the pool identifier, when null the db.poolid property is used
+		 * @param housekeeper - the scheduler running the housekeeping of the pool
+		 * @throws IOException - the preferences could not be read
+		 * @throws IllegalArgumentException - db.maxconnections is not a positive number
+		 */
+		public H2MyOwnConnectionPool(URL url, String poolId, ScheduledExecutorService housekeeper) 
+				throws IOException {
+
+			this(new H2ConnectionPoolPreferences(url), poolId, housekeeper);
+			
+		}
+		
+		/**
+		 * Creates a connection pool using preferences already loaded.
+		 * 
+		 * @param prefs - the pool preferences
+		 * @param poolId - the pool identifier, when null the db.poolid property is used
+		 * @param housekeeper - the scheduler running the housekeeping of the pool
+		 */
+		H2MyOwnConnectionPool(H2ConnectionPoolPreferences prefs, String poolId, 
+							  ScheduledExecutorService housekeeper) {
+			
+			this.prefs = prefs;	
+			this.poolId = poolId;
+			this.housekeeper = housekeeper;
+			initConnectionPool();
+			
+		}
+      
+		/**
+		 * Obtains an available connection from the pool and marks it as in use. 
+		 * 
+		 * @return - a JDBC <code>Connection</code> 
+		 */
+		@Override 
+		public Connection getConnection() throws SQLException {
+			
+			final String DEBUG_STATUS = "Get connection total= {0} waiting= {1}";
+			
+			long start = System.nanoTime();
+			checkNotClosed();
+			if (started == false) {
+				started = true;
+			}
+			H2PoolEntry entry = borrowEntry(start);
+			while (isAlive(entry) == false) {
+				/* A broken connection is closed, and the caller gets another one */
+				retire(entry);
+				entry = borrowEntry(start);
+			}
+			if (closed) {
+				/* The pool was closed while this caller waited */
+				connections.release(entry);
+				checkNotClosed();
+			}
+			long acquired = System.nanoTime();
+			metrics.recordAcquire(acquired - start);
+			if (logger.isDebugEnabled()) {
+				logger.debug(MessageFormat.format(DEBUG_STATUS, connections.size(), connections.getWaitingCount()));
+			}
+			entry.markBorrowed(acquired, sampleBorrowStack());
+			H2PooledConnection pooled = entry.getPooledConnection().borrow();
+			entry.setPooledConnection(pooled);
+			return pooled;
+		}
+				
+		/**
+		 * Returns a <code>Connection</code> back to the pool, and indicates 
+		 * it is available.  Settings changed by the caller are reset and 
+		 * uncommitted work is rolled back, a connection that cannot be reset is 
+		 * closed and replaced.
+		 * 
+		 * @param conn - the <code>Connection</code> to be returned
+		 */
+		@Override
+		public void closeConnection(Connection conn) {
+			
+			final String DEBUG_OUT = "Close connection total= {0}";
+			
+			if (conn != null) {
+				/* Only an open connection of this pool is made available again, so
+				 * a connection released twice, or released after the physical connection 
+				 * was borrowed again, is never added to the pool twice.
+				 */
+				H2PooledConnection pooled = pooledOf(conn);
+				if (pooled != null && pooled.markClosed()) {
+					H2PoolEntry entry = pooled.getEntry();
+					long now = System.nanoTime();
+					if (sizer != null) {
+						heldNanos.add(now - entry.getBorrowedNanos());
+						returnedConnections.increment();
+					}
+					if (entry.isLeakReported()) {
+						logger.warn(Messages.bind(Messages.H2LeakReturned_Message, poolId, 
+								TimeUnit.NANOSECONDS.toMillis(now - entry.getBorrowedNanos())));
+					}
+					try {
+						pooled.reset();
+						entry.setLastAccessedNanos(now);
+						if (closed) {
+							/* A closing pool keeps the connection for the final CHECKPOINT */
+							connections.release(entry);
+						} else if (totalConnections.get() > sizeLimit) {
+							/* The pool lowered its size limit, waiting callers get the next connection returned */
+							retire(entry);
+						} else {
+							connections.requite(entry);
+						}
+					} catch (SQLException sqle) {
+						logger.debug(sqle.getMessage(),sqle);
+						retire(entry);
+						replaceForWaiters();
+					}
+				}
+				if (logger.isDebugEnabled()) {
+					logger.debug(MessageFormat.format(DEBUG_OUT, connections.size()));
+				}
+			}
+		}
+		
+		/**
+		 * Prepare a statement using the statement cache of the pooled connection.
+		 * 
+		 * @see IH2ConnectionPool#prepareStatement(Connection, String, int, int)
+		 */
+		@Override
+		public PreparedStatement prepareStatement(Connection conn, String sqlText, int resultSetType, 
+												  int resultSetConcurrency) throws SQLException {
+			
+			H2PoolEntry entry = entryOf(conn);
+			if (entry == null) {
+				return conn.prepareStatement(sqlText, resultSetType, resultSetConcurrency);
+			}
+			if (statementCacheSize <= 0) {
+				return entry.getConnection().prepareStatement(sqlText, resultSetType, resultSetConcurrency);
+			}
+			
+			H2StatementCache cache = entry.getStatementCache();
+			if (cache == null) {
+				cache = new H2StatementCache(entry.getConnection(), statementCacheSize, 
+											 statementCacheHits, statementCacheMisses);
+				entry.setStatementCache(cache);
+			}
+			return cache.prepareStatement(conn, sqlText, resultSetType, resultSetConcurrency);
+		}
+		
+		@Override
+		public int getMaxConnections() {
+			return max_connections;
+		}
+		
+		@Override
+		public Semaphore getPartitionLimiter() {
+			return partitionLimiter;
+		}
+		
+		@Override
+		public long getStatementCacheHits() {
+			return statementCacheHits.sum();
+		}
+		
+		@Override
+		public long getStatementCacheMisses() {
+			return statementCacheMisses.sum();
+		}
+		
+		@Override
+		public String getPoolId() {
+			return poolId;
+		}
+		
+		@Override
+		public H2PoolMetricsMXBean getMetrics() {
+			return metrics;
+		}
+		
+		@Override
+		public int getActiveConnections() {
+			return connections.getCount(H2PoolEntry.STATE_IN_USE);
+		}
+		
+		@Override
+		public int getIdleConnections() {
+			return availableCount();
+		}
+		
+		@Override
+		public int getPendingThreads() {
+			return connections.getWaitingCount();
+		}
+		
+		@Override
+		public int getTotalConnections() {
+			return totalConnections.get();
+		}
+		
+		/**
+		 * Closes and removes <b>all available and in use connections</b>.
+		 * The pool stops lending connections and waits up to db.drainTimeoutMs 
+		 * for in use connections to be returned.  Connections still in use 
+		 * after that are rolled back, never committed.  A CHECKPOINT is run 
+		 * before the last connection is closed.
+		 * This method should be called to prevent resource leaks from 
+		 * connections which are not properly closed.
+		 */
+		@Override
+		public void close() {
+			
+			if (closed) {
+				return;
+			}
+			closed = true;
+			housekeeping.cancel(false);
+			if (sizing != null) {
+				sizing.cancel(false);
+			}
+			if (leakDetection != null) {
+				leakDetection.cancel(false);
+			}
+			if (warmupExecutor != null) {
+				warmupExecutor.shutdownNow();
+			}
+			connections.cancelWaiters();
+			
+			int stragglers = drain();
+			
+			/* Claim every connection, then roll back the ones still in use */
+			List<H2PoolEntry> entries = new ArrayList<H2PoolEntry>();
+			for (H2PoolEntry entry : connections.values()) {
+				boolean inuse = entry.getState() == H2PoolEntry.STATE_IN_USE;
+				if (connections.remove(entry)) {
+					if (inuse) {
+						rollbackQuietly(entry.getConnection());
+					}
+					entries.add(entry);
+				}
+			}
+			
+			if (entries.isEmpty() == false) {
+				checkpoint(entries.get(entries.size() - 1).getConnection());
+			}
+			for (H2PoolEntry entry : entries) {
+				closeEntry(entry);
+			}
+			metrics.unregister();
+			H2ConnectionPoolFactory.getInstance().removePool(poolId, this);
+			
+//			H2PoolController.closePool(poolId);
+			logger.debug(MessageFormat.format("Close pool {0} closed= {1} rolled back= {2} total= {3}", poolId,
+					entries.size(),stragglers,connections.size()));
+			
+		}
+		
+		/*
+		 * Wait until every connection has been returned or the drain timeout 
+		 * has passed.  Returns the number of connections still in use.
+		 */
+		private int drain() {
+			
+			final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMs);
+			int active = getActiveConnections();
+			while (active > 0 && deadline - System.nanoTime() > 0L) {
+				LockSupport.parkNanos(this, DRAIN_POLL_NANOS);
+				if (Thread.currentThread().isInterrupted()) {
+					break;
+				}
+				active = getActiveConnections();
+			}
+			return active;
+		}
+		
+		/*
+		 * Write the database to disk so that the next open needs no recovery.
+		 */
+		private void checkpoint(Connection conn) {
+			
+			try (Statement stmt = conn.createStatement()) {
+				stmt.execute("CHECKPOINT");
+			} catch (SQLException sqle) {
+				logger.debug(sqle.getMessage(),sqle);
+			}
+		}
+		
+		private void rollbackQuietly(Connection conn) {
+			
+			try {
+				if (conn.isClosed() == false && conn.getAutoCommit() == false) {
+					conn.rollback();
+				}
+			} catch (SQLException sqle) {
+				logger.debug(sqle.getMessage(),sqle);
+			}
+		}
+		
+		private void checkNotClosed() throws SQLException {
+			if (closed) {
+				throw new SQLException(Messages.bind(Messages.errormsg_pool_closed, poolId));
+			}
+		}
+		
+		/**
+		 * Returns the number of available connections in the pool currently.
+		 * 
+		 * @return - the number of available connections
+		 */
+		private int availableCount() 
+	    { 
+	        return connections.getCount(H2PoolEntry.STATE_NOT_IN_USE); 
+	    } 
+	     
+		
+		/*
+		 * Close available connections past their maximum lifetime or idle timeout,
+		 * then open connections until the minimum idle connections are available.
+		 * Connections in use are left alone, they are checked once returned.
+		 */
+		private void housekeep() {
+			
+			try {
+				long now = System.nanoTime();
+				int idle = availableCount();
+				for (H2PoolEntry entry : connections.values()) {
+					if (entry.getState() != H2PoolEntry.STATE_NOT_IN_USE) {
+						continue;
+					}
+					boolean expired = maxLifetimeNanos > 0 && 
+									  now - entry.getCreatedNanos() > maxLifetimeNanos;
+					boolean unused = idleTimeoutNanos > 0 && idle > minIdle && 
+									 now - entry.getLastAccessedNanos() > idleTimeoutNanos;
+					if ((expired || unused) && connections.removeIdle(entry)) {
+						idle--;
+						closeEntry(entry);
+					}
+				}
+				if (started) {
+					fillPool();
+				}
+				if (logger.isDebugEnabled()) {
+					logger.debug(MessageFormat.format("HOUSEKEEPER pool {0} total= {1} available= {2}", 
+							poolId, totalConnections.get(), availableCount()));
+				}
+			} catch (SQLException sqle) {
+				logger.error(sqle.getMessage(),sqle);
+			} catch (RuntimeException rex) {
+				//An exception would cancel the scheduled housekeeping
+				logger.error(rex.getMessage(),rex);
+			}
+		}
+		
+		/*
+		 * Let the sizer choose the size limit from the acquires, waits and hold 
+		 * times since the last decision.  Available connections above a lowered 
+		 * limit are closed, in use ones when they are returned.  After a raise 
+		 * waiting callers get new connections right away.
+		 */
+		private void resize() {
+			
+			try {
+				long now = System.nanoTime();
+				long acquires = metrics.getAcquireCount();
+				H2PoolSizer.Decision decision = sizer.decide(now - lastSizingNanos, acquires - lastAcquireCount, 
+						waitedAcquires.sumThenReset(), returnedConnections.sumThenReset(), heldNanos.sumThenReset());
+				lastSizingNanos = now;
+				lastAcquireCount = acquires;
+				sizeLimit = sizer.getSize();
+				metrics.recordSizeDecision(decision, sizeLimit, sizer.getLastReason());
+				
+				if (decision == H2PoolSizer.Decision.SHRINK) {
+					for (H2PoolEntry entry : connections.values()) {
+						if (totalConnections.get() <= sizeLimit) {
+							break;
+						}
+						if (entry.getState() == H2PoolEntry.STATE_NOT_IN_USE && connections.removeIdle(entry)) {
+							closeEntry(entry);
+						}
+					}
+				} else if (decision == H2PoolSizer.Decision.GROW) {
+					replaceForWaiters();
+				}
+				if (decision != H2PoolSizer.Decision.HOLD && logger.isDebugEnabled()) {
+					logger.debug(MessageFormat.format("Pool {0} size {1}", poolId, sizer.getLastReason()));
+				}
+			} catch (RuntimeException rex) {
+				//An exception would cancel the scheduled sizing
+				logger.error(rex.getMessage(),rex);
+			}
+		}
+		
+		/*
+		 * Report the connections in use for longer than the leak detection 
+		 * threshold, each borrow is reported once.
+		 */
+		private void detectLeaks() {
+			
+			try {
+				long now = System.nanoTime();
+				for (H2PoolEntry entry : connections.values()) {
+					/* The borrow is read after the connection is seen open */
+					if (entry.getPooledConnection().isOpen() == false || entry.isLeakReported()) {
+						continue;
+					}
+					long borrowed = entry.getBorrowedNanos();
+					if (now - borrowed > leakThresholdNanos) {
+						entry.setLeakReported(borrowed);
+						metrics.recordLeakDetected();
+						logger.warn(Messages.bind(Messages.H2LeakDetected_Message, new Object[] {poolId, 
+								TimeUnit.NANOSECONDS.toMillis(now - borrowed), 
+								TimeUnit.NANOSECONDS.toMillis(leakThresholdNanos)}), entry.getBorrowStack());
+					}
+				}
+			} catch (RuntimeException rex) {
+				//An exception would cancel the scheduled leak detection
+				logger.error(rex.getMessage(),rex);
+			}
+		}
+		
+		/*
+		 * Capture the stack of the borrowing thread for the sampled share of borrows.
+		 */
+		private Throwable sampleBorrowStack() {
+			
+			if (leakStackSampleRate <= 0.0) {
+				return null;
+			}
+			if (leakStackSampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= leakStackSampleRate) {
+				return null;
+			}
+			return new Exception("Connection borrowed from pool " + poolId + " by thread " + 
+								 Thread.currentThread().getName());
+		}
+		
+		/*
+		 * Open connections until the minimum idle connections are available or 
+		 * the pool is at its maximum.  A new connection goes to a waiting caller first.
+		 */
+		private void fillPool() throws SQLException {
+			
+			while (availableCount() < minIdle) {
+				H2PoolEntry entry = addConnection();
+				if (entry == null) {
+					break;
+				}
+				connections.requite(entry);
+			}
+		}
+		
+		/*
+		 * Open up to the maximum connections in parallel and wait until the 
+		 * minimum idle connections are open, the rest are opened in the background.
+		 * A connection that fails to open counts as ready so that a wrong 
+		 * configuration does not block the caller.
+		 */
+		private void warmUp() {
+			
+			if (sizeLimit <= 0) {
+				/* Nothing to open, a thread pool without threads cannot be created */
+				return;
+			}
+			final CountDownLatch ready = new CountDownLatch(Math.min(minIdle, sizeLimit));
+			int threads = Math.min(prefs.getdbWarmupThreads(), sizeLimit);
+			warmupExecutor = Executors.newFixedThreadPool(threads, 
+					H2ConnectionPoolFactory.daemonThreadFactory("h2-warmup-" + poolId + "-"));
+			for (int ix = 0; ix < sizeLimit; ix++) {
+				warmupExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							if (closed == false) {
+								H2PoolEntry entry = addConnection();
+								if (entry != null && closed) {
+									/* The pool was closed while the connection was opened */
+									retire(entry);
+								} else if (entry != null) {
+									connections.requite(entry);
+								}
+							}
+						} catch (SQLException sqlex) {
+							logger.debug(sqlex.getMessage(),sqlex);
+						} finally {
+							ready.countDown();
+						}
+					}
+				});
+			}
+			warmupExecutor.shutdown();
+			
+			try {
+				ready.await();
+			} catch (InterruptedException iex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		/*
+		 * Claim a connection for the caller: an available connection, a new one 
+		 * while the pool is below its maximum, else wait for a connection to be 
+		 * released until the connection timeout counted from start.
+		 */
+		private H2PoolEntry borrowEntry(long start) throws SQLException {
+			
+			H2PoolEntry entry = connections.borrow();
+			if (entry == null) {
+				/* No available connection, a new connection is handed straight to the caller */
+				entry = addConnection();
+			}
+			if (entry == null) {
+				/* The pool is at its maximum, wait for a connection to be released */
+				if (sizer != null) {
+					waitedAcquires.increment();
+				}
+				long remaining = TimeUnit.MILLISECONDS.toNanos(connectionTimeoutMs) - (System.nanoTime() - start);
+				try {
+					entry = remaining > 0L ? connections.borrow(remaining) : null;
+				} catch (InterruptedException iex) {
+					Thread.currentThread().interrupt();
+					throw new SQLException(iex.getMessage(), iex);
+				}
+				if (entry == null) {
+					checkNotClosed();
+					throw new SQLException(Messages.bind(Messages.errormsg_connection_timeout, 
+														 connectionTimeoutMs, poolId));
+				}
+			}
+			return entry;
+		}
+		
+		/*
+		 * A connection used recently is trusted, one unused for longer than the 
+		 * validation threshold is checked with isValid.
+		 */
+		private boolean isAlive(H2PoolEntry entry) {
+			
+			if (System.nanoTime() - entry.getLastAccessedNanos() < validationIdleNanos) {
+				return true;
+			}
+			try {
+				return entry.getConnection().isValid(VALIDATION_TIMEOUT_SECONDS);
+			} catch (SQLException sqle) {
+				logger.debug(sqle.getMessage(),sqle);
+				return false;
+			}
+		}
+		
+		/*
+		 * Find the entry of an open pooled connection, or of a physical connection 
+		 * unwrapped from it.  Returns null for closed connections and connections 
+		 * of other pools.
+		 */
+		private H2PoolEntry entryOf(Connection conn) {
+			
+			H2PooledConnection pooled = pooledOf(conn);
+			return pooled != null && pooled.isOpen() ? pooled.getEntry() : null;
+		}
+		
+		/*
+		 * Find the pooled connection to return for a pooled connection of this 
+		 * pool, or the connection of the last borrow for a physical connection. 
+		 */
+		private H2PooledConnection pooledOf(Connection conn) {
+			
+			if (conn instanceof H2PooledConnection) {
+				H2PooledConnection pooled = (H2PooledConnection) conn;
+				return pooled.getPool() == this ? pooled : null;
+			}
+			H2PoolEntry entry = connections.find(conn);
+			return entry != null ? entry.getPooledConnection() : null;
+		}
+		
+		/*
+		 * Open a connection for a waiting caller after a connection was retired, 
+		 * otherwise the caller would wait for the housekeeper.
+		 */
+		private void replaceForWaiters() {
+			
+			if (closed || connections.getWaitingCount() == 0) {
+				return;
+			}
+			try {
+				H2PoolEntry entry = addConnection();
+				if (entry != null) {
+					connections.requite(entry);
+				}
+			} catch (SQLException sqle) {
+				logger.debug(sqle.getMessage(),sqle);
+			}
+		}
+		
+		/*
+		 * Remove a connection claimed by this thread from the pool and close it.
+		 */
+		private void retire(H2PoolEntry entry) {
+			
+			if (connections.remove(entry)) {
+				closeEntry(entry);
+			}
+		}
+		
+		/*
+		 * Close the connection of an entry already removed from the bag.
+		 */
+		private void closeEntry(H2PoolEntry entry) {
+			
+			totalConnections.decrementAndGet();
+			if (entry.getStatementCache() != null) {
+				entry.getStatementCache().close();
+			}
+			try {
+				Connection conn = entry.getConnection();
+				if (conn.isClosed() == false) {
+					conn.close();
+				}
+			} catch (SQLException sqle) {
+				logger.debug(sqle.getMessage(),sqle);
+			}
+			metrics.recordDestroyed();
+		}
+	    
+		/*
+		 * Open a new connection if the pool is below its maximum size.  The new 
+		 * connection is marked as in use for the caller.  Returns null when the 
+		 * pool is already at its maximum.
+		 */
+		private H2PoolEntry addConnection() throws SQLException {
+			
+			int total;
+			do {
+				total = totalConnections.get();
+				if (total >= sizeLimit) {
+					return null;
+				}
+			} while (totalConnections.compareAndSet(total, total + 1) == false);
+			
+			boolean added = false;
+			Connection conn = null;
+			try {
+				conn = createConnections();
+				H2PoolEntry entry = new H2PoolEntry(conn);
+				entry.setPooledConnection(new H2PooledConnection(this, entry));
+				entry.setState(H2PoolEntry.STATE_IN_USE);
+				connections.add(entry);
+				metrics.recordCreated();
+				added = true;
+				return entry;
+			} catch (NoPreferenceException npex) {
+				//Only log the error since the preference specifications is the responsibility of the developer
+				logger.debug(npex.getMessage(), npex);
+				return null;
+			} finally {
+				if (added == false) {
+					totalConnections.decrementAndGet();
+					closeQuietly(conn);
+				}
+			}
+		}
+		
+		private void closeQuietly(Connection conn) {
+			
+			if (conn != null) {
+				try {
+					conn.close();
+				} catch (SQLException sqle) {
+					logger.debug(sqle.getMessage(),sqle);
+				}
+			}
+		}
+		
+		/**
+		 * The URL of the pool connections, built from db.path and the db.h2.* preferences.
+		 * Called while the pool is constructed, so it may only use the preferences.
+		 * 
+		 * @return - the URL builder
+		 * @throws NoPreferenceException
+		 */
+		H2UrlBuilder connectionUrl() throws NoPreferenceException {
+			
+			H2UrlBuilder url = new H2UrlBuilder(prefs.getdbPath()).user(prefs.getdbUser());
+			if (prefs.getdbPassword() != null) {
+				//A password protected database is only opened, never created
+				url.password(prefs.getdbPassword()).ifExists(true);
+			}
+			return url.applyPreferences(prefs);
+		}
+		
+		H2ConnectionPoolPreferences getPreferences() {
+			return prefs;
+		}
+		
+		private Connection createConnections() throws NoPreferenceException, SQLException {
+
+			Connection conn = null;
+			H2UrlBuilder url = connectionUrl();
+			
+			try {
+				Class.forName(DRIVER_NAME);
+				conn = DriverManager.getConnection(url.build());
+				if (logger.isDebugEnabled()) {
+					logger.debug("Connection with url " + url + " created.");
+				}
+			} catch (ClassNotFoundException cex) {
+				logger.error(cex.getMessage(),cex);
+				throw new RuntimeException(cex.getMessage(),cex);
+			}
+			return conn;
+
+		}
+		
+	private void initConnectionPool() {
+
+			connectionTimeoutMs = prefs.getdbConnectionTimeoutMs();
+			drainTimeoutMs = prefs.getdbDrainTimeoutMs();
+			idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(prefs.getdbIdleTimeoutMs());
+			maxLifetimeNanos = TimeUnit.MILLISECONDS.toNanos(prefs.getdbMaxLifetimeMs());
+			validationIdleNanos = TimeUnit.MILLISECONDS.toNanos(prefs.getdbValidationIdleMs());
+			statementCacheSize = prefs.getdbStatementCacheSize();
+			leakThresholdNanos = TimeUnit.MILLISECONDS.toNanos(prefs.getdbLeakDetectionThresholdMs());
+			/* Stacks are only useful when leaks are reported */
+			leakStackSampleRate = leakThresholdNanos > 0L ? prefs.getdbLeakStackSampleRate() : 0.0;
+			if (poolId == null) {
+				try {
+					poolId = prefs.getdbPoolid();
+				} catch (NoPreferenceException npex) {
+					//The pool identifier is only used for messages and the MBean name
+					logger.debug(npex.getMessage());
+					poolId = "myown@" + Integer.toHexString(System.identityHashCode(this));
+				}
+			}
+			
+			try {
+				max_connections = prefs.getdbMaxConnections();
+			} catch (NoPreferenceException npex) {
+				//No preference value specified, set a default value.
+				max_connections = DEFAULT_MAX_CONNECTIONS;
+			}
+			if (max_connections <= 0) {
+				/* The size is a hard limit, a pool without connections would only time out */
+				throw new IllegalArgumentException(Messages.bind(Messages.errormsg_maxconnections_invalid, 
+						max_connections, poolId));
+			}
+			
+			try {
+				minIdle = prefs.getdbMinIdle(max_connections);
+				sizeLimit = max_connections;
+				if (prefs.getdbAdaptiveSizing()) {
+					/* Start small, the sizer grows the pool while callers wait */
+					int minConnections = prefs.getdbMinConnections(max_connections);
+					sizer = new H2PoolSizer(minConnections, max_connections, minConnections);
+					sizeLimit = sizer.getSize();
+				}
+				logger.debug(MessageFormat.format("database path= {0}", 
+						prefs.getdbPath()));
+				logger.debug(MessageFormat.format("database userid= {0}", 
+						prefs.getdbUser()));
+				logger.debug(MessageFormat.format("user id password= {0}", 
+						"xxxxxx"));
+				logger.debug(MessageFormat.format("maxiumum connections= {0}", 
+						max_connections));
+				logger.debug(MessageFormat.format("connection timeout ms= {0}", 
+						connectionTimeoutMs));
+				logger.debug(MessageFormat.format("minimum idle= {0}", 
+						minIdle));
+			} catch (NoPreferenceException npex) {
+				logger.error(npex.getMessage(),npex);
+			}
+			
+			connections = new H2ConnectionBag();
+			metrics = new H2PoolMetrics(poolId, this);
+			metrics.recordPoolSizeLimit(sizeLimit);
+			partitionLimiter = new Semaphore(prefs.getdbMaxScanPartitions(max_connections), true);
+			
+			long warmUpStart = System.nanoTime();
+			if (prefs.getdbStartupMode() == StartupMode.EAGER) {
+				started = true;
+				warmUp();
+			}
+			metrics.recordWarmUp(System.nanoTime() - warmUpStart);
+			logger.debug(MessageFormat.format("Pool {0} started with {1} connections in {2} ms", 
+					poolId, totalConnections.get(), metrics.getWarmUpMillis()));
+			
+			metrics.register();
+			
+			/* Schedule the housekeeping on the scheduler shared by all pools */
+			long periodMs = prefs.getdbHousekeepingPeriodMs();
+			housekeeping = housekeeper.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					housekeep();
+				}
+			}, periodMs, periodMs, TimeUnit.MILLISECONDS);
+			
+			if (sizer != null) {
+				long sizingMs = prefs.getdbAdaptiveIntervalMs();
+				lastSizingNanos = System.nanoTime();
+				sizing = housekeeper.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						resize();
+					}
+				}, sizingMs, sizingMs, TimeUnit.MILLISECONDS);
+			}
+			
+			if (leakThresholdNanos > 0L) {
+				/* Check at half the threshold, a leak is reported at most 1.5 thresholds late */
+				long leakPeriodMs = Math.max(100L, TimeUnit.NANOSECONDS.toMillis(leakThresholdNanos) / 2);
+				leakDetection = housekeeper.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						detectLeaks();
+					}
+				}, leakPeriodMs, leakPeriodMs, TimeUnit.MILLISECONDS);
+			}
+		}
+}
@@ -0,0 +1,307 @@
+/* 
+ ******************************************************************************
+ * H2DbLib provides a simple connection pool for establishing connections to 
+ * an embedded H2 database.
+ * This file is part of H2DBLib.
+ *  
+ * Copyright (c) 2016-2017 Robert W. Anderson.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Robert W. Anderson - initial API and implementation and/or initial documentation
+ *    
+ * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
+ * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
+ * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
+ * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
+ * PARTICULAR PURPOSE.   
+ ******************************************************************************
+ */
+package net.bobs.own.db.h2.pool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import net.bobs.own.db.h2.db.RowMapper;
+import net.bobs.own.db.h2.exceptions.H2DBServiceException;
+
+/**
+ * Scans a table in parallel by splitting the range of a numeric key column 
+ * into partitions.  Each partition is read on its own pooled connection and 
+ * the rows of all partitions are merged into a parallel <code>Stream</code>. 
+ * The number of partitions read at once is limited by the pool's partition 
+ * limiter, so a scan does not take every connection of the pool.
+ * 
+ * @author Robert Anderson
+ *
+ */
+class H2ParallelScan<T> {
+
+	/* Table and column names are put into the SQL text, only plain identifiers are accepted */
+	private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_$]*(\\.[A-Za-z_][A-Za-z0-9_$]*)?");
+	
+	private final IH2ConnectionPool pool;
+	private final String tableName;
+	private final String keyColumn;
+	private final RowMapper<T> mapper;
+	private final String partitionSQL;
+	private final Set<PartitionCursor> openCursors = ConcurrentHashMap.newKeySet();
+	
+	H2ParallelScan(IH2ConnectionPool pool, String tableName, String keyColumn, RowMapper<T> mapper) {
+		
+		checkIdentifier(tableName);
+		checkIdentifier(keyColumn);
+		this.pool = pool;
+		this.tableName = tableName;
+		this.keyColumn = keyColumn;
+		this.mapper = mapper;
+		this.partitionSQL = "SELECT * FROM " + tableName + " WHERE " + keyColumn + " >= ? AND " + 
+							keyColumn + " <= ?";
+	}
+	
+	/**
+	 * Split the key range and create the parallel stream of rows.
+	 * 
+	 * @param parallelism - the number of partitions
+	 * @return - a parallel stream, closing it releases partitions still being read
+	 * @throws SQLException
+	 */
+	Stream<T> stream(int parallelism) throws SQLException {
+		
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("Parallelism must be greater than 0");
+		}
+		
+		long minKey;
+		long maxKey;
+		Connection conn = pool.getConnection();
+		try (PreparedStatement prep = pool.prepareStatement(conn, 
+						"SELECT MIN(" + keyColumn + "), MAX(" + keyColumn + ") FROM " + tableName, 
+						ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			 ResultSet rset = prep.executeQuery()) {
+			rset.next();
+			minKey = rset.getLong(1);
+			if (rset.wasNull()) {
+				return Stream.empty();
+			}
+			maxKey = rset.getLong(2);
+		} finally {
+			pool.closeConnection(conn);
+		}
+		
+		long[] bounds = partitionBounds(minKey, maxKey, parallelism);
+		return StreamSupport.stream(new PartitionSpliterator(bounds, 0, bounds.length / 2), true)
+							.onClose(this::closeOpenCursors);
+	}
+	
+	/*
+	 * Compute the inclusive lower and upper key of each partition, as pairs in one array.
+	 */
+	static long[] partitionBounds(long minKey, long maxKey, int parallelism) {
+		
+		long span;
+		try {
+			span = Math.addExact(Math.subtractExact(maxKey, minKey), 1L);
+		} catch (ArithmeticException aex) {
+			/* The key range doesn't fit a long, scan it as one partition */
+			return new long[] {minKey, maxKey};
+		}
+		int partitions = (int) Math.min(parallelism, span);
+		long step = span / partitions;
+		long remainder = span % partitions;
+		
+		long[] bounds = new long[partitions * 2];
+		long lower = minKey;
+		for (int ix = 0; ix < partitions; ix++) {
+			long size = step + (ix < remainder ? 1 : 0);
+			bounds[ix * 2] = lower;
+			bounds[ix * 2 + 1] = lower + size - 1;
+			lower += size;
+		}
+		return bounds;
+	}
+	
+	private static void checkIdentifier(String name) {
+		if (name == null || IDENTIFIER.matcher(name).matches() == false) {
+			throw new IllegalArgumentException("Invalid table or column name: " + name);
+		}
+	}
+	
+	private void closeOpenCursors() {
+		for (PartitionCursor cursor : openCursors) {
+			cursor.close();
+		}
+	}
+	
+	/*
+	 * The open result set of one partition.  A partition limiter permit and a 
+	 * pooled connection are held until the cursor is closed.
+	 */
+	private final class PartitionCursor {
+		
+		private final Semaphore limiter;
+		private Connection conn = null;
+		private PreparedStatement prep = null;
+		private ResultSet rset = null;
+		private int rowNum = 0;
+		private boolean closed = false;
+		
+		PartitionCursor(long lowerKey, long upperKey) throws SQLException {
+			
+			limiter = pool.getPartitionLimiter();
+			try {
+				limiter.acquire();
+			} catch (InterruptedException iex) {
+				Thread.currentThread().interrupt();
+				throw new SQLException(iex.getMessage(), iex);
+			}
+			openCursors.add(this);
+			try {
+				conn = pool.getConnection();
+				prep = pool.prepareStatement(conn, partitionSQL, ResultSet.TYPE_FORWARD_ONLY, 
+											 ResultSet.CONCUR_READ_ONLY);
+				prep.setLong(1, lowerKey);
+				prep.setLong(2, upperKey);
+				rset = prep.executeQuery();
+			} catch (SQLException | RuntimeException ex) {
+				close();
+				throw ex;
+			}
+		}
+		
+		/*
+		 * Map the next row, returns false when the partition is exhausted.
+		 */
+		boolean next(Consumer<? super T> action) throws SQLException {
+			
+			if (rset.next() == false) {
+				return false;
+			}
+			action.accept(mapper.mapRow(rset, ++rowNum));
+			return true;
+		}
+		
+		synchronized void close() {
+			
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				if (rset != null) {
+					rset.close();
+				}
+				if (prep != null) {
+					prep.close();
+				}
+				if (conn != null) {
+					pool.closeConnection(conn);
+				}
+			} catch (SQLException sqlex) {
+				throw new H2DBServiceException(sqlex.getMessage(), sqlex);
+			} finally {
+				openCursors.remove(this);
+				limiter.release();
+			}
+		}
+	}
+	
+	/*
+	 * Covers the partitions from index first (inclusive) to last (exclusive).  
+	 * Splitting hands half of the partitions not yet started to a new spliterator.
+	 */
+	private final class PartitionSpliterator implements Spliterator<T> {
+		
+		private final long[] bounds;
+		private int next;
+		private int last;
+		private PartitionCursor cursor = null;
+		
+		PartitionSpliterator(long[] bounds, int first, int last) {
+			this.bounds = bounds;
+			this.next = first;
+			this.last = last;
+		}
+		
+		@Override
+		public boolean tryAdvance(Consumer<? super T> action) {
+			
+			try {
+				while (true) {
+					if (cursor == null) {
+						if (next >= last) {
+							return false;
+						}
+						cursor = new PartitionCursor(bounds[next * 2], bounds[next * 2 + 1]);
+						next++;
+					}
+					if (cursor.next(action)) {
+						return true;
+					}
+					cursor.close();
+					cursor = null;
+				}
+			} catch (SQLException sqlex) {
+				closeCursor(sqlex);
+				throw new H2DBServiceException(sqlex.getMessage(), sqlex);
+			} catch (RuntimeException rex) {
+				/* A failing row mapper or consumer must not keep the connection and the partition permit */
+				closeCursor(rex);
+				throw rex;
+			}
+		}
+		
+		/*
+		 * Close the current cursor after a failure, an exception from the close 
+		 * is added to the failure instead of replacing it.
+		 */
+		private void closeCursor(Exception failure) {
+			
+			if (cursor != null) {
+				try {
+					cursor.close();
+				} catch (RuntimeException rex) {
+					failure.addSuppressed(rex);
+				}
+				cursor = null;
+			}
+		}
+		
+		@Override
+		public Spliterator<T> trySplit() {
+			
+			int remaining = last - next;
+			if (remaining < 2) {
+				return null;
+			}
+			int middle = next + remaining / 2;
+			PartitionSpliterator prefix = new PartitionSpliterator(bounds, next, middle);
+			next = middle;
+			return prefix;
+		}
+		
+		@Override
+		public long estimateSize() {
+			/* The row count is unknown, a large estimate lets the stream split every partition */
+			return last > next || cursor != null ? Long.MAX_VALUE : 0L;
+		}
+		
+		@Override
+		public int characteristics() {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/* 
+ ******************************************************************************
+ * H2DbLib provides a simple connection pool for establishing connections to 
+ * an embedded H2 database.
+ * This file is part of H2DBLib.
+ *  
+ * Copyright (c) 2016-2017 Robert W. Anderson.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Robert W. Anderson - initial API and implementation and/or initial documentation
+ *    
+ * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
+ * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
+ * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
+ * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
+ * PARTICULAR PURPOSE.   
+ ******************************************************************************
+ */
+package net.bobs.own.db.h2.pool;
+
+import java.sql.Connection;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single JDBC connection tracked by a <code>H2ConnectionBag</code>.  The entry 
+ * carries a state flag which is changed with compare and set operations, so an 
+ * entry can be claimed by exactly one borrowing thread without a pool wide lock.
+ * 
+ * @author Robert Anderson
+ *
+ */
+final class H2PoolEntry {
+
+	static final int STATE_NOT_IN_USE = 0;
+	static final int STATE_IN_USE = 1;
+	static final int STATE_REMOVED = -1;
+	
+	private final Connection connection;
+	private final AtomicInteger state = new AtomicInteger(STATE_NOT_IN_USE);
+	/* true while the entry is linked into the bag's idle queue */
+	private final AtomicBoolean queued = new AtomicBoolean(false);
+	private H2StatementCache statementCache = null;
+	/* The connection of the current or last borrow, written after markBorrowed() */
+	private volatile H2PooledConnection pooledConnection = null;
+	private final long createdNanos;
+	private volatile long lastAccessedNanos;
+	/* Written by the borrowing thread before the pooled connection of the 
+	 * borrow is set, readers see them after they see the connection open.
+	 */
+	private long borrowedNanos;
+	private Throwable borrowStack;
+	/* The borrowedNanos of the borrow reported as a leak */
+	private volatile long leakReportedNanos;
+	
+	H2PoolEntry(Connection connection) {
+		this.connection = connection;
+		createdNanos = System.nanoTime();
+		lastAccessedNanos = createdNanos;
+	}
+	
+	/**
+	 * @return - the physical JDBC <code>Connection</code> for this entry
+	 */
+	Connection getConnection() {
+		return connection;
+	}
+	
+	/**
+	 * @return - the connection handed out to the current or last caller of this entry
+	 */
+	H2PooledConnection getPooledConnection() {
+		return pooledConnection;
+	}
+	
+	void setPooledConnection(H2PooledConnection pooledConnection) {
+		this.pooledConnection = pooledConnection;
+	}
+	
+	/**
+	 * @return - the statement cache for this connection, null if none was set
+	 */
+	H2StatementCache getStatementCache() {
+		return statementCache;
+	}
+	
+	/*
+	 * Only the thread that has the entry in use sets the cache 
+	 */
+	void setStatementCache(H2StatementCache statementCache) {
+		this.statementCache = statementCache;
+	}
+	
+	/**
+	 * @return - the <code>System.nanoTime()</code> the connection was opened
+	 */
+	long getCreatedNanos() {
+		return createdNanos;
+	}
+	
+	/**
+	 * @return - the <code>System.nanoTime()</code> the connection was last returned
+	 */
+	long getLastAccessedNanos() {
+		return lastAccessedNanos;
+	}
+	
+	void setLastAccessedNanos(long lastAccessedNanos) {
+		this.lastAccessedNanos = lastAccessedNanos;
+	}
+	
+	/**
+	 * Record the borrow of the connection, called before the pooled connection 
+	 * of the borrow is set.
+	 * 
+	 * @param nanos - the <code>System.nanoTime()</code> the connection was borrowed
+	 * @param stack - the stack of the borrowing thread, null when it was not sampled
+	 */
+	void markBorrowed(long nanos, Throwable stack) {
+		borrowedNanos = nanos;
+		borrowStack = stack;
+	}
+	
+	/**
+	 * @return - the <code>System.nanoTime()</code> the connection was last borrowed
+	 */
+	long getBorrowedNanos() {
+		return borrowedNanos;
+	}
+	
+	/**
+	 * @return - the stack of the thread that last borrowed the connection, null 
+	 * 			 when it was not sampled
+	 */
+	Throwable getBorrowStack() {
+		return borrowStack;
+	}
+	
+	/**
+	 * Mark the current borrow as reported as a leak.
+	 * 
+	 * @param nanos - the borrow time of the reported borrow
+	 */
+	void setLeakReported(long nanos) {
+		leakReportedNanos = nanos;
+	}
+	
+	/**
+	 * @return - true if the current borrow was reported as a leak
+	 */
+	boolean isLeakReported() {
+		return leakReportedNanos == borrowedNanos && leakReportedNanos != 0L;
+	}
+	
+	int getState() {
+		return state.get();
+	}
+	
+	void setState(int newState) {
+		state.set(newState);
+	}
+	
+	boolean compareAndSetState(int expect, int update) {
+		return state.compareAndSet(expect, update);
+	}
+	
+	/**
+	 * Mark the entry as linked into the idle queue.
+	 * 
+	 * @return - true if the caller must add the entry to the queue, false if 
+	 * 			 it is already queued.
+	 */
+	boolean markQueued() {
+		return queued.compareAndSet(false, true);
+	}
+	
+	void clearQueued() {
+		queued.set(false);
+	}
+	
+	@Override
+	public String toString() {
+		return "H2PoolEntry[state=" + state.get() + ", connection=" + connection + "]";
+	}
+}
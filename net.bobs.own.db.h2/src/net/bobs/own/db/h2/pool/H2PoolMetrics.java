@@ -0,0 +1,323 @@
+/* 
+ ******************************************************************************
+ * H2DbLib provides a simple connection pool for establishing connections to 
+ * an embedded H2 database.
+ * This file is part of H2DBLib.
+ *  
+ * Copyright (c) 2016-2017 Robert W. Anderson.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Robert W. Anderson - initial API and implementation and/or initial documentation
+ *    
+ * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
+ * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
+ * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
+ * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
+ * PARTICULAR PURPOSE.   
+ ******************************************************************************
+ */
+package net.bobs.own.db.h2.pool;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The metrics of one connection pool.  The pool records connections created, 
+ * destroyed and the time each caller waited for a connection, the gauges 
+ * (active, idle, pending) are read from the pool when the metrics are read.
+ * 
+ * @author Robert Anderson
+ *
+ */
+public class H2PoolMetrics implements H2PoolMetricsMXBean {
+
+	/**
+	 * The current counts of a pool, read when the metrics are read.
+	 */
+	interface Gauges {
+		int getActiveConnections();
+		int getIdleConnections();
+		int getPendingThreads();
+		int getTotalConnections();
+		long getStatementCacheHits();
+		long getStatementCacheMisses();
+	}
+	
+	private static final String DOMAIN = "net.bobs.own.db.h2";
+	/* The metrics currently registered for each pool id */
+	private static final ConcurrentMap<String,H2PoolMetrics> registered = new ConcurrentHashMap<String,H2PoolMetrics>();
+	
+	private Logger logger = LogManager.getLogger(H2PoolMetrics.class);
+	private final String poolId;
+	private final Gauges gauges;
+	private final LongAdder created = new LongAdder();
+	private final LongAdder destroyed = new LongAdder();
+	private final LongAdder acquired = new LongAdder();
+	private final H2LatencyHistogram acquireWait = new H2LatencyHistogram();
+	private volatile long warmUpNanos = 0L;
+	private final LongAdder resultCacheHits = new LongAdder();
+	private final LongAdder resultCacheMisses = new LongAdder();
+	private final LongAdder resultCacheEvictions = new LongAdder();
+	private final LongAdder resultCacheInvalidations = new LongAdder();
+	private final LongAdder leaksDetected = new LongAdder();
+	private volatile int poolSizeLimit = 0;
+	private final LongAdder poolGrows = new LongAdder();
+	private final LongAdder poolShrinks = new LongAdder();
+	private volatile String lastSizeDecision = null;
+	
+	H2PoolMetrics(String poolId, Gauges gauges) {
+		this.poolId = poolId;
+		this.gauges = gauges;
+	}
+	
+	@Override
+	public String getPoolId() {
+		return poolId;
+	}
+
+	@Override
+	public int getActiveConnections() {
+		return gauges.getActiveConnections();
+	}
+
+	@Override
+	public int getIdleConnections() {
+		return gauges.getIdleConnections();
+	}
+
+	@Override
+	public int getPendingThreads() {
+		return gauges.getPendingThreads();
+	}
+
+	@Override
+	public int getTotalConnections() {
+		return gauges.getTotalConnections();
+	}
+
+	@Override
+	public long getTotalCreated() {
+		return created.sum();
+	}
+
+	@Override
+	public long getTotalDestroyed() {
+		return destroyed.sum();
+	}
+
+	@Override
+	public long getAcquireCount() {
+		return acquired.sum();
+	}
+
+	@Override
+	public long getAcquireWaitP50Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(acquireWait.getPercentile(50.0));
+	}
+
+	@Override
+	public long getAcquireWaitP99Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(acquireWait.getPercentile(99.0));
+	}
+
+	@Override
+	public long getAcquireWaitMaxMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(acquireWait.getMax());
+	}
+	
+	@Override
+	public void resetAcquireWaitTimes() {
+		acquireWait.reset();
+	}
+	
+	@Override
+	public long getWarmUpMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(warmUpNanos);
+	}
+	
+	@Override
+	public long getStatementCacheHits() {
+		return gauges.getStatementCacheHits();
+	}
+
+	@Override
+	public long getStatementCacheMisses() {
+		return gauges.getStatementCacheMisses();
+	}
+	
+	@Override
+	public long getResultCacheHits() {
+		return resultCacheHits.sum();
+	}
+	
+	@Override
+	public long getResultCacheMisses() {
+		return resultCacheMisses.sum();
+	}
+	
+	@Override
+	public double getResultCacheHitRatio() {
+		
+		long hits = resultCacheHits.sum();
+		long lookups = hits + resultCacheMisses.sum();
+		return lookups == 0L ? 0.0 : (double) hits / lookups;
+	}
+	
+	@Override
+	public long getResultCacheEvictions() {
+		return resultCacheEvictions.sum();
+	}
+	
+	@Override
+	public long getResultCacheInvalidations() {
+		return resultCacheInvalidations.sum();
+	}
+	
+	@Override
+	public long getLeaksDetected() {
+		return leaksDetected.sum();
+	}
+	
+	@Override
+	public int getPoolSizeLimit() {
+		return poolSizeLimit;
+	}
+	
+	@Override
+	public long getPoolGrowCount() {
+		return poolGrows.sum();
+	}
+	
+	@Override
+	public long getPoolShrinkCount() {
+		return poolShrinks.sum();
+	}
+	
+	@Override
+	public String getLastSizeDecision() {
+		return lastSizeDecision;
+	}
+	
+	void recordPoolSizeLimit(int limit) {
+		poolSizeLimit = limit;
+	}
+	
+	/**
+	 * Record a size decision of an adaptive pool.
+	 * 
+	 * @param decision - grow, shrink or hold
+	 * @param limit - the size limit after the decision
+	 * @param description - the decision and the values it was based on
+	 */
+	void recordSizeDecision(H2PoolSizer.Decision decision, int limit, String description) {
+		
+		if (decision == H2PoolSizer.Decision.GROW) {
+			poolGrows.increment();
+		} else if (decision == H2PoolSizer.Decision.SHRINK) {
+			poolShrinks.increment();
+		}
+		poolSizeLimit = limit;
+		lastSizeDecision = description;
+	}
+	
+	void recordLeakDetected() {
+		leaksDetected.increment();
+	}
+	
+	void recordResultCacheHit() {
+		resultCacheHits.increment();
+	}
+	
+	void recordResultCacheMiss() {
+		resultCacheMisses.increment();
+	}
+	
+	void recordResultCacheEvictions(int count) {
+		resultCacheEvictions.add(count);
+	}
+	
+	void recordResultCacheInvalidations(int count) {
+		resultCacheInvalidations.add(count);
+	}
+	
+	void recordWarmUp(long nanos) {
+		warmUpNanos = nanos;
+	}
+	
+	void recordCreated() {
+		created.increment();
+	}
+	
+	void recordDestroyed() {
+		destroyed.increment();
+	}
+	
+	/**
+	 * Count a connection handed to a caller.
+	 * 
+	 * @param waitNanos - the time the caller waited for the connection
+	 */
+	void recordAcquire(long waitNanos) {
+		acquired.increment();
+		acquireWait.record(waitNanos);
+	}
+	
+	/**
+	 * Register the metrics with the platform MBean server.  A pool created 
+	 * again with the same pool id replaces the MBean of the earlier pool. 
+	 * JMX errors are only logged, a pool works without its MBean.
+	 */
+	void register() {
+		
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		synchronized (registered) {
+			try {
+				ObjectName name = objectName(poolId);
+				if (server.isRegistered(name)) {
+					server.unregisterMBean(name);
+				}
+				server.registerMBean(this, name);
+				registered.put(poolId, this);
+			} catch (JMException jmex) {
+				logger.debug(jmex.getMessage(), jmex);
+			}
+		}
+	}
+	
+	/**
+	 * Remove the MBean registered by this pool, an MBean registered by a 
+	 * later pool with the same id is left alone.
+	 */
+	void unregister() {
+		
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		synchronized (registered) {
+			if (registered.remove(poolId, this) == false) {
+				return;
+			}
+			try {
+				server.unregisterMBean(objectName(poolId));
+			} catch (JMException jmex) {
+				logger.debug(jmex.getMessage(), jmex);
+			}
+		}
+	}
+	
+	private static ObjectName objectName(String poolId) throws JMException {
+		return new ObjectName(DOMAIN + ":type=H2Pool,name=" + ObjectName.quote(poolId));
+	}
+}
@@ -0,0 +1,176 @@
+/* 
+ ******************************************************************************
+ * H2DbLib provides a simple connection pool for establishing connections to 
+ * an embedded H2 database.
+ * This file is part of H2DBLib.
+ *  
+ * Copyright (c) 2016-2017 Robert W. Anderson.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Robert W. Anderson - initial API and implementation and/or initial documentation
+ *    
+ * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
+ * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
+ * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
+ * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
+ * PARTICULAR PURPOSE.   
+ ******************************************************************************
+ */
+package net.bobs.own.db.h2.pool;
+
+/**
+ * The JMX view of a connection pool.  One MBean is registered for each pool 
+ * id with the object name <code>net.bobs.own.db.h2:type=H2Pool,name=&lt;poolId&gt;</code>.
+ * 
+ * The acquire wait times tell whether slow requests are waiting for the pool 
+ * or for H2 itself, a wait time close to the request time means the pool is 
+ * too small for the load.  The wait times cover every connection handed out 
+ * since the pool was created, call resetAcquireWaitTimes() to start a new 
+ * measurement, e.g. after a change of the load.
+ * 
+ * @author Robert Anderson
+ *
+ */
+public interface H2PoolMetricsMXBean {
+
+	/**
+	 * @return - the identifier of the pool
+	 */
+	public String getPoolId();
+	
+	/**
+	 * @return - the number of connections currently in use
+	 */
+	public int getActiveConnections();
+	
+	/**
+	 * @return - the number of connections available in the pool
+	 */
+	public int getIdleConnections();
+	
+	/**
+	 * @return - the number of threads waiting for a connection
+	 */
+	public int getPendingThreads();
+	
+	/**
+	 * @return - the number of open connections, in use and available
+	 */
+	public int getTotalConnections();
+	
+	/**
+	 * @return - the number of connections opened since the pool was created
+	 */
+	public long getTotalCreated();
+	
+	/**
+	 * @return - the number of connections closed since the pool was created
+	 */
+	public long getTotalDestroyed();
+	
+	/**
+	 * @return - the number of connections handed out since the pool was created
+	 */
+	public long getAcquireCount();
+	
+	/**
+	 * @return - the median time waited for a connection, in microseconds, 
+	 * 			 since the pool was created or the wait times were reset
+	 */
+	public long getAcquireWaitP50Micros();
+	
+	/**
+	 * @return - the 99th percentile of the time waited for a connection, in 
+	 * 			 microseconds, since the pool was created or the wait times were reset
+	 */
+	public long getAcquireWaitP99Micros();
+	
+	/**
+	 * @return - the longest time waited for a connection, in microseconds, 
+	 * 			 since the pool was created or the wait times were reset
+	 */
+	public long getAcquireWaitMaxMicros();
+	
+	/**
+	 * Forget the recorded acquire wait times, the percentiles and maximum then 
+	 * cover only the connections handed out from now on.  The acquire count 
+	 * is not reset.
+	 */
+	public void resetAcquireWaitTimes();
+	
+	/**
+	 * @return - the time taken to open the connections the pool waits for 
+	 * 			 when it is created, in milliseconds
+	 */
+	public long getWarmUpMillis();
+	
+	/**
+	 * @return - the number of statements served from the statement caches
+	 */
+	public long getStatementCacheHits();
+	
+	/**
+	 * @return - the number of statements prepared because they were not cached
+	 */
+	public long getStatementCacheMisses();
+	
+	/**
+	 * @return - the number of queries answered from the result caches of 
+	 * 			 the <code>H2Database</code> services using the pool
+	 */
+	public long getResultCacheHits();
+	
+	/**
+	 * @return - the number of cacheable queries executed because their result was not cached
+	 */
+	public long getResultCacheMisses();
+	
+	/**
+	 * @return - the share of cacheable queries answered from the result caches, 0.0 to 1.0
+	 */
+	public double getResultCacheHitRatio();
+	
+	/**
+	 * @return - the number of results removed to keep the result caches within their limits
+	 */
+	public long getResultCacheEvictions();
+	
+	/**
+	 * @return - the number of results removed because a table they read was written
+	 */
+	public long getResultCacheInvalidations();
+	
+	/**
+	 * @return - the number of connections reported as possible leaks because they 
+	 * 			 were in use longer than db.leakDetectionThresholdMs.
+	 */
+	public long getLeaksDetected();
+	
+	/**
+	 * @return - the number of connections the pool may open now.  An adaptive 
+	 * 			 pool changes it between its minimum and maximum connections, 
+	 * 			 otherwise it is the maximum connections.
+	 */
+	public int getPoolSizeLimit();
+	
+	/**
+	 * @return - the number of times an adaptive pool raised its size limit
+	 */
+	public long getPoolGrowCount();
+	
+	/**
+	 * @return - the number of times an adaptive pool lowered its size limit
+	 */
+	public long getPoolShrinkCount();
+	
+	/**
+	 * @return - the last size decision of an adaptive pool with the values it 
+	 * 			 was based on, null for a pool that does not adapt its size
+	 */
+	public String getLastSizeDecision();
+	
+}
@@ -0,0 +1,164 @@
+/* 
+ ******************************************************************************
+ * H2DbLib provides a simple connection pool for establishing connections to 
+ * an embedded H2 database.
+ * This file is part of H2DBLib.
+ *  
+ * Copyright (c) 2016-2017 Robert W. Anderson.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Robert W. Anderson - initial API and implementation and/or initial documentation
+ *    
+ * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
+ * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
+ * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
+ * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
+ * PARTICULAR PURPOSE.   
+ ******************************************************************************
+ */
+package net.bobs.own.db.h2.pool;
+
+import java.text.MessageFormat;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses the size of an adaptive pool between a minimum and a maximum.  It 
+ * is called once per interval with what the pool observed during the interval 
+ * and grows or shrinks the pool by one connection at a time:
+ * 
+ * <ul>
+ * <li>GROW when callers waited for a connection and the connections were busy.</li>
+ * <li>SHRINK back when a growth did not raise the throughput but made 
+ * 	   connections held longer, which is how H2 table locks show up.  A growth 
+ * 	   is judged on the second interval after it, the first one holds while the 
+ * 	   new connection settles in.  The size that did not help is not tried 
+ * 	   again for <code>BACKOFF_INTERVALS</code> intervals.</li>
+ * <li>SHRINK when no caller waited and the connections were mostly unused.</li>
+ * <li>HOLD otherwise.</li>
+ * </ul>
+ * 
+ * The sizer is only called from the pool's scheduled task and is not thread safe.
+ * 
+ * @author Robert Anderson
+ *
+ */
+class H2PoolSizer {
+
+	enum Decision {GROW, SHRINK, HOLD};
+	
+	/* Share of acquires that waited before the pool grows */
+	static final double GROW_WAIT_RATIO = 0.05;
+	/* Utilization needed before the pool grows */
+	static final double GROW_UTILIZATION = 0.75;
+	/* Utilization below which an unwaited pool shrinks */
+	static final double SHRINK_UTILIZATION = 0.40;
+	/* A growth must raise the throughput by this factor ... */
+	static final double MIN_THROUGHPUT_GAIN = 1.05;
+	/* ... or is undone when the hold time per borrow rose by this factor */
+	static final double MAX_HOLD_INCREASE = 1.20;
+	static final int BACKOFF_INTERVALS = 12;
+	
+	private final int minSize;
+	private final int maxSize;
+	private int size;
+	private String lastReason = "initial size";
+	/* The throughput and hold time of the interval before the last growth */
+	private double baseThroughput = 0.0;
+	private double baseHoldNanos = 0.0;
+	/* Intervals until the last growth is judged, 0 when no growth is pending */
+	private int settling = 0;
+	/* The pool does not grow to this size until the backoff has passed */
+	private int ceiling;
+	private int backoff = 0;
+	
+	/**
+	 * @param minSize - the smallest size, at least 1
+	 * @param maxSize - the largest size
+	 * @param initialSize - the starting size, kept within the bounds
+	 */
+	H2PoolSizer(int minSize, int maxSize, int initialSize) {
+		
+		this.minSize = Math.max(1, Math.min(minSize, maxSize));
+		this.maxSize = Math.max(this.minSize, maxSize);
+		size = Math.max(this.minSize, Math.min(initialSize, this.maxSize));
+		ceiling = this.maxSize + 1;
+	}
+	
+	/**
+	 * Decide the size for the next interval.
+	 * 
+	 * @param intervalNanos - the length of the interval
+	 * @param acquires - connections handed out during the interval
+	 * @param waited - acquires that had to wait for a connection, including timeouts
+	 * @param returns - connections returned during the interval
+	 * @param heldNanos - the time the returned connections were in use
+	 * @return - the decision, the new size is read with <code>getSize()</code>
+	 */
+	Decision decide(long intervalNanos, long acquires, long waited, long returns, long heldNanos) {
+		
+		double seconds = Math.max(1L, intervalNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+		double throughput = returns / seconds;
+		double holdNanos = returns == 0L ? 0.0 : heldNanos / (double) returns;
+		double utilization = Math.min(1.0, heldNanos / ((double) Math.max(1L, intervalNanos) * size));
+		double waitRatio = waited / (double) Math.max(1L, acquires);
+		
+		if (backoff > 0 && --backoff == 0) {
+			ceiling = maxSize + 1;
+		}
+		
+		Decision decision = Decision.HOLD;
+		String reason;
+		boolean judging = settling > 0 && --settling == 0;
+		if (settling > 0) {
+			reason = "growth settling";
+		} else if (judging && size > minSize && throughput < baseThroughput * MIN_THROUGHPUT_GAIN && 
+				   holdNanos > baseHoldNanos * MAX_HOLD_INCREASE) {
+			decision = Decision.SHRINK;
+			ceiling = size;
+			backoff = BACKOFF_INTERVALS;
+			reason = "growth did not raise throughput";
+		} else if (waitRatio > GROW_WAIT_RATIO && utilization > GROW_UTILIZATION && 
+				   size < maxSize && size + 1 < ceiling) {
+			decision = Decision.GROW;
+			reason = "callers waited";
+		} else if (waited == 0L && utilization < SHRINK_UTILIZATION && size > minSize) {
+			decision = Decision.SHRINK;
+			reason = "connections unused";
+		} else {
+			reason = "steady";
+		}
+		
+		int from = size;
+		if (decision == Decision.GROW) {
+			size++;
+			baseThroughput = throughput;
+			baseHoldNanos = holdNanos;
+			settling = 2;
+		} else if (decision == Decision.SHRINK) {
+			size--;
+		}
+		lastReason = MessageFormat.format("{0} {1}->{2}: {3} (wait ratio {4,number,0.00}, utilization " + 
+										  "{5,number,0.00}, {6,number,0} returns/s, hold {7,number,0} us)", 
+										  decision, from, size, reason, waitRatio, utilization, throughput, 
+										  holdNanos / 1000.0);
+		return decision;
+	}
+	
+	/**
+	 * @return - the size chosen by the last decision
+	 */
+	int getSize() {
+		return size;
+	}
+	
+	/**
+	 * @return - the last decision with its reason and the values it was based on
+	 */
+	String getLastReason() {
+		return lastReason;
+	}
+}
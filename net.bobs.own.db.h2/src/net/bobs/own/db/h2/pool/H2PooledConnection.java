@@ -0,0 +1,544 @@
+/* 
+ ******************************************************************************
+ * H2DbLib provides a simple connection pool for establishing connections to 
+ * an embedded H2 database.
+ * This file is part of H2DBLib.
+ *  
+ * Copyright (c) 2016-2017 Robert W. Anderson.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Robert W. Anderson - initial API and implementation and/or initial documentation
+ *    
+ * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
+ * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
+ * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
+ * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
+ * PARTICULAR PURPOSE.   
+ ******************************************************************************
+ */
+package net.bobs.own.db.h2.pool;
+
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import net.bobs.own.db.h2.resources.Messages;
+
+/**
+ * The <code>Connection</code> handed out by <code>H2MyOwnConnectionPool</code>.  
+ * Closing it returns the physical connection to the pool, so a pooled connection 
+ * can be used with try-with-resources instead of <code>closeConnection()</code>.
+ * 
+ * Each borrow gets its own instance, so a connection closed twice, or closed 
+ * again after the physical connection was handed to another caller, does not 
+ * return the physical connection a second time.  Once closed, the instance 
+ * throws on use.  Statements and meta data created from it return it from 
+ * getConnection().
+ * 
+ * The auto commit, transaction isolation, read only and catalog settings changed 
+ * by the caller are remembered, and only those are reset when the connection 
+ * is returned.  Uncommitted work is rolled back when the connection is returned 
+ * with auto commit off.  Statements prepared with the default result set type 
+ * and concurrency are taken from the statement cache of the pool.
+ * 
+ * @author Robert Anderson
+ *
+ */
+final class H2PooledConnection implements Connection {
+
+	private static final int DIRTY_AUTOCOMMIT = 1;
+	private static final int DIRTY_ISOLATION = 2;
+	private static final int DIRTY_READONLY = 4;
+	private static final int DIRTY_CATALOG = 8;
+	
+	private static final AtomicIntegerFieldUpdater<H2PooledConnection> OPEN = 
+			AtomicIntegerFieldUpdater.newUpdater(H2PooledConnection.class, "open");
+	
+	private final IH2ConnectionPool pool;
+	private final H2PoolEntry entry;
+	private final Connection delegate;
+	/* 1 while handed out, a field updater keeps a borrow to a single allocation */
+	private volatile int open;
+	
+	/* The settings of the physical connection when it was opened */
+	private final boolean defaultAutoCommit;
+	private final int defaultIsolation;
+	private final boolean defaultReadOnly;
+	private final String defaultCatalog;
+	
+	/* Only the thread using the connection changes these */
+	private boolean autoCommit;
+	private int dirtyBits = 0;
+	
+	/**
+	 * Create the closed connection of a new physical connection, which records 
+	 * its settings.  Callers get the connections returned by borrow().
+	 * 
+	 * @param pool - the pool of the connection
+	 * @param entry - the entry of the physical connection
+	 * @throws SQLException - the settings of the physical connection could not be read
+	 */
+	H2PooledConnection(IH2ConnectionPool pool, H2PoolEntry entry) throws SQLException {
+		
+		this.pool = pool;
+		this.entry = entry;
+		delegate = entry.getConnection();
+		defaultAutoCommit = delegate.getAutoCommit();
+		defaultIsolation = delegate.getTransactionIsolation();
+		defaultReadOnly = delegate.isReadOnly();
+		defaultCatalog = delegate.getCatalog();
+		autoCommit = defaultAutoCommit;
+		open = 0;
+	}
+	
+	private H2PooledConnection(H2PooledConnection previous) {
+		
+		pool = previous.pool;
+		entry = previous.entry;
+		delegate = previous.delegate;
+		defaultAutoCommit = previous.defaultAutoCommit;
+		defaultIsolation = previous.defaultIsolation;
+		defaultReadOnly = previous.defaultReadOnly;
+		defaultCatalog = previous.defaultCatalog;
+		autoCommit = defaultAutoCommit;
+		open = 1;
+	}
+	
+	/**
+	 * Create the open connection handed out for a new borrow of the same 
+	 * physical connection.  The previous connection must have been reset.
+	 * 
+	 * @return - a new open connection
+	 */
+	H2PooledConnection borrow() {
+		return new H2PooledConnection(this);
+	}
+	
+	/**
+	 * @return - the pool this connection belongs to
+	 */
+	IH2ConnectionPool getPool() {
+		return pool;
+	}
+	
+	/**
+	 * @return - the pool entry of the physical connection
+	 */
+	H2PoolEntry getEntry() {
+		return entry;
+	}
+	
+	/**
+	 * @return - true while the connection is handed out to a caller
+	 */
+	boolean isOpen() {
+		return open == 1;
+	}
+	
+	/**
+	 * Mark the connection as returned.
+	 * 
+	 * @return - true if the connection was open, false if it was already returned
+	 */
+	boolean markClosed() {
+		return OPEN.compareAndSet(this, 1, 0);
+	}
+	
+	/**
+	 * Undo the changes of the last caller: roll back uncommitted work and reset 
+	 * the changed settings.  Nothing is sent to the database for a connection 
+	 * used with the default settings and auto commit on.
+	 * 
+	 * @throws SQLException - the connection could not be reset and should be discarded
+	 */
+	void reset() throws SQLException {
+		
+		if (autoCommit == false) {
+			delegate.rollback();
+		}
+		if (dirtyBits == 0) {
+			return;
+		}
+		if ((dirtyBits & DIRTY_AUTOCOMMIT) != 0 && autoCommit != defaultAutoCommit) {
+			delegate.setAutoCommit(defaultAutoCommit);
+			autoCommit = defaultAutoCommit;
+		}
+		if ((dirtyBits & DIRTY_ISOLATION) != 0) {
+			delegate.setTransactionIsolation(defaultIsolation);
+		}
+		if ((dirtyBits & DIRTY_READONLY) != 0) {
+			delegate.setReadOnly(defaultReadOnly);
+		}
+		if ((dirtyBits & DIRTY_CATALOG) != 0 && defaultCatalog != null) {
+			delegate.setCatalog(defaultCatalog);
+		}
+		dirtyBits = 0;
+	}
+	
+	@Override
+	public void close() throws SQLException {
+		if (open == 1) {
+			pool.closeConnection(this);
+		}
+	}
+
+	@Override
+	public boolean isClosed() throws SQLException {
+		return open == 0 || delegate.isClosed();
+	}
+	
+	@Override
+	public boolean isValid(int timeout) throws SQLException {
+		return open == 1 && delegate.isValid(timeout);
+	}
+
+	@Override
+	public void setAutoCommit(boolean autoCommit) throws SQLException {
+		checkOpen();
+		delegate.setAutoCommit(autoCommit);
+		this.autoCommit = autoCommit;
+		dirtyBits |= DIRTY_AUTOCOMMIT;
+	}
+
+	@Override
+	public boolean getAutoCommit() throws SQLException {
+		checkOpen();
+		return delegate.getAutoCommit();
+	}
+
+	@Override
+	public void setTransactionIsolation(int level) throws SQLException {
+		checkOpen();
+		delegate.setTransactionIsolation(level);
+		dirtyBits |= DIRTY_ISOLATION;
+	}
+
+	@Override
+	public int getTransactionIsolation() throws SQLException {
+		checkOpen();
+		return delegate.getTransactionIsolation();
+	}
+
+	@Override
+	public void setReadOnly(boolean readOnly) throws SQLException {
+		checkOpen();
+		delegate.setReadOnly(readOnly);
+		dirtyBits |= DIRTY_READONLY;
+	}
+
+	@Override
+	public boolean isReadOnly() throws SQLException {
+		checkOpen();
+		return delegate.isReadOnly();
+	}
+
+	@Override
+	public void setCatalog(String catalog) throws SQLException {
+		checkOpen();
+		delegate.setCatalog(catalog);
+		dirtyBits |= DIRTY_CATALOG;
+	}
+
+	@Override
+	public String getCatalog() throws SQLException {
+		checkOpen();
+		return delegate.getCatalog();
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql) throws SQLException {
+		checkOpen();
+		return pool.prepareStatement(this, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency)
+			throws SQLException {
+		checkOpen();
+		return pool.prepareStatement(this, sql, resultSetType, resultSetConcurrency);
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency,
+			int resultSetHoldability) throws SQLException {
+		checkOpen();
+		return new H2PooledPreparedStatement<PreparedStatement>(this, 
+				delegate.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+		checkOpen();
+		return new H2PooledPreparedStatement<PreparedStatement>(this, delegate.prepareStatement(sql, autoGeneratedKeys));
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+		checkOpen();
+		return new H2PooledPreparedStatement<PreparedStatement>(this, delegate.prepareStatement(sql, columnIndexes));
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+		checkOpen();
+		return new H2PooledPreparedStatement<PreparedStatement>(this, delegate.prepareStatement(sql, columnNames));
+	}
+
+	@Override
+	public Statement createStatement() throws SQLException {
+		checkOpen();
+		return new H2PooledStatement<Statement>(this, delegate.createStatement());
+	}
+
+	@Override
+	public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+		checkOpen();
+		return new H2PooledStatement<Statement>(this, delegate.createStatement(resultSetType, resultSetConcurrency));
+	}
+
+	@Override
+	public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability)
+			throws SQLException {
+		checkOpen();
+		return new H2PooledStatement<Statement>(this, 
+				delegate.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability));
+	}
+
+	@Override
+	public CallableStatement prepareCall(String sql) throws SQLException {
+		checkOpen();
+		return new H2PooledCallableStatement(this, delegate.prepareCall(sql));
+	}
+
+	@Override
+	public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency)
+			throws SQLException {
+		checkOpen();
+		return new H2PooledCallableStatement(this, delegate.prepareCall(sql, resultSetType, resultSetConcurrency));
+	}
+
+	@Override
+	public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency,
+			int resultSetHoldability) throws SQLException {
+		checkOpen();
+		return new H2PooledCallableStatement(this, 
+				delegate.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+	}
+
+	@Override
+	public String nativeSQL(String sql) throws SQLException {
+		checkOpen();
+		return delegate.nativeSQL(sql);
+	}
+
+	@Override
+	public void commit() throws SQLException {
+		checkOpen();
+		delegate.commit();
+	}
+
+	@Override
+	public void rollback() throws SQLException {
+		checkOpen();
+		delegate.rollback();
+	}
+
+	@Override
+	public void rollback(Savepoint savepoint) throws SQLException {
+		checkOpen();
+		delegate.rollback(savepoint);
+	}
+
+	@Override
+	public Savepoint setSavepoint() throws SQLException {
+		checkOpen();
+		return delegate.setSavepoint();
+	}
+
+	@Override
+	public Savepoint setSavepoint(String name) throws SQLException {
+		checkOpen();
+		return delegate.setSavepoint(name);
+	}
+
+	@Override
+	public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+		checkOpen();
+		delegate.releaseSavepoint(savepoint);
+	}
+
+	@Override
+	public DatabaseMetaData getMetaData() throws SQLException {
+		checkOpen();
+		return new H2PooledDatabaseMetaData(this, delegate.getMetaData());
+	}
+
+	@Override
+	public SQLWarning getWarnings() throws SQLException {
+		checkOpen();
+		return delegate.getWarnings();
+	}
+
+	@Override
+	public void clearWarnings() throws SQLException {
+		checkOpen();
+		delegate.clearWarnings();
+	}
+
+	@Override
+	public Map<String, Class<?>> getTypeMap() throws SQLException {
+		checkOpen();
+		return delegate.getTypeMap();
+	}
+
+	@Override
+	public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+		checkOpen();
+		delegate.setTypeMap(map);
+	}
+
+	@Override
+	public void setHoldability(int holdability) throws SQLException {
+		checkOpen();
+		delegate.setHoldability(holdability);
+	}
+
+	@Override
+	public int getHoldability() throws SQLException {
+		checkOpen();
+		return delegate.getHoldability();
+	}
+
+	@Override
+	public Clob createClob() throws SQLException {
+		checkOpen();
+		return delegate.createClob();
+	}
+
+	@Override
+	public Blob createBlob() throws SQLException {
+		checkOpen();
+		return delegate.createBlob();
+	}
+
+	@Override
+	public NClob createNClob() throws SQLException {
+		checkOpen();
+		return delegate.createNClob();
+	}
+
+	@Override
+	public SQLXML createSQLXML() throws SQLException {
+		checkOpen();
+		return delegate.createSQLXML();
+	}
+
+	@Override
+	public void setClientInfo(String name, String value) throws SQLClientInfoException {
+		delegate.setClientInfo(name, value);
+	}
+
+	@Override
+	public void setClientInfo(Properties properties) throws SQLClientInfoException {
+		delegate.setClientInfo(properties);
+	}
+
+	@Override
+	public String getClientInfo(String name) throws SQLException {
+		checkOpen();
+		return delegate.getClientInfo(name);
+	}
+
+	@Override
+	public Properties getClientInfo() throws SQLException {
+		checkOpen();
+		return delegate.getClientInfo();
+	}
+
+	@Override
+	public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+		checkOpen();
+		return delegate.createArrayOf(typeName, elements);
+	}
+
+	@Override
+	public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+		checkOpen();
+		return delegate.createStruct(typeName, attributes);
+	}
+
+	@Override
+	public void setSchema(String schema) throws SQLException {
+		checkOpen();
+		delegate.setSchema(schema);
+	}
+
+	@Override
+	public String getSchema() throws SQLException {
+		checkOpen();
+		return delegate.getSchema();
+	}
+
+	@Override
+	public void abort(Executor executor) throws SQLException {
+		delegate.abort(executor);
+	}
+
+	@Override
+	public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+		checkOpen();
+		delegate.setNetworkTimeout(executor, milliseconds);
+	}
+
+	@Override
+	public int getNetworkTimeout() throws SQLException {
+		checkOpen();
+		return delegate.getNetworkTimeout();
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		
+		if (iface.isInstance(delegate)) {
+			return iface.cast(delegate);
+		}
+		return delegate.unwrap(iface);
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return iface.isInstance(delegate) || delegate.isWrapperFor(iface);
+	}
+	
+	@Override
+	public String toString() {
+		return "H2PooledConnection[open=" + (open == 1) + ", delegate=" + delegate + "]";
+	}
+	
+	private void checkOpen() throws SQLException {
+		if (open == 0) {
+			throw new SQLException(Messages.errormsg_connection_closed);
+		}
+	}
+}
@@ -0,0 +1,448 @@
+/* 
+ ******************************************************************************
+ * H2DbLib provides a simple connection pool for establishing connections to 
+ * an embedded H2 database.
+ * This file is part of H2DBLib.
+ *  
+ * Copyright (c) 2016-2017 Robert W. Anderson.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Robert W. Anderson - initial API and implementation and/or initial documentation
+ *    
+ * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
+ * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
+ * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
+ * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
+ * PARTICULAR PURPOSE.   
+ ******************************************************************************
+ */
+package net.bobs.own.db.h2.pool;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.h2.tools.SimpleResultSet;
+
+/**
+ * A least recently used cache of query results for one <code>H2Database</code>.  
+ * Results are keyed by the SQL text and the parameter values, and kept as 
+ * rows of column values, so a cached result is read again through a 
+ * <code>ResultSet</code> by any <code>RowMapper</code>.  The cache holds at most 
+ * <code>maxEntries</code> results and about <code>maxBytes</code> bytes of values.
+ * 
+ * Each result is indexed by the tables named in its query.  Writing a table 
+ * removes the results that read it.  A result read while one of its tables 
+ * was written is not cached, it may be older than the write.  Only queries 
+ * whose tables can be found in the SQL text are cached.
+ * 
+ * @author Robert Anderson
+ *
+ */
+class H2ResultCache {
+
+	/* Identifier: quoted, or unquoted; optionally schema qualified */
+	private static final String IDENTIFIER = "(?:\"[^\"]+\"|[A-Za-z_][\\w$]*)";
+	private static final String TABLE_NAME = IDENTIFIER + "(?:\\s*\\.\\s*" + IDENTIFIER + ")?";
+	private static final String TABLE_REF = TABLE_NAME + "(?:\\s+(?:AS\\s+)?(?!(?:WHERE|GROUP|ORDER|HAVING|LIMIT|OFFSET|UNION|EXCEPT|MINUS|INTERSECT|FOR|JOIN|INNER|LEFT|RIGHT|FULL|CROSS|NATURAL|ON)\\b)" + IDENTIFIER + ")?";
+	private static final Pattern READ_TABLES = Pattern.compile(
+			"\\b(?:FROM|JOIN)\\s+(" + TABLE_REF + "(?:\\s*,\\s*" + TABLE_REF + ")*)", Pattern.CASE_INSENSITIVE);
+	private static final Pattern TABLE_IN_LIST = Pattern.compile(
+			"(?:^|,)\\s*(" + TABLE_NAME + ")", Pattern.CASE_INSENSITIVE);
+	private static final Pattern WRITE_TABLE = Pattern.compile(
+			"^\\s*(?:INSERT\\s+INTO|MERGE\\s+INTO|UPDATE|DELETE\\s+FROM|DELETE|TRUNCATE\\s+TABLE|" +
+			"DROP\\s+TABLE(?:\\s+IF\\s+EXISTS)?|ALTER\\s+TABLE(?:\\s+IF\\s+EXISTS)?)\\s+(" + TABLE_NAME + ")", 
+			Pattern.CASE_INSENSITIVE);
+	private static final Pattern NO_WRITE = Pattern.compile(
+			"^\\s*(?:SELECT|WITH|VALUES|EXPLAIN|SHOW|CREATE\\s+(?:CACHED\\s+|MEMORY\\s+)?TABLE|CREATE\\s+(?:UNIQUE\\s+)?INDEX|COMMIT|ROLLBACK|SAVEPOINT)\\b", 
+			Pattern.CASE_INSENSITIVE);
+	private static final Pattern LITERALS_AND_COMMENTS = Pattern.compile(
+			"'(?:[^']|'')*'|--[^\\n]*|/\\*.*?\\*/", Pattern.DOTALL);
+	
+	private static final long ROW_BYTES = 16L;
+	private static final long VALUE_BYTES = 24L;
+	
+	private final int maxEntries;
+	private final long maxBytes;
+	private final H2PoolMetrics metrics;
+	private final LinkedHashMap<Key,Result> results;
+	private final Map<String,Set<Key>> keysByTable = new HashMap<String,Set<Key>>();
+	/* The sequence number of the last write of each table */
+	private final Map<String,Long> tableWrites = new HashMap<String,Long>();
+	private long sequence = 0L;
+	/* The sequence number of the last invalidation of all results */
+	private long allWritten = 0L;
+	private long bytes = 0L;
+	
+	/**
+	 * Create a result cache.
+	 * 
+	 * @param maxEntries - the most results kept
+	 * @param maxBytes - the approximate size of the kept values
+	 * @param metrics - records hits, misses, evictions and invalidations, may be null
+	 */
+	H2ResultCache(int maxEntries, long maxBytes, H2PoolMetrics metrics) {
+		
+		if (maxEntries <= 0 || maxBytes <= 0L) {
+			throw new IllegalArgumentException("Result cache limits must be greater than 0");
+		}
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.metrics = metrics;
+		results = new LinkedHashMap<Key,Result>(16, 0.75f, true);
+	}
+	
+	/**
+	 * Find a cached result.
+	 * 
+	 * @param key - the query key
+	 * @return - a new <code>ResultSet</code> over the cached rows, or null
+	 */
+	synchronized ResultSet get(Key key) {
+		
+		Result result = results.get(key);
+		if (metrics != null) {
+			if (result != null) {
+				metrics.recordResultCacheHit();
+			} else {
+				metrics.recordResultCacheMiss();
+			}
+		}
+		return result == null ? null : result.resultSet();
+	}
+	
+	/**
+	 * @return - the stamp to pass to <code>put</code>, taken before the query is executed
+	 */
+	synchronized long stamp() {
+		return sequence;
+	}
+	
+	/**
+	 * Read a result set to its end and cache its rows, unless one of the 
+	 * tables was written after the stamp was taken or the result is too big.
+	 * 
+	 * @param key - the query key
+	 * @param rset - the result set, positioned before the first row
+	 * @param stamp - the stamp taken before the query was executed
+	 * @return - a new <code>ResultSet</code> over the rows read
+	 * @throws SQLException
+	 */
+	ResultSet put(Key key, ResultSet rset, long stamp) throws SQLException {
+		
+		Result result = Result.read(rset);
+		if (result.bytes > maxBytes) {
+			return result.resultSet();
+		}
+		synchronized (this) {
+			if (allWritten > stamp) {
+				return result.resultSet();
+			}
+			for (String table : key.tables) {
+				Long written = tableWrites.get(table);
+				if (written != null && written.longValue() > stamp) {
+					return result.resultSet();
+				}
+			}
+			Result previous = results.put(key, result);
+			if (previous != null) {
+				bytes -= previous.bytes;
+			} else {
+				for (String table : key.tables) {
+					Set<Key> keys = keysByTable.get(table);
+					if (keys == null) {
+						keys = new HashSet<Key>();
+						keysByTable.put(table, keys);
+					}
+					keys.add(key);
+				}
+			}
+			bytes += result.bytes;
+			evict();
+		}
+		return result.resultSet();
+	}
+	
+	/**
+	 * Remove the results that read the tables.
+	 * 
+	 * @param tables - the table names as returned by <code>writeTables</code>
+	 */
+	synchronized void invalidate(Collection<String> tables) {
+		
+		int removed = 0;
+		sequence++;
+		for (String table : tables) {
+			tableWrites.put(table, sequence);
+			Set<Key> keys = keysByTable.remove(table);
+			if (keys != null) {
+				for (Key key : keys) {
+					if (remove(key)) {
+						removed++;
+					}
+				}
+			}
+		}
+		if (metrics != null && removed > 0) {
+			metrics.recordResultCacheInvalidations(removed);
+		}
+	}
+	
+	/**
+	 * Remove all results.
+	 */
+	synchronized void invalidateAll() {
+		
+		/* Queries running now are not cached */
+		allWritten = ++sequence;
+		
+		if (metrics != null && results.isEmpty() == false) {
+			metrics.recordResultCacheInvalidations(results.size());
+		}
+		results.clear();
+		keysByTable.clear();
+		bytes = 0L;
+	}
+	
+	synchronized int size() {
+		return results.size();
+	}
+	
+	/*
+	 * Remove the least recently used results until the cache is within its limits.
+	 */
+	private void evict() {
+		
+		int evicted = 0;
+		Iterator<Map.Entry<Key,Result>> eldest = results.entrySet().iterator();
+		while ((results.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+			Map.Entry<Key,Result> entry = eldest.next();
+			eldest.remove();
+			bytes -= entry.getValue().bytes;
+			unindex(entry.getKey());
+			evicted++;
+		}
+		if (metrics != null && evicted > 0) {
+			metrics.recordResultCacheEvictions(evicted);
+		}
+	}
+	
+	private boolean remove(Key key) {
+		
+		Result result = results.remove(key);
+		if (result == null) {
+			return false;
+		}
+		bytes -= result.bytes;
+		unindex(key);
+		return true;
+	}
+	
+	private void unindex(Key key) {
+		
+		for (String table : key.tables) {
+			Set<Key> keys = keysByTable.get(table);
+			if (keys != null) {
+				keys.remove(key);
+				if (keys.isEmpty()) {
+					keysByTable.remove(table);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Find the tables a query reads.
+	 * 
+	 * @param sqlText - the query
+	 * @return - the table names, null when the query is not a SELECT or no table was found
+	 */
+	static Set<String> readTables(String sqlText) {
+		
+		String sql = stripLiterals(sqlText);
+		if (sql.trim().regionMatches(true, 0, "SELECT", 0, 6) == false && 
+			sql.trim().regionMatches(true, 0, "WITH", 0, 4) == false) {
+			return null;
+		}
+		Set<String> tables = new HashSet<String>();
+		Matcher refs = READ_TABLES.matcher(sql);
+		while (refs.find()) {
+			Matcher names = TABLE_IN_LIST.matcher(refs.group(1));
+			while (names.find()) {
+				tables.add(normalize(names.group(1)));
+			}
+		}
+		return tables.isEmpty() ? null : tables;
+	}
+	
+	/**
+	 * Find the table a statement writes.
+	 * 
+	 * @param sqlText - the statement
+	 * @return - the table names, empty for statements that write no table, 
+	 * 			 null when the tables written are not known
+	 */
+	static Set<String> writeTables(String sqlText) {
+		
+		String sql = stripLiterals(sqlText);
+		Matcher write = WRITE_TABLE.matcher(sql);
+		if (write.find()) {
+			return Collections.singleton(normalize(write.group(1)));
+		}
+		if (NO_WRITE.matcher(sql).find()) {
+			return Collections.emptySet();
+		}
+		return null;
+	}
+	
+	/*
+	 * The table name without schema, unquoted names in upper case as H2 stores them.
+	 */
+	static String normalize(String name) {
+		
+		String table = name.trim();
+		int dot = table.lastIndexOf('.');
+		if (dot >= 0 && (table.endsWith("\"") == false || table.lastIndexOf('"', table.length() - 2) < dot)) {
+			table = table.substring(dot + 1).trim();
+		}
+		if (table.length() > 1 && table.startsWith("\"") && table.endsWith("\"")) {
+			return table.substring(1, table.length() - 1);
+		}
+		return table.toUpperCase(Locale.ENGLISH);
+	}
+	
+	private static String stripLiterals(String sqlText) {
+		return LITERALS_AND_COMMENTS.matcher(sqlText).replaceAll(" ");
+	}
+	
+	/**
+	 * The cache key of a query: the SQL text and parameter values.
+	 */
+	static final class Key {
+		
+		final String sqlText;
+		final Object[] params;
+		final Set<String> tables;
+		private final int hash;
+		
+		Key(String sqlText, Object[] params, Set<String> tables) {
+			this.sqlText = sqlText;
+			this.params = params == null ? new Object[0] : params.clone();
+			this.tables = tables;
+			this.hash = 31 * sqlText.hashCode() + Arrays.deepHashCode(this.params);
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			
+			if (this == obj) {
+				return true;
+			}
+			if (obj instanceof Key == false) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return hash == other.hash && sqlText.equals(other.sqlText) && Arrays.deepEquals(params, other.params);
+		}
+	}
+	
+	/*
+	 * The columns and rows of a cached result.
+	 */
+	private static final class Result {
+		
+		final String[] names;
+		final int[] types;
+		final int[] precisions;
+		final int[] scales;
+		final List<Object[]> rows;
+		final long bytes;
+		
+		private Result(String[] names, int[] types, int[] precisions, int[] scales, 
+					   List<Object[]> rows, long bytes) {
+			this.names = names;
+			this.types = types;
+			this.precisions = precisions;
+			this.scales = scales;
+			this.rows = rows;
+			this.bytes = bytes;
+		}
+		
+		/*
+		 * Read all rows and estimate the size of their values.
+		 */
+		static Result read(ResultSet rset) throws SQLException {
+			
+			ResultSetMetaData meta = rset.getMetaData();
+			int columns = meta.getColumnCount();
+			String[] names = new String[columns];
+			int[] types = new int[columns];
+			int[] precisions = new int[columns];
+			int[] scales = new int[columns];
+			for (int ix = 0; ix < columns; ix++) {
+				names[ix] = meta.getColumnLabel(ix + 1);
+				types[ix] = meta.getColumnType(ix + 1);
+				precisions[ix] = meta.getPrecision(ix + 1);
+				scales[ix] = meta.getScale(ix + 1);
+			}
+			
+			List<Object[]> rows = new ArrayList<Object[]>();
+			long bytes = 0L;
+			while (rset.next()) {
+				Object[] row = new Object[columns];
+				bytes += ROW_BYTES;
+				for (int ix = 0; ix < columns; ix++) {
+					row[ix] = rset.getObject(ix + 1);
+					bytes += sizeOf(row[ix]);
+				}
+				rows.add(row);
+			}
+			return new Result(names, types, precisions, scales, rows, bytes);
+		}
+		
+		ResultSet resultSet() {
+			
+			SimpleResultSet rset = new SimpleResultSet();
+			for (int ix = 0; ix < names.length; ix++) {
+				rset.addColumn(names[ix], types[ix], precisions[ix], scales[ix]);
+			}
+			for (Object[] row : rows) {
+				rset.addRow(row);
+			}
+			return rset;
+		}
+		
+		private static long sizeOf(Object value) {
+			
+			if (value instanceof String) {
+				return VALUE_BYTES + 2L * ((String) value).length();
+			} else if (value instanceof byte[]) {
+				return VALUE_BYTES + ((byte[]) value).length;
+			}
+			return VALUE_BYTES;
+		}
+	}
+}
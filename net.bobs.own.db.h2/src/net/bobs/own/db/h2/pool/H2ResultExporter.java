@@ -0,0 +1,449 @@
+/* 
+ ******************************************************************************
+ * H2DbLib provides a simple connection pool for establishing connections to 
+ * an embedded H2 database.
+ * This file is part of H2DBLib.
+ *  
+ * Copyright (c) 2016-2017 Robert W. Anderson.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Robert W. Anderson - initial API and implementation and/or initial documentation
+ *    
+ * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
+ * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
+ * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
+ * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
+ * PARTICULAR PURPOSE.   
+ ******************************************************************************
+ */
+package net.bobs.own.db.h2.pool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.GZIPOutputStream;
+
+import net.bobs.own.db.h2.db.ExportFormat;
+
+/**
+ * Writes query results as CSV or NDJSON to a channel.  Values are encoded as 
+ * UTF-8 straight into a direct <code>ByteBuffer</code> that is written to the 
+ * channel whenever it is full, so an export never holds more than the current 
+ * row and one buffer.  Integer columns are encoded without creating strings.
+ * 
+ * Buffers are reused by later exports, an exporter keeps at most 
+ * <code>MAX_IDLE_BUFFERS</code> buffers.  Exports may run concurrently.
+ * 
+ * @author Robert Anderson
+ *
+ */
+class H2ResultExporter {
+
+	static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_IDLE_BUFFERS = 4;
+	private static final byte[] CSV_LINE_END = {'\r', '\n'};
+	private static final byte[] JSON_NULL = {'n', 'u', 'l', 'l'};
+	private static final byte[] JSON_TRUE = {'t', 'r', 'u', 'e'};
+	private static final byte[] JSON_FALSE = {'f', 'a', 'l', 's', 'e'};
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+	
+	private final Queue<ByteBuffer> idleBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	
+	/**
+	 * Write all rows of a result set to a channel.  The channel is not closed, 
+	 * with gzip the compressed stream is finished.
+	 * 
+	 * @param rset - the result set, positioned before the first row
+	 * @param format - CSV or NDJSON
+	 * @param channel - the channel written to
+	 * @param gzip - true to compress the output with gzip
+	 * @return - the number of rows written
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	long export(ResultSet rset, ExportFormat format, WritableByteChannel channel, boolean gzip) 
+			throws SQLException, IOException {
+		
+		ByteBuffer buffer = idleBuffers.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+		GZIPOutputStream gzipStream = null;
+		WritableByteChannel target = channel;
+		if (gzip) {
+			gzipStream = new GZIPOutputStream(new UnclosedOutputStream(channel), BUFFER_SIZE);
+			target = Channels.newChannel(gzipStream);
+		}
+		
+		try {
+			Encoder encoder = new Encoder(buffer, target);
+			long rows = format == ExportFormat.CSV ? writeCsv(rset, encoder) : writeNdjson(rset, encoder);
+			encoder.flush();
+			if (gzipStream != null) {
+				gzipStream.finish();
+				gzipStream.flush();
+			}
+			return rows;
+		} finally {
+			if (gzipStream != null) {
+				closeGzip(gzipStream);
+			}
+			buffer.clear();
+			if (idleBuffers.size() < MAX_IDLE_BUFFERS) {
+				idleBuffers.offer(buffer);
+			}
+		}
+	}
+	
+	/*
+	 * Free the native memory of the Deflater, the caller's channel stays open.  
+	 * A finished stream closes without writing, so an exception here means the 
+	 * export already failed and that exception is the one reported.
+	 */
+	private void closeGzip(GZIPOutputStream gzipStream) {
+		
+		try {
+			gzipStream.close();
+		} catch (IOException ioex) {
+			//The export failed, the caller gets the original exception
+		}
+	}
+	
+	private long writeCsv(ResultSet rset, Encoder encoder) throws SQLException, IOException {
+		
+		ResultSetMetaData meta = rset.getMetaData();
+		int columns = meta.getColumnCount();
+		boolean[] integral = integralColumns(meta);
+		for (int ix = 1; ix <= columns; ix++) {
+			if (ix > 1) {
+				encoder.put((byte) ',');
+			}
+			encoder.putCsv(meta.getColumnLabel(ix));
+		}
+		encoder.put(CSV_LINE_END);
+		
+		long rows = 0L;
+		while (rset.next()) {
+			for (int ix = 1; ix <= columns; ix++) {
+				if (ix > 1) {
+					encoder.put((byte) ',');
+				}
+				if (integral[ix - 1]) {
+					long value = rset.getLong(ix);
+					if (rset.wasNull() == false) {
+						encoder.putLong(value);
+					}
+				} else {
+					String value = rset.getString(ix);
+					if (value != null) {
+						encoder.putCsv(value);
+					}
+				}
+			}
+			encoder.put(CSV_LINE_END);
+			rows++;
+		}
+		return rows;
+	}
+	
+	private long writeNdjson(ResultSet rset, Encoder encoder) throws SQLException, IOException {
+		
+		ResultSetMetaData meta = rset.getMetaData();
+		int columns = meta.getColumnCount();
+		boolean[] integral = integralColumns(meta);
+		int[] types = new int[columns];
+		/* The keys are encoded once: {"LABEL": and ,"LABEL": */
+		byte[][] keys = new byte[columns][];
+		for (int ix = 0; ix < columns; ix++) {
+			types[ix] = meta.getColumnType(ix + 1);
+			StringBuilder key = new StringBuilder(ix == 0 ? "{" : ",");
+			appendJsonString(key, meta.getColumnLabel(ix + 1));
+			keys[ix] = key.append(':').toString().getBytes(StandardCharsets.UTF_8);
+		}
+		
+		long rows = 0L;
+		while (rset.next()) {
+			for (int ix = 0; ix < columns; ix++) {
+				encoder.put(keys[ix]);
+				if (integral[ix]) {
+					long value = rset.getLong(ix + 1);
+					if (rset.wasNull()) {
+						encoder.put(JSON_NULL);
+					} else {
+						encoder.putLong(value);
+					}
+				} else if (types[ix] == Types.BOOLEAN || types[ix] == Types.BIT) {
+					boolean value = rset.getBoolean(ix + 1);
+					encoder.put(rset.wasNull() ? JSON_NULL : value ? JSON_TRUE : JSON_FALSE);
+				} else {
+					String value = rset.getString(ix + 1);
+					if (value == null) {
+						encoder.put(JSON_NULL);
+					} else if (isJsonNumber(types[ix], value)) {
+						encoder.putAscii(value);
+					} else {
+						encoder.putJson(value);
+					}
+				}
+			}
+			if (columns == 0) {
+				encoder.put((byte) '{');
+			}
+			encoder.put((byte) '}');
+			encoder.put((byte) '\n');
+			rows++;
+		}
+		return rows;
+	}
+	
+	private static boolean[] integralColumns(ResultSetMetaData meta) throws SQLException {
+		
+		boolean[] integral = new boolean[meta.getColumnCount()];
+		for (int ix = 0; ix < integral.length; ix++) {
+			switch (meta.getColumnType(ix + 1)) {
+				case Types.TINYINT:
+				case Types.SMALLINT:
+				case Types.INTEGER:
+				case Types.BIGINT:
+					integral[ix] = true;
+					break;
+				default:
+					integral[ix] = false;
+			}
+		}
+		return integral;
+	}
+	
+	/*
+	 * Decimal and floating point values are written as JSON numbers unless 
+	 * they are NaN or infinite.
+	 */
+	private static boolean isJsonNumber(int type, String value) {
+		
+		switch (type) {
+			case Types.DECIMAL:
+			case Types.NUMERIC:
+			case Types.REAL:
+			case Types.FLOAT:
+			case Types.DOUBLE:
+				char first = value.charAt(0);
+				return first == '-' ? value.length() > 1 && Character.isDigit(value.charAt(1)) 
+									: Character.isDigit(first);
+			default:
+				return false;
+		}
+	}
+	
+	private static void appendJsonString(StringBuilder json, String value) {
+		
+		json.append('"');
+		for (int ix = 0; ix < value.length(); ix++) {
+			char ch = value.charAt(ix);
+			if (ch == '"' || ch == '\\') {
+				json.append('\\').append(ch);
+			} else if (ch < 0x20) {
+				json.append(String.format("\\u%04x", (int) ch));
+			} else {
+				json.append(ch);
+			}
+		}
+		json.append('"');
+	}
+	
+	/*
+	 * Encodes values as UTF-8 into the buffer, the buffer is written to the 
+	 * channel when it is full.
+	 */
+	private static final class Encoder {
+		
+		private final ByteBuffer buffer;
+		private final WritableByteChannel channel;
+		/* Digits of a long, filled from the end */
+		private final byte[] digits = new byte[20];
+		
+		Encoder(ByteBuffer buffer, WritableByteChannel channel) {
+			this.buffer = buffer;
+			this.channel = channel;
+		}
+		
+		void put(byte value) throws IOException {
+			
+			if (buffer.hasRemaining() == false) {
+				flush();
+			}
+			buffer.put(value);
+		}
+		
+		void put(byte[] bytes) throws IOException {
+			
+			if (buffer.remaining() < bytes.length) {
+				flush();
+			}
+			buffer.put(bytes);
+		}
+		
+		void putLong(long value) throws IOException {
+			
+			if (value == Long.MIN_VALUE) {
+				putAscii("-9223372036854775808");
+				return;
+			}
+			if (buffer.remaining() < digits.length) {
+				flush();
+			}
+			long rest = value < 0L ? -value : value;
+			int pos = digits.length;
+			do {
+				digits[--pos] = (byte) ('0' + (int) (rest % 10L));
+				rest /= 10L;
+			} while (rest != 0L);
+			if (value < 0L) {
+				buffer.put((byte) '-');
+			}
+			buffer.put(digits, pos, digits.length - pos);
+		}
+		
+		void putAscii(String value) throws IOException {
+			for (int ix = 0; ix < value.length(); ix++) {
+				put((byte) value.charAt(ix));
+			}
+		}
+		
+		/*
+		 * A CSV field, quoted when it contains a separator, quote or line break.
+		 */
+		void putCsv(String value) throws IOException {
+			
+			boolean quote = false;
+			for (int ix = 0; ix < value.length() && quote == false; ix++) {
+				char ch = value.charAt(ix);
+				quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+			}
+			if (quote) {
+				put((byte) '"');
+			}
+			for (int ix = 0; ix < value.length(); ix++) {
+				char ch = value.charAt(ix);
+				if (ch == '"') {
+					put((byte) '"');
+				}
+				ix = putChar(value, ix);
+			}
+			if (quote) {
+				put((byte) '"');
+			}
+		}
+		
+		void putJson(String value) throws IOException {
+			
+			put((byte) '"');
+			for (int ix = 0; ix < value.length(); ix++) {
+				char ch = value.charAt(ix);
+				if (ch == '"' || ch == '\\') {
+					put((byte) '\\');
+					put((byte) ch);
+				} else if (ch == '\n') {
+					put((byte) '\\');
+					put((byte) 'n');
+				} else if (ch == '\r') {
+					put((byte) '\\');
+					put((byte) 'r');
+				} else if (ch == '\t') {
+					put((byte) '\\');
+					put((byte) 't');
+				} else if (ch < 0x20) {
+					put((byte) '\\');
+					put((byte) 'u');
+					put((byte) '0');
+					put((byte) '0');
+					put(HEX[ch >> 4]);
+					put(HEX[ch & 0xF]);
+				} else {
+					ix = putChar(value, ix);
+				}
+			}
+			put((byte) '"');
+		}
+		
+		/*
+		 * Encode the character at ix as UTF-8, returns the index of the last 
+		 * character used, a surrogate pair uses two.
+		 */
+		private int putChar(String value, int ix) throws IOException {
+			
+			if (buffer.remaining() < 4) {
+				flush();
+			}
+			char ch = value.charAt(ix);
+			if (ch < 0x80) {
+				buffer.put((byte) ch);
+			} else if (ch < 0x800) {
+				buffer.put((byte) (0xC0 | (ch >> 6)));
+				buffer.put((byte) (0x80 | (ch & 0x3F)));
+			} else if (Character.isHighSurrogate(ch) && ix + 1 < value.length() && 
+					   Character.isLowSurrogate(value.charAt(ix + 1))) {
+				int code = Character.toCodePoint(ch, value.charAt(ix + 1));
+				buffer.put((byte) (0xF0 | (code >> 18)));
+				buffer.put((byte) (0x80 | ((code >> 12) & 0x3F)));
+				buffer.put((byte) (0x80 | ((code >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (code & 0x3F)));
+				return ix + 1;
+			} else if (Character.isSurrogate(ch)) {
+				/* An unpaired surrogate cannot be encoded */
+				buffer.put((byte) '?');
+			} else {
+				buffer.put((byte) (0xE0 | (ch >> 12)));
+				buffer.put((byte) (0x80 | ((ch >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (ch & 0x3F)));
+			}
+			return ix;
+		}
+		
+		void flush() throws IOException {
+			
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+	
+	/*
+	 * Writes to a channel, finishing the gzip stream must not close the caller's channel.
+	 */
+	private static final class UnclosedOutputStream extends java.io.OutputStream {
+		
+		private final WritableByteChannel channel;
+		
+		UnclosedOutputStream(WritableByteChannel channel) {
+			this.channel = channel;
+		}
+		
+		@Override
+		public void write(int value) throws IOException {
+			write(new byte[] {(byte) value}, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			
+			ByteBuffer wrapped = ByteBuffer.wrap(bytes, offset, length);
+			while (wrapped.hasRemaining()) {
+				channel.write(wrapped);
+			}
+		}
+	}
+}
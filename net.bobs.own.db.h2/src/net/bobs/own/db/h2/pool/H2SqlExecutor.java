@@ -0,0 +1,247 @@
+/* 
+ ******************************************************************************
+ * H2DbLib provides a simple connection pool for establishing connections to 
+ * an embedded H2 database.
+ * This file is part of H2DBLib.
+ *  
+ * Copyright (c) 2016-2017 Robert W. Anderson.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Robert W. Anderson - initial API and implementation and/or initial documentation
+ *    
+ * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
+ * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
+ * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
+ * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
+ * PARTICULAR PURPOSE.   
+ ******************************************************************************
+ */
+package net.bobs.own.db.h2.pool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.bobs.own.db.h2.db.AutoGeneratedKeysList;
+import net.bobs.own.db.h2.db.AutoGeneratedKeysResult;
+import net.bobs.own.db.h2.db.BatchBinder;
+import net.bobs.own.db.h2.db.RowMapper;
+import net.bobs.own.db.h2.db.StatementBinder;
+
+/**
+ * Stateless execution of SQL statements on a connection pool.  Each call 
+ * borrows a connection, prepares, binds and executes its statement and 
+ * returns the connection to the pool before it returns, also when it fails.  
+ * The executor keeps no statement, result set or connection between calls, 
+ * so one instance can be shared by all threads of an application.
+ * 
+ * Unlike <code>H2AbstractDatabaseService</code> there is no <code>setSQL()</code> 
+ * step, the SQL text and a binder for its parameters are passed to each call.
+ * 
+ * @author Robert Anderson
+ *
+ */
+public class H2SqlExecutor {
+
+	private final IH2ConnectionPool pool;
+	
+	/**
+	 * Create an executor for a connection pool.
+	 * 
+	 * @param pool - the connection pool to use
+	 */
+	public H2SqlExecutor(IH2ConnectionPool pool) {
+		this.pool = pool;
+	}
+	
+	/**
+	 * Execute a query and map all rows.
+	 * 
+	 * @param sqlText - The SQL query text to be executed.
+	 * @param binder - sets the parameter values, may be null
+	 * @param mapper - maps each row to an object
+	 * @return - the mapped rows
+	 * @throws SQLException
+	 */
+	public <T> List<T> query(String sqlText, StatementBinder binder, RowMapper<T> mapper) throws SQLException {
+		
+		Connection conn = pool.getConnection();
+		try (PreparedStatement prep = prepare(conn, sqlText, binder); 
+			 ResultSet rset = prep.executeQuery()) {
+			List<T> rows = new ArrayList<T>();
+			int rowNum = 0;
+			while (rset.next()) {
+				rows.add(mapper.mapRow(rset, ++rowNum));
+			}
+			return rows;
+		} finally {
+			pool.closeConnection(conn);
+		}
+	}
+	
+	/**
+	 * Execute a query and map its first row.
+	 * 
+	 * @param sqlText - The SQL query text to be executed.
+	 * @param binder - sets the parameter values, may be null
+	 * @param mapper - maps the row to an object
+	 * @return - the mapped first row, null if the query returned no rows
+	 * @throws SQLException
+	 */
+	public <T> T queryFirst(String sqlText, StatementBinder binder, RowMapper<T> mapper) throws SQLException {
+		
+		Connection conn = pool.getConnection();
+		try (PreparedStatement prep = prepare(conn, sqlText, binder)) {
+			/* The statement may be cached, other callers of the same SQL must get all rows */
+			int maxRows = prep.getMaxRows();
+			prep.setMaxRows(1);
+			try (ResultSet rset = prep.executeQuery()) {
+				return rset.next() ? mapper.mapRow(rset, 1) : null;
+			} finally {
+				prep.setMaxRows(maxRows);
+			}
+		} finally {
+			pool.closeConnection(conn);
+		}
+	}
+	
+	/**
+	 * Execute an INSERT, UPDATE, DELETE or DDL statement.
+	 * 
+	 * @param sqlText - The SQL statement text to be executed.
+	 * @param binder - sets the parameter values, may be null
+	 * @return - the update count
+	 * @throws SQLException
+	 */
+	public int update(String sqlText, StatementBinder binder) throws SQLException {
+		
+		Connection conn = pool.getConnection();
+		try (PreparedStatement prep = prepare(conn, sqlText, binder)) {
+			return prep.executeUpdate();
+		} finally {
+			pool.closeConnection(conn);
+		}
+	}
+	
+	/**
+	 * Execute an INSERT and collect the auto generated keys.  The statement is 
+	 * prepared with <code>Statement.RETURN_GENERATED_KEYS</code> and bypasses the 
+	 * statement cache.
+	 * 
+	 * @param sqlText - The SQL statement text to be executed.
+	 * @param binder - sets the parameter values, may be null
+	 * @return - the update count and the generated keys
+	 * @throws SQLException
+	 */
+	public AutoGeneratedKeysResult updateWithKeys(String sqlText, StatementBinder binder) throws SQLException {
+		
+		Connection conn = pool.getConnection();
+		try (PreparedStatement prep = conn.prepareStatement(sqlText, Statement.RETURN_GENERATED_KEYS)) {
+			if (binder != null) {
+				binder.bind(prep);
+			}
+			AutoGeneratedKeysResult keyResult = new AutoGeneratedKeysResult(prep.executeUpdate());
+			AutoGeneratedKeysList keysList = keyResult.getAutoGeneratedKeys();
+			try (ResultSet keys = prep.getGeneratedKeys()) {
+				while (keys.next()) {
+					keysList.addKey(keys.getLong(1));
+				}
+			}
+			return keyResult;
+		} finally {
+			pool.closeConnection(conn);
+		}
+	}
+	
+	/**
+	 * Execute a statement for a number of rows.  The rows are executed as JDBC 
+	 * batches of <code>chunkSize</code> rows, each chunk in a single transaction.  
+	 * When a chunk fails it is rolled back, chunks executed before remain committed.
+	 * 
+	 * @param sqlText - The SQL statement text to be executed.
+	 * @param rows - the rows
+	 * @param binder - sets the parameter values of one row
+	 * @param chunkSize - rows per transaction
+	 * @return - the total update count
+	 * @throws SQLException - a chunk failed
+	 */
+	public <R> int batch(String sqlText, Iterable<R> rows, BatchBinder<R> binder, int chunkSize) 
+			throws SQLException {
+		
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Batch chunk size must be greater than 0");
+		}
+		Connection conn = pool.getConnection();
+		boolean autoCommit = conn.getAutoCommit();
+		try (PreparedStatement prep = prepare(conn, sqlText, null)) {
+			conn.setAutoCommit(false);
+			int total = 0;
+			int pending = 0;
+			for (R row : rows) {
+				binder.bind(prep, row);
+				prep.addBatch();
+				if (++pending == chunkSize) {
+					total += executeChunk(conn, prep);
+					pending = 0;
+				}
+			}
+			if (pending > 0) {
+				total += executeChunk(conn, prep);
+			}
+			return total;
+		} finally {
+			try {
+				conn.setAutoCommit(autoCommit);
+			} finally {
+				pool.closeConnection(conn);
+			}
+		}
+	}
+	
+	/**
+	 * @return - the connection pool used by the executor
+	 */
+	public IH2ConnectionPool getPool() {
+		return pool;
+	}
+	
+	private PreparedStatement prepare(Connection conn, String sqlText, StatementBinder binder) 
+			throws SQLException {
+		
+		PreparedStatement prep = pool.prepareStatement(conn, sqlText, ResultSet.TYPE_FORWARD_ONLY, 
+													   ResultSet.CONCUR_READ_ONLY);
+		if (binder != null) {
+			try {
+				binder.bind(prep);
+			} catch (SQLException | RuntimeException ex) {
+				prep.close();
+				throw ex;
+			}
+		}
+		return prep;
+	}
+	
+	private int executeChunk(Connection conn, PreparedStatement prep) throws SQLException {
+		
+		int total = 0;
+		try {
+			for (int count : prep.executeBatch()) {
+				total += count == Statement.SUCCESS_NO_INFO ? 1 : count;
+			}
+			conn.commit();
+		} catch (SQLException sqlex) {
+			prep.clearBatch();
+			conn.rollback();
+			throw sqlex;
+		}
+		return total;
+	}
+}
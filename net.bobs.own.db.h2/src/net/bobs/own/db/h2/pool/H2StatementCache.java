@@ -0,0 +1,286 @@
+/* 
+ ******************************************************************************
+ * H2DbLib provides a simple connection pool for establishing connections to 
+ * an embedded H2 database.
+ * This file is part of H2DBLib.
+ *  
+ * Copyright (c) 2016-2017 Robert W. Anderson.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Robert W. Anderson - initial API and implementation and/or initial documentation
+ *    
+ * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
+ * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
+ * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
+ * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
+ * PARTICULAR PURPOSE.   
+ ******************************************************************************
+ */
+package net.bobs.own.db.h2.pool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A least recently used cache of <code>PreparedStatement</code> objects for one 
+ * JDBC connection.  Statements are keyed by the SQL text, result set type and 
+ * result set concurrency.  
+ * 
+ * A statement obtained from the cache is removed from the cache while it is 
+ * used, so it is never shared.  Calling <code>close()</code> on the statement 
+ * returns it to the cache, the physical statement is only closed when it is 
+ * evicted from the cache or the cache is closed.  The max rows, fetch size, 
+ * query timeout and fetch direction set by a caller are reset when the 
+ * statement is returned.
+ * 
+ * @author Robert Anderson
+ *
+ */
+class H2StatementCache {
+
+	private static Logger logger = LogManager.getLogger(H2StatementCache.class);
+	
+	private final Connection conn;
+	private final int maxSize;
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LinkedHashMap<StatementKey,PreparedStatement> statements;
+	private boolean closed = false;
+	
+	/**
+	 * Create a statement cache for a connection.
+	 * 
+	 * @param conn - the physical connection to prepare statements with
+	 * @param maxSize - maximum number of idle statements kept
+	 * @param hits - counter for statements found in the cache
+	 * @param misses - counter for statements that had to be prepared
+	 */
+	H2StatementCache(Connection conn, int maxSize, LongAdder hits, LongAdder misses) {
+		
+		this.conn = conn;
+		this.maxSize = maxSize;
+		this.hits = hits;
+		this.misses = misses;
+		this.statements = new LinkedHashMap<StatementKey,PreparedStatement>(16, 0.75f, true);
+	}
+	
+	/**
+	 * Obtain a prepared statement from the cache, or prepare a new one.
+	 * 
+	 * @param caller - the connection returned by getConnection() of the statement
+	 * @param sqlText - the SQL statement text
+	 * @param resultSetType - a <code>ResultSet</code> type constant
+	 * @param resultSetConcurrency - a <code>ResultSet</code> concurrency constant
+	 * @return - a statement whose <code>close()</code> returns it to the cache
+	 * @throws SQLException
+	 */
+	PreparedStatement prepareStatement(Connection caller, String sqlText, int resultSetType, 
+									   int resultSetConcurrency) throws SQLException {
+		
+		StatementKey key = new StatementKey(sqlText, resultSetType, resultSetConcurrency);
+		PreparedStatement prep = null;
+		
+		synchronized (this) {
+			prep = statements.remove(key);
+		}
+		if (prep != null) {
+			hits.increment();
+		} else {
+			misses.increment();
+			prep = conn.prepareStatement(sqlText, resultSetType, resultSetConcurrency);
+		}
+		
+		return new CachedStatement(caller, key, prep);
+	}
+	
+	/**
+	 * Close all statements held by the cache.  Statements in use are closed 
+	 * when they are returned.
+	 */
+	synchronized void close() {
+		
+		closed = true;
+		Iterator<PreparedStatement> it = statements.values().iterator();
+		while (it.hasNext()) {
+			closeStatement(it.next());
+			it.remove();
+		}
+	}
+	
+	/**
+	 * @return - the number of idle statements held by the cache
+	 */
+	synchronized int size() {
+		return statements.size();
+	}
+	
+	/*
+	 * Return a statement to the cache.  The least recently used statement is 
+	 * closed when the cache is full.
+	 */
+	private void release(StatementKey key, PreparedStatement prep, boolean changed) {
+		
+		try {
+			ResultSet rset = prep.getResultSet();
+			if (rset != null) {
+				rset.close();
+			}
+			prep.clearParameters();
+			prep.clearBatch();
+			if (changed) {
+				/* The next caller of the same SQL must not inherit the limits */
+				prep.setMaxRows(0);
+				prep.setFetchSize(0);
+				prep.setQueryTimeout(0);
+				prep.setFetchDirection(ResultSet.FETCH_FORWARD);
+			}
+		} catch (SQLException sqlex) {
+			logger.debug(sqlex.getMessage(), sqlex);
+			closeStatement(prep);
+			return;
+		}
+		
+		PreparedStatement evicted = null;
+		synchronized (this) {
+			if (closed || maxSize <= 0 || statements.containsKey(key)) {
+				/* The same SQL was used twice at once, keep only one statement */
+				evicted = prep;
+			} else {
+				statements.put(key, prep);
+				if (statements.size() > maxSize) {
+					Iterator<Map.Entry<StatementKey,PreparedStatement>> it = statements.entrySet().iterator();
+					evicted = it.next().getValue();
+					it.remove();
+				}
+			}
+		}
+		if (evicted != null) {
+			closeStatement(evicted);
+		}
+	}
+	
+	private void closeStatement(PreparedStatement prep) {
+		try {
+			prep.close();
+		} catch (SQLException sqlex) {
+			logger.debug(sqlex.getMessage(), sqlex);
+		}
+	}
+	
+	/*
+	 * Cache key, the hash code is computed once since keys are created for every prepare.
+	 */
+	private static final class StatementKey {
+		
+		private final String sqlText;
+		private final int resultSetType;
+		private final int resultSetConcurrency;
+		private final int hash;
+		
+		StatementKey(String sqlText, int resultSetType, int resultSetConcurrency) {
+			this.sqlText = sqlText;
+			this.resultSetType = resultSetType;
+			this.resultSetConcurrency = resultSetConcurrency;
+			this.hash = (sqlText.hashCode() * 31 + resultSetType) * 31 + resultSetConcurrency;
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (obj instanceof StatementKey == false) {
+				return false;
+			}
+			StatementKey other = (StatementKey) obj;
+			return resultSetType == other.resultSetType && 
+					resultSetConcurrency == other.resultSetConcurrency &&
+					sqlText.equals(other.sqlText);
+		}
+	}
+	
+	/*
+	 * Delegates to the physical statement, except close() which returns the 
+	 * statement to the cache.  Only the thread using the statement changes 
+	 * its state.
+	 */
+	private final class CachedStatement extends H2PooledPreparedStatement<PreparedStatement> {
+		
+		private final StatementKey key;
+		private boolean closed = false;
+		private boolean changed = false;
+		
+		CachedStatement(Connection caller, StatementKey key, PreparedStatement prep) {
+			super(caller, prep);
+			this.key = key;
+		}
+		
+		@Override
+		PreparedStatement statement() throws SQLException {
+			if (closed) {
+				throw new SQLException("Statement is closed");
+			}
+			return delegate;
+		}
+		
+		@Override
+		public void close() throws SQLException {
+			if (closed == false) {
+				closed = true;
+				release(key, delegate, changed);
+			}
+		}
+		
+		@Override
+		public boolean isClosed() throws SQLException {
+			return closed;
+		}
+		
+		@Override
+		public void setMaxRows(int max) throws SQLException {
+			statement().setMaxRows(max);
+			changed = true;
+		}
+		
+		@Override
+		public void setFetchSize(int rows) throws SQLException {
+			statement().setFetchSize(rows);
+			changed = true;
+		}
+		
+		@Override
+		public void setQueryTimeout(int seconds) throws SQLException {
+			statement().setQueryTimeout(seconds);
+			changed = true;
+		}
+		
+		@Override
+		public void setFetchDirection(int direction) throws SQLException {
+			statement().setFetchDirection(direction);
+			changed = true;
+		}
+		
+		@Override
+		public String toString() {
+			return "Cached" + delegate.toString();
+		}
+	}
+}
@@ -0,0 +1,396 @@
+/* 
+ ******************************************************************************
+ * H2DbLib provides a simple connection pool for establishing connections to 
+ * an embedded H2 database.
+ * This file is part of H2DBLib.
+ *  
+ * Copyright (c) 2016-2017 Robert W. Anderson.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Robert W. Anderson - initial API and implementation and/or initial documentation
+ *    
+ * EXCEPT AS EXPRESSLY SET FORTH IN THIS AGREEMENT, THE PROGRAM IS PROVIDED ON 
+ * AN "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER 
+ * EXPRESS OR IMPLIED INCLUDING, WITHOUT LIMITATION, ANY WARRANTIES OR 
+ * CONDITIONS OF TITLE, NON-INFRINGEMENT, MERCHANTABILITY OR FITNESS FOR A 
+ * PARTICULAR PURPOSE.   
+ ******************************************************************************
+ */
+package net.bobs.own.db.h2.pool;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Builds H2 JDBC connection URLs with typed settings.  The settings most 
+ * important for H2 throughput can be set one by one, or together with a 
+ * named <code>Profile</code>.  Settings made after a profile override the 
+ * profile.
+ * 
+ * <pre>
+ * String url = new H2UrlBuilder("~/data/orders")
+ * 					.profile(H2UrlBuilder.Profile.READ_HEAVY)
+ * 					.lockTimeoutMs(5000)
+ * 					.build();
+ * </pre>
+ * 
+ * Pools configure the builder from db.h2.* properties, e.g. db.h2.profile, 
+ * db.h2.cacheSize or db.h2.lockMode, see <code>applyPreferences</code>.
+ * 
+ * @author Robert Anderson
+ *
+ */
+public final class H2UrlBuilder {
+
+	private static final String URL_PREFIX = "jdbc:h2:";
+	
+	/** The H2 LOCK_MODE settings */
+	public enum LockMode {
+		/** No locking, only safe while a single connection writes */
+		OFF(0),
+		/** Table level locks, readers wait for writers */
+		TABLE(1),
+		/** Table level locks with garbage collection, for applications that do not close all connections */
+		TABLE_GC(2),
+		/** Table level locks, shared read locks are released after each statement */
+		READ_COMMITTED(3);
+		
+		private final int value;
+		
+		private LockMode(int value) {
+			this.value = value;
+		}
+		
+		public int getValue() {
+			return value;
+		}
+	};
+	
+	/** Named combinations of settings for common workloads */
+	public enum Profile {
+		/** 
+		 * Many concurrent readers: queries run in parallel, read locks are 
+		 * released after each statement and a 64 MB page cache.
+		 */
+		READ_HEAVY("read-heavy"),
+		/** 
+		 * Loading large amounts of data: no transaction log, no undo log, 
+		 * no locking and a 128 MB page cache.  <b>The database may be corrupted 
+		 * if the process dies while loading.</b>
+		 */
+		BULK_LOAD("bulk-load"),
+		/** 
+		 * Short transactions: multi version concurrency so readers never wait
+		 * for writers, lock waits fail after 2 seconds and a 32 MB page cache.
+		 */
+		LOW_LATENCY_OLTP("low-latency-oltp");
+		
+		private final String profileName;
+		
+		private Profile(String profileName) {
+			this.profileName = profileName;
+		}
+		
+		public String getProfileName() {
+			return profileName;
+		}
+		
+		/**
+		 * Find a profile by its name, e.g. "read-heavy", or its constant name.
+		 * 
+		 * @param name - the profile name
+		 * @return - the profile
+		 * @throws IllegalArgumentException - no profile has this name
+		 */
+		public static Profile forName(String name) {
+			
+			String trimmed = name.trim();
+			for (Profile profile : values()) {
+				if (profile.profileName.equalsIgnoreCase(trimmed) || profile.name().equalsIgnoreCase(trimmed)) {
+					return profile;
+				}
+			}
+			throw new IllegalArgumentException("Unknown H2 URL profile " + name);
+		}
+	};
+	
+	private final String path;
+	private final Map<String,String> settings = new LinkedHashMap<String,String>();
+	
+	/**
+	 * Create a builder for a database.
+	 * 
+	 * @param path - the database path as used in the URL, e.g. "~/test" or 
+	 * 				 "mem:test", with or without the jdbc:h2: prefix
+	 */
+	public H2UrlBuilder(String path) {
+		
+		if (path == null || path.trim().isEmpty()) {
+			throw new IllegalArgumentException("The H2 database path is required");
+		}
+		this.path = path.startsWith(URL_PREFIX) ? path.substring(URL_PREFIX.length()) : path;
+	}
+	
+	/**
+	 * Create a builder from an existing H2 URL, the settings in the URL are kept.
+	 * 
+	 * @param url - a jdbc:h2: URL
+	 * @return - the builder
+	 */
+	public static H2UrlBuilder fromUrl(String url) {
+		
+		String[] parts = url.split(";");
+		H2UrlBuilder builder = new H2UrlBuilder(parts[0]);
+		for (int ix = 1; ix < parts.length; ix++) {
+			int eq = parts[ix].indexOf('=');
+			if (eq > 0) {
+				builder.setting(parts[ix].substring(0, eq), parts[ix].substring(eq + 1));
+			}
+		}
+		return builder;
+	}
+	
+	public H2UrlBuilder user(String user) {
+		return setting("USER", user);
+	}
+	
+	public H2UrlBuilder password(String password) {
+		return setting("PASSWORD", password);
+	}
+	
+	/**
+	 * @param ifExists - true to only open an existing database, never create one
+	 */
+	public H2UrlBuilder ifExists(boolean ifExists) {
+		return setting("IFEXISTS", ifExists);
+	}
+	
+	/**
+	 * @param cacheSizeKb - the page cache size in KB
+	 */
+	public H2UrlBuilder cacheSizeKb(int cacheSizeKb) {
+		return setting("CACHE_SIZE", requireNotNegative("CACHE_SIZE", cacheSizeKb));
+	}
+	
+	public H2UrlBuilder lockMode(LockMode lockMode) {
+		return setting("LOCK_MODE", lockMode.getValue());
+	}
+	
+	/**
+	 * @param lockTimeoutMs - the time a statement waits for a lock before it fails
+	 */
+	public H2UrlBuilder lockTimeoutMs(int lockTimeoutMs) {
+		return setting("LOCK_TIMEOUT", requireNotNegative("LOCK_TIMEOUT", lockTimeoutMs));
+	}
+	
+	/**
+	 * @param multiThreaded - true to run statements of different connections in parallel
+	 */
+	public H2UrlBuilder multiThreaded(boolean multiThreaded) {
+		return setting("MULTI_THREADED", multiThreaded);
+	}
+	
+	/**
+	 * @param seconds - the time the database stays open after the last 
+	 * 					connection is closed, -1 keeps it open until the JVM exits
+	 */
+	public H2UrlBuilder dbCloseDelaySeconds(int seconds) {
+		return setting("DB_CLOSE_DELAY", seconds);
+	}
+	
+	/**
+	 * @param log - the transaction log mode: 0 off, 1 no file sync, 2 full
+	 */
+	public H2UrlBuilder log(int log) {
+		if (log < 0 || log > 2) {
+			throw new IllegalArgumentException("LOG must be 0, 1 or 2");
+		}
+		return setting("LOG", log);
+	}
+	
+	/**
+	 * @param undoLog - false disables the undo log, a rollback is then not possible
+	 */
+	public H2UrlBuilder undoLog(boolean undoLog) {
+		return setting("UNDO_LOG", undoLog ? 1 : 0);
+	}
+	
+	/**
+	 * @param writeDelayMs - the maximum delay between a commit and writing the log
+	 */
+	public H2UrlBuilder writeDelayMs(int writeDelayMs) {
+		return setting("WRITE_DELAY", requireNotNegative("WRITE_DELAY", writeDelayMs));
+	}
+	
+	/**
+	 * @param pageSize - the page size in bytes, only used when the database is created
+	 */
+	public H2UrlBuilder pageSize(int pageSize) {
+		if (pageSize < 64 || Integer.bitCount(pageSize) != 1) {
+			throw new IllegalArgumentException("PAGE_SIZE must be a power of 2 of at least 64");
+		}
+		return setting("PAGE_SIZE", pageSize);
+	}
+	
+	/**
+	 * @param mvcc - true to use multi version concurrency control
+	 */
+	public H2UrlBuilder mvcc(boolean mvcc) {
+		return setting("MVCC", mvcc);
+	}
+	
+	/**
+	 * Apply the settings of a profile, replacing the same settings made earlier.
+	 * 
+	 * @param profile - the profile
+	 * @return - this builder
+	 */
+	public H2UrlBuilder profile(Profile profile) {
+		
+		switch (profile) {
+			case READ_HEAVY:
+				cacheSizeKb(65536);
+				multiThreaded(true);
+				lockMode(LockMode.READ_COMMITTED);
+				break;
+			case BULK_LOAD:
+				cacheSizeKb(131072);
+				log(0);
+				undoLog(false);
+				lockMode(LockMode.OFF);
+				break;
+			case LOW_LATENCY_OLTP:
+				cacheSizeKb(32768);
+				mvcc(true);
+				lockTimeoutMs(2000);
+				break;
+		}
+		return this;
+	}
+	
+	/**
+	 * Set any other H2 setting.
+	 * 
+	 * @param name - the setting name, e.g. "TRACE_LEVEL_FILE"
+	 * @param value - the setting value, null removes the setting
+	 * @return - this builder
+	 */
+	public H2UrlBuilder setting(String name, Object value) {
+		
+		String key = name.trim().toUpperCase(Locale.ENGLISH);
+		if (value == null) {
+			settings.remove(key);
+		} else {
+			String text = String.valueOf(value);
+			if (text.indexOf(';') >= 0) {
+				throw new IllegalArgumentException("The value of " + key + " must not contain ';'");
+			}
+			settings.put(key, value instanceof Boolean ? text.toUpperCase(Locale.ENGLISH) : text);
+		}
+		return this;
+	}
+	
+	/**
+	 * Apply the db.h2.* pool properties: db.h2.profile first, then db.h2.ifExists, 
+	 * db.h2.cacheSize, db.h2.lockMode, db.h2.lockTimeout, db.h2.multiThreaded, 
+	 * db.h2.dbCloseDelay, db.h2.log, db.h2.undoLog, db.h2.writeDelay, 
+	 * db.h2.pageSize and db.h2.mvcc.
+	 * 
+	 * @param prefs - the pool preferences
+	 * @return - this builder
+	 */
+	H2UrlBuilder applyPreferences(H2ConnectionPoolPreferences prefs) {
+		
+		String value = prefs.getdbH2Option("profile");
+		if (value != null) {
+			profile(Profile.forName(value));
+		}
+		if ((value = prefs.getdbH2Option("ifExists")) != null) {
+			ifExists(Boolean.parseBoolean(value));
+		}
+		if ((value = prefs.getdbH2Option("cacheSize")) != null) {
+			cacheSizeKb(Integer.parseInt(value));
+		}
+		if ((value = prefs.getdbH2Option("lockMode")) != null) {
+			lockMode(parseLockMode(value));
+		}
+		if ((value = prefs.getdbH2Option("lockTimeout")) != null) {
+			lockTimeoutMs(Integer.parseInt(value));
+		}
+		if ((value = prefs.getdbH2Option("multiThreaded")) != null) {
+			multiThreaded(Boolean.parseBoolean(value));
+		}
+		if ((value = prefs.getdbH2Option("dbCloseDelay")) != null) {
+			dbCloseDelaySeconds(Integer.parseInt(value));
+		}
+		if ((value = prefs.getdbH2Option("log")) != null) {
+			log(Integer.parseInt(value));
+		}
+		if ((value = prefs.getdbH2Option("undoLog")) != null) {
+			undoLog(Boolean.parseBoolean(value));
+		}
+		if ((value = prefs.getdbH2Option("writeDelay")) != null) {
+			writeDelayMs(Integer.parseInt(value));
+		}
+		if ((value = prefs.getdbH2Option("pageSize")) != null) {
+			pageSize(Integer.parseInt(value));
+		}
+		if ((value = prefs.getdbH2Option("mvcc")) != null) {
+			mvcc(Boolean.parseBoolean(value));
+		}
+		return this;
+	}
+	
+	/**
+	 * Build the URL.
+	 * 
+	 * @return - the jdbc:h2: URL
+	 * @throws IllegalStateException - the settings cannot be used together in H2
+	 */
+	public String build() {
+		
+		boolean multiThreaded = "TRUE".equals(settings.get("MULTI_THREADED")) || "1".equals(settings.get("MULTI_THREADED"));
+		if (multiThreaded && "TRUE".equals(settings.get("MVCC"))) {
+			throw new IllegalStateException("H2 cannot use MVCC with MULTI_THREADED");
+		}
+		if (multiThreaded && "0".equals(settings.get("LOCK_MODE"))) {
+			throw new IllegalStateException("H2 cannot use LOCK_MODE=0 with MULTI_THREADED");
+		}
+		
+		StringBuilder url = new StringBuilder(URL_PREFIX).append(path);
+		for (Map.Entry<String,String> setting : settings.entrySet()) {
+			url.append(';').append(setting.getKey()).append('=').append(setting.getValue());
+		}
+		return url.toString();
+	}
+	
+	@Override
+	public String toString() {
+		/* Never show the password */
+		String password = settings.get("PASSWORD");
+		return password == null ? build() : build().replace("PASSWORD=" + password, "PASSWORD=xxxxxx");
+	}
+	
+	private static LockMode parseLockMode(String value) {
+		
+		String trimmed = value.trim();
+		for (LockMode mode : LockMode.values()) {
+			if (mode.name().equalsIgnoreCase(trimmed) || String.valueOf(mode.getValue()).equals(trimmed)) {
+				return mode;
+			}
+		}
+		throw new IllegalArgumentException("Unknown H2 lock mode " + value);
+	}
+	
+	private static int requireNotNegative(String name, int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException(name + " must not be negative");
+		}
+		return value;
+	}
+}
@@ -1,12 +1,65 @@
-package net.bobs.own.db.h2.pool;
-
-import java.sql.Connection;
-import java.sql.SQLException;
-
-public interface IH2ConnectionPool {
-
-	public Connection getConnection() throws SQLException;
-	public void closeConnection(Connection conn) throws SQLException;
-	public void close();
-	
-}
+package net.bobs.own.db.h2.pool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.Semaphore;
+
+public interface IH2ConnectionPool {
+
+	public Connection getConnection() throws SQLException;
+	public void closeConnection(Connection conn) throws SQLException;
+	public void close();
+	
+	/**
+	 * Prepare a statement for a connection obtained from this pool.  The statement 
+	 * is taken from the connection's statement cache when one is configured, 
+	 * closing the statement returns it to the cache.
+	 * 
+	 * @param conn - a connection obtained from this pool
+	 * @param sqlText - the SQL statement text
+	 * @param resultSetType - a <code>ResultSet</code> type constant
+	 * @param resultSetConcurrency - a <code>ResultSet</code> concurrency constant
+	 * @return - the prepared statement
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepareStatement(Connection conn, String sqlText, int resultSetType, 
+											  int resultSetConcurrency) throws SQLException;
+	
+	/**
+	 * @return - the maximum number of connections the pool opens
+	 */
+	public int getMaxConnections();
+	
+	/**
+	 * Limits the number of connections used at once by the partitions of 
+	 * parallel scans, so that scans leave connections for other callers.
+	 * 
+	 * @return - the partition limiter of this pool
+	 */
+	public Semaphore getPartitionLimiter();
+	
+	/**
+	 * @return - the number of statements served from the statement caches of this pool
+	 */
+	public long getStatementCacheHits();
+	
+	/**
+	 * @return - the number of statements prepared because they were not cached
+	 */
+	public long getStatementCacheMisses();
+	
+	/**
+	 * @return - the identifier of the pool, used to name its JMX MBean
+	 */
+	public String getPoolId();
+	
+	/**
+	 * The counters and gauges of the pool, also registered as a JMX MBean 
+	 * while the pool is open.
+	 * 
+	 * @return - the metrics of this pool
+	 */
+	public H2PoolMetricsMXBean getMetrics();
+	
+}
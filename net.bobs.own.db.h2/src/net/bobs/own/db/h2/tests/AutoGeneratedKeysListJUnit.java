@@ -0,0 +1,67 @@
+package net.bobs.own.db.h2.tests;
+
+import java.util.PrimitiveIterator;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import net.bobs.own.db.h2.db.AutoGeneratedKeysList;
+
+/**
+ * JUnit tests to verify AutoGeneratedKeysList keeps BIGINT keys, grows and 
+ * offers the primitive views of its keys.
+ * 
+ * @author Robert Anderson
+ *
+ */
+public class AutoGeneratedKeysListJUnit {
+
+   @Test
+   void addKeyTest() {
+      
+      AutoGeneratedKeysList keysList = new AutoGeneratedKeysList(1);
+      long bigKey = Integer.MAX_VALUE + 10L;
+      
+      for (int ix = 0; ix < 100; ix++) {
+         keysList.addKey(ix);
+      }
+      keysList.addKey(bigKey);
+      
+      Assertions.assertEquals(101, keysList.size(), "keys list size is wrong");
+      Assertions.assertEquals(42, keysList.getKey(42), "key 42 is wrong");
+      Assertions.assertEquals(bigKey, keysList.getKey(100), "BIGINT key was truncated");
+      Assertions.assertThrows(IndexOutOfBoundsException.class, () -> keysList.getKey(101));
+   }
+   
+   @Test
+   void bulkAppendTest() {
+      
+      AutoGeneratedKeysList keysList = new AutoGeneratedKeysList();
+      AutoGeneratedKeysList otherList = new AutoGeneratedKeysList();
+      otherList.addKeys(new long[] {7, 8, 9});
+      
+      keysList.addKeys(new long[] {1, 2, 3, 4}, 1, 2);
+      keysList.addKeys(otherList);
+      
+      Assertions.assertArrayEquals(new long[] {2, 3, 7, 8, 9}, keysList.toLongArray());
+   }
+   
+   @Test
+   void primitiveViewsTest() {
+      
+      AutoGeneratedKeysList keysList = new AutoGeneratedKeysList();
+      keysList.addKeys(new long[] {5, 6, 7});
+      
+      PrimitiveIterator.OfLong it = keysList.iterator();
+      long sum = 0;
+      while (it.hasNext()) {
+         sum += it.nextLong();
+      }
+      Assertions.assertEquals(18, sum, "iterator sum is wrong");
+      Assertions.assertEquals(18, keysList.longStream().sum(), "long stream sum is wrong");
+      Assertions.assertEquals(18, keysList.intStream().sum(), "int stream sum is wrong");
+      
+      keysList.addKey(Long.MAX_VALUE);
+      Assertions.assertThrows(ArithmeticException.class, () -> keysList.intStream().sum());
+   }
+}
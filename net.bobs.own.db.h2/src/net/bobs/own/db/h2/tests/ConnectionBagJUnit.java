@@ -0,0 +1,94 @@
+package net.bobs.own.db.h2.tests;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import net.bobs.own.db.h2.pool.H2ConnectionPoolFactory;
+import net.bobs.own.db.h2.pool.IH2ConnectionPool;
+
+/**
+ * JUnit test for the <code>H2ConnectionBag</code> of the MYOWN pool.  More 
+ * threads than connections borrow and return connections at the same time, so 
+ * returned connections are handed to waiting threads all the time.
+ *    *  A physical connection is never held by two threads at once.
+ *    *  No waiting thread is lost, every borrow succeeds well within 
+ *       db.connectionTimeoutMs.
+ * 
+ * @author Robert Anderson
+ *
+ */
+public class ConnectionBagJUnit {
+
+   static final String MYOWN_PATH_FILE="tests_config/cp_bag_myown.properties";
+   
+   static final int THREADS = 16;
+   static final int CYCLES = 5000;
+   
+   @Test
+   void concurrentBorrowRequiteTest() throws Exception {
+      
+      IH2ConnectionPool pool = H2ConnectionPoolFactory.getInstance()
+                                                       .makePool(H2ConnectionPoolFactory.PoolTypes.MYOWN, 
+                                                                 "cpbag.myown",MYOWN_PATH_FILE);
+      Assertions.assertTrue(THREADS > pool.getMaxConnections());
+      
+      Set<Connection> inUse = ConcurrentHashMap.newKeySet();
+      CountDownLatch start = new CountDownLatch(1);
+      ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+      try {
+         List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+         for (int ix = 0; ix < THREADS; ix++) {
+            results.add(executor.submit(() -> {
+               start.await();
+               int borrowed = 0;
+               for (int cycle = 0; cycle < CYCLES; cycle++) {
+                  Connection conn = pool.getConnection();
+                  Connection physical = conn.unwrap(Connection.class);
+                  if (inUse.add(physical) == false) {
+                     throw new IllegalStateException("connection borrowed twice " + physical);
+                  }
+                  Thread.yield();
+                  inUse.remove(physical);
+                  conn.close();
+                  borrowed++;
+               }
+               return borrowed;
+            }));
+         }
+         start.countDown();
+         
+         for (Future<Integer> result : results) {
+            Assertions.assertEquals(CYCLES, result.get(60, TimeUnit.SECONDS).intValue());
+         }
+         
+         /* Every connection is available again */
+         List<Connection> all = new ArrayList<Connection>();
+         try {
+            for (int ix = 0; ix < pool.getMaxConnections(); ix++) {
+               all.add(pool.getConnection());
+            }
+         } finally {
+            for (Connection conn : all) {
+               conn.close();
+            }
+         }
+      } catch (SQLException sqle) {
+         Assertions.fail(sqle);
+      } finally {
+         executor.shutdownNow();
+         pool.close();
+      }
+   }
+}
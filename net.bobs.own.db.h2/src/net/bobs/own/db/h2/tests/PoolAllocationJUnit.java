@@ -0,0 +1,117 @@
+package net.bobs.own.db.h2.tests;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.apache.logging.log4j.LogManager;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import net.bobs.own.db.h2.pool.H2ConnectionPoolFactory;
+import net.bobs.own.db.h2.pool.IH2ConnectionPool;
+
+/**
+ * JUnit tests to verify a getConnection/closeConnection cycle only allocates 
+ * the connection handed out once the pool is warm.  Allocation is measured for the test thread 
+ * with the HotSpot <code>ThreadMXBean</code>, the tests are skipped on a JVM 
+ * without allocation counting or when debug logging is enabled for the pools.
+ * 
+ * The MYOWN pool allocates one small <code>H2PooledConnection</code> for every 
+ * borrow, so a stale close cannot return a connection lent again.  HikariCP 
+ * allocates a connection proxy for every borrow, that cost belongs to HikariCP.
+ * Both are allowed for by a fixed budget per cycle.
+ * 
+ * @author Robert Anderson
+ *
+ */
+public class PoolAllocationJUnit {
+
+   static final String MYOWN_PATH_FILE="tests_config/cp_alloc_myown.properties";
+   static final String HIKARI_PATH_FILE="tests_config/cp_alloc_hikari.properties";
+   
+   static final int WARMUP_CYCLES = 20000;
+   static final int MEASURED_CYCLES = 10000;
+   /* Bytes per cycle allowed for the H2PooledConnection of a borrow */
+   static final long MYOWN_HANDLE_BUDGET = 64;
+   /* Bytes per cycle allowed for the HikariCP connection proxy and its statement list */
+   static final long HIKARI_PROXY_BUDGET = 256;
+   
+   private static com.sun.management.ThreadMXBean threadBean;
+   
+   @BeforeAll
+   static void setUpBeforeClass() throws Exception {
+      
+      java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      Assumptions.assumeTrue(bean instanceof com.sun.management.ThreadMXBean, 
+                             "ThreadMXBean does not count allocated bytes");
+      threadBean = (com.sun.management.ThreadMXBean) bean;
+      Assumptions.assumeTrue(threadBean.isThreadAllocatedMemorySupported(), 
+                             "ThreadMXBean does not count allocated bytes");
+      threadBean.setThreadAllocatedMemoryEnabled(true);
+   }
+
+   @Test
+   void myownBorrowReturnTest() throws SQLException {
+      
+      Assumptions.assumeFalse(LogManager.getLogger("net.bobs.own.db.h2.pool.H2MyOwnConnectionPool").isDebugEnabled(),
+                              "debug logging allocates");
+      IH2ConnectionPool pool = H2ConnectionPoolFactory.getInstance()
+                                                       .makePool(H2ConnectionPoolFactory.PoolTypes.MYOWN, 
+                                                                 "cpalloc.myown",MYOWN_PATH_FILE);
+      try {
+         long bytes = bytesPerCycle(pool);
+         Assertions.assertTrue(bytes <= MYOWN_HANDLE_BUDGET, 
+                               "borrow/return cycle allocated " + bytes + " bytes");
+      } finally {
+         pool.close();
+      }
+   }
+   
+   @Test
+   void hikariBorrowReturnTest() throws SQLException {
+      
+      Assumptions.assumeFalse(LogManager.getLogger("net.bobs.own.db.h2.pool.H2HikariConnectionPool").isDebugEnabled(),
+                              "debug logging allocates");
+      IH2ConnectionPool pool = H2ConnectionPoolFactory.getInstance()
+                                                       .makePool(H2ConnectionPoolFactory.PoolTypes.HIKARICP, 
+                                                                 "cpalloc.hikari",HIKARI_PATH_FILE);
+      try {
+         long bytes = bytesPerCycle(pool);
+         Assertions.assertTrue(bytes <= HIKARI_PROXY_BUDGET, 
+                               "borrow/return cycle allocated " + bytes + " bytes");
+      } finally {
+         pool.close();
+      }
+   }
+   
+   /*
+    * Warm the pool and the JIT, then return the bytes allocated by one 
+    * borrow/return cycle, rounded down.
+    */
+   private long bytesPerCycle(IH2ConnectionPool pool) throws SQLException {
+      
+      long threadId = Thread.currentThread().getId();
+      cycle(pool, WARMUP_CYCLES);
+      
+      /* The measurement itself allocates, take it off the result */
+      long start = threadBean.getThreadAllocatedBytes(threadId);
+      long overhead = threadBean.getThreadAllocatedBytes(threadId) - start;
+      
+      start = threadBean.getThreadAllocatedBytes(threadId);
+      cycle(pool, MEASURED_CYCLES);
+      long allocated = threadBean.getThreadAllocatedBytes(threadId) - start - overhead;
+      
+      return Math.max(0L, allocated) / MEASURED_CYCLES;
+   }
+   
+   private void cycle(IH2ConnectionPool pool, int cycles) throws SQLException {
+      
+      for (int ix = 0; ix < cycles; ix++) {
+         Connection conn = pool.getConnection();
+         pool.closeConnection(conn);
+      }
+   }
+}
@@ -0,0 +1,147 @@
+package net.bobs.own.db.h2.tests;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import net.bobs.own.db.h2.pool.H2ConnectionPoolFactory;
+import net.bobs.own.db.h2.pool.IH2ConnectionPool;
+
+/**
+ * JUnit tests for the connections handed out by the MYOWN pool.  The pool has 
+ * a single connection, so every borrow gets the same physical connection.
+ *    *  Closing a connection twice, or after the physical connection was 
+ *       borrowed again, does not return it to the pool.
+ *    *  Statements and meta data return the pooled connection.
+ *    *  Settings changed by a caller and uncommitted work are undone on return.
+ *    *  Cached statements do not keep the limits set by an earlier caller.
+ * 
+ * @author Robert Anderson
+ *
+ */
+public class PooledConnectionJUnit {
+
+   static final String MYOWN_PATH_FILE="tests_config/cp_pooled_myown.properties";
+   
+   private static IH2ConnectionPool pool;
+   
+   @BeforeAll
+   static void setUpBeforeClass() throws Exception {
+      
+      pool = H2ConnectionPoolFactory.getInstance()
+                                    .makePool(H2ConnectionPoolFactory.PoolTypes.MYOWN, 
+                                              "cppooled.myown",MYOWN_PATH_FILE);
+      try (Connection conn = pool.getConnection();
+           Statement stmt = conn.createStatement()) {
+         stmt.execute("CREATE TABLE IF NOT EXISTS POOLED_TEST(ID INT PRIMARY KEY)");
+      }
+   }
+
+   @AfterAll
+   static void tearDownAfterClass() throws Exception {
+      pool.close();
+   }
+
+   @Test
+   void doubleCloseTest() throws SQLException {
+      
+      Connection first = pool.getConnection();
+      first.close();
+      first.close();
+      Assertions.assertTrue(first.isClosed());
+      
+      Connection second = pool.getConnection();
+      try {
+         Assertions.assertNotSame(first, second);
+         /* A stale close must not hand the connection of the second borrow out again */
+         first.close();
+         pool.closeConnection(first);
+         Assertions.assertFalse(second.isClosed());
+         Assertions.assertThrows(SQLException.class, () -> pool.getConnection());
+         Assertions.assertThrows(SQLException.class, () -> first.createStatement());
+         try (Statement stmt = second.createStatement()) {
+            stmt.execute("SELECT 1");
+         }
+      } finally {
+         second.close();
+      }
+   }
+   
+   @Test
+   void tryWithResourcesTest() throws SQLException {
+      
+      Connection used;
+      try (Connection conn = pool.getConnection();
+           Statement stmt = conn.createStatement();
+           PreparedStatement prep = conn.prepareStatement("SELECT ID FROM POOLED_TEST", 
+                                                          Statement.RETURN_GENERATED_KEYS);
+           CallableStatement call = conn.prepareCall("CALL 1")) {
+         used = conn;
+         Assertions.assertSame(conn, stmt.getConnection());
+         Assertions.assertSame(conn, prep.getConnection());
+         Assertions.assertSame(conn, call.getConnection());
+         Assertions.assertSame(conn, conn.getMetaData().getConnection());
+         /* Closing through a statement returns the connection used by try-with-resources */
+         stmt.getConnection().close();
+      }
+      Assertions.assertTrue(used.isClosed());
+      
+      /* The single connection is available again */
+      try (Connection conn = pool.getConnection()) {
+         Assertions.assertFalse(conn.isClosed());
+      }
+   }
+   
+   @Test
+   void cachedStatementResetTest() throws SQLException {
+      
+      final String SQL = "SELECT ID FROM POOLED_TEST";
+      
+      try (Connection conn = pool.getConnection()) {
+         int fetchSize;
+         try (PreparedStatement prep = conn.prepareStatement(SQL)) {
+            Assertions.assertSame(conn, prep.getConnection());
+            fetchSize = prep.getFetchSize();
+            prep.setFetchSize(fetchSize + 1);
+            prep.setMaxRows(fetchSize + 1);
+            prep.setQueryTimeout(5);
+         }
+         try (PreparedStatement prep = conn.prepareStatement(SQL)) {
+            Assertions.assertEquals(0, prep.getMaxRows());
+            Assertions.assertEquals(fetchSize, prep.getFetchSize());
+            Assertions.assertEquals(0, prep.getQueryTimeout());
+         }
+      }
+   }
+   
+   @Test
+   void dirtyStateResetTest() throws SQLException {
+      
+      int isolation;
+      try (Connection conn = pool.getConnection()) {
+         isolation = conn.getTransactionIsolation();
+         conn.setAutoCommit(false);
+         conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+         try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("INSERT INTO POOLED_TEST(ID) VALUES(1)");
+         }
+      }
+      
+      try (Connection conn = pool.getConnection();
+           Statement stmt = conn.createStatement();
+           ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM POOLED_TEST")) {
+         Assertions.assertTrue(conn.getAutoCommit());
+         Assertions.assertEquals(isolation, conn.getTransactionIsolation());
+         Assertions.assertTrue(rs.next());
+         Assertions.assertEquals(0, rs.getInt(1), "uncommitted insert was not rolled back");
+      }
+   }
+}